@@ -0,0 +1,323 @@
+package com.github.pires.obd.reader.commands;
+
+/**
+ * A decoding formula of a {@link PidDefinition}, e.g. "(A*256+B)/16 - 40",
+ * compiled once into a tree of nodes; evaluating it walks the tree over the
+ * data bytes of the answer, without parsing or allocating anything.
+ * Constant subexpressions are folded while compiling.
+ * <p/>
+ * A to Z are the data bytes of the answer, after the echoed request; numbers,
+ * + - * /, parentheses and these functions may be used:
+ * <pre>
+ * min(x, y), max(x, y), abs(x)
+ * signed(x, bits)  x read as a two's complement number of the given bits,
+ *                  e.g. signed(A*256+B, 16)
+ * bit(x, n)        bit n of x, 0 or 1
+ * </pre>
+ */
+public class Formula {
+
+    private final Node root;
+    private final int bytes;
+
+    private Formula(Node root, int bytes) {
+        this.root = root;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the formula isn't valid.
+     */
+    public static Formula compile(String formula) {
+        final Parser parser = new Parser(formula);
+        final Node root = parser.expression();
+        parser.skipSpaces();
+        if (parser.pos < formula.length()) {
+            throw parser.error("Unexpected '" + formula.charAt(parser.pos) + "'");
+        }
+        return new Formula(root, parser.maxByte + 1);
+    }
+
+    /**
+     * @return the number of data bytes the formula reads, up to the last
+     * byte it names.
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @param data the data bytes, at least {@link #getBytes()} of them.
+     */
+    public double evaluate(int[] data) {
+        return root.evaluate(data);
+    }
+
+    private abstract static class Node {
+        abstract double evaluate(int[] data);
+
+        boolean isConstant() {
+            return false;
+        }
+    }
+
+    private static final class Constant extends Node {
+        private final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        double evaluate(int[] data) {
+            return value;
+        }
+
+        @Override
+        boolean isConstant() {
+            return true;
+        }
+    }
+
+    private static final class DataByte extends Node {
+        private final int index;
+
+        DataByte(int index) {
+            this.index = index;
+        }
+
+        @Override
+        double evaluate(int[] data) {
+            return data[index];
+        }
+    }
+
+    private static final class Negate extends Node {
+        private final Node operand;
+
+        Negate(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        double evaluate(int[] data) {
+            return -operand.evaluate(data);
+        }
+    }
+
+    private static final class Binary extends Node {
+        private final char operator;
+        private final Node left;
+        private final Node right;
+
+        Binary(char operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double evaluate(int[] data) {
+            final double l = left.evaluate(data);
+            final double r = right.evaluate(data);
+            switch (operator) {
+                case '+':
+                    return l + r;
+                case '-':
+                    return l - r;
+                case '*':
+                    return l * r;
+                default:
+                    return l / r;
+            }
+        }
+    }
+
+    private static final class Call extends Node {
+        private final String function;
+        private final Node x;
+        private final Node y;
+
+        Call(String function, Node x, Node y) {
+            this.function = function;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        double evaluate(int[] data) {
+            final double a = x.evaluate(data);
+            switch (function) {
+                case "abs":
+                    return Math.abs(a);
+                case "min":
+                    return Math.min(a, y.evaluate(data));
+                case "max":
+                    return Math.max(a, y.evaluate(data));
+                case "signed": {
+                    final int bits = (int) y.evaluate(data);
+                    final long value = (long) a & ((1L << bits) - 1);
+                    return value >= 1L << (bits - 1) ? value - (1L << bits) : value;
+                }
+                default:
+                    // bit
+                    return ((long) a >> (int) y.evaluate(data)) & 1;
+            }
+        }
+    }
+
+    /**
+     * Recursive descent over the usual precedence: unary minus, then * and /,
+     * then + and -.
+     */
+    private static final class Parser {
+        private final String text;
+        private int pos = 0;
+        private int maxByte = -1;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Node expression() {
+            Node node = term();
+            while (true) {
+                final char c = peek();
+                if (c != '+' && c != '-') {
+                    return node;
+                }
+                pos++;
+                node = fold(new Binary(c, node, term()));
+            }
+        }
+
+        private Node term() {
+            Node node = unary();
+            while (true) {
+                final char c = peek();
+                if (c != '*' && c != '/') {
+                    return node;
+                }
+                pos++;
+                node = fold(new Binary(c, node, unary()));
+            }
+        }
+
+        private Node unary() {
+            if (peek() == '-') {
+                pos++;
+                return fold(new Negate(unary()));
+            }
+            if (peek() == '+') {
+                pos++;
+                return unary();
+            }
+            return primary();
+        }
+
+        private Node primary() {
+            final char c = peek();
+            if (c == '(') {
+                pos++;
+                final Node node = expression();
+                expect(')');
+                return node;
+            }
+            if (Character.isDigit(c) || c == '.') {
+                final int start = pos;
+                while (pos < text.length()
+                        && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                    pos++;
+                }
+                try {
+                    return new Constant(Double.parseDouble(text.substring(start, pos)));
+                } catch (NumberFormatException e) {
+                    throw error("Bad number " + text.substring(start, pos));
+                }
+            }
+            if (Character.isLetter(c)) {
+                final int start = pos;
+                while (pos < text.length() && Character.isLetter(text.charAt(pos))) {
+                    pos++;
+                }
+                final String name = text.substring(start, pos);
+                if (name.length() == 1 && c >= 'A' && c <= 'Z') {
+                    maxByte = Math.max(maxByte, c - 'A');
+                    return new DataByte(c - 'A');
+                }
+                return call(name);
+            }
+            throw error(pos < text.length() ? "Unexpected '" + c + "'" : "Unexpected end");
+        }
+
+        private Node call(String name) {
+            final int arguments;
+            switch (name) {
+                case "abs":
+                    arguments = 1;
+                    break;
+                case "min":
+                case "max":
+                case "signed":
+                case "bit":
+                    arguments = 2;
+                    break;
+                default:
+                    throw error("Unknown function " + name);
+            }
+            expect('(');
+            final Node x = expression();
+            Node y = null;
+            if (arguments == 2) {
+                expect(',');
+                y = expression();
+                if (!name.equals("min") && !name.equals("max")) {
+                    final double bits = y.isConstant() ? y.evaluate(null) : -1;
+                    if (bits != Math.floor(bits) || bits < (name.equals("bit") ? 0 : 1) || bits > 62) {
+                        throw error(name + " takes a constant number of bits");
+                    }
+                }
+            }
+            expect(')');
+            return fold(new Call(name, x, y));
+        }
+
+        /**
+         * @return the node, or its value if it only depends on constants.
+         */
+        private static Node fold(Node node) {
+            boolean constant;
+            if (node instanceof Binary) {
+                constant = ((Binary) node).left.isConstant() && ((Binary) node).right.isConstant();
+            } else if (node instanceof Negate) {
+                constant = ((Negate) node).operand.isConstant();
+            } else {
+                final Call call = (Call) node;
+                constant = call.x.isConstant() && (call.y == null || call.y.isConstant());
+            }
+            return constant ? new Constant(node.evaluate(null)) : node;
+        }
+
+        private char peek() {
+            skipSpaces();
+            return pos < text.length() ? text.charAt(pos) : 0;
+        }
+
+        void skipSpaces() {
+            while (pos < text.length() && text.charAt(pos) == ' ') {
+                pos++;
+            }
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                throw error("Expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at " + pos + " in \"" + text + "\"");
+        }
+    }
+}
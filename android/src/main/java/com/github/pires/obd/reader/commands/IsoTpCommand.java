@@ -0,0 +1,329 @@
+package com.github.pires.obd.reader.commands;
+
+import com.github.pires.obd.commands.ObdCommand;
+import com.github.pires.obd.reader.commands.PidCommand.Headers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Sends a request with a long answer (VIN, DTC lists, Mode 06...) and
+ * reassembles the ISO 15765 (ISO-TP) frames of each ECU into one contiguous
+ * payload, straight from the bytes, without a String per line.
+ * <p/>
+ * With headers on (see {@link #setHeaders}) every frame carries its ECU and
+ * PCI byte: single frames ("7E8 06 43 ..."), first frames with the message
+ * length ("7E8 10 14 49 02 01 ...") and consecutive frames ("7E8 21 ..."),
+ * so interleaved answers of several ECUs are kept apart and the padding
+ * after the declared length is dropped. With headers off the adapter
+ * formats the message itself: a length line ("014") followed by numbered
+ * lines ("0: 49 02 01 ...", "1: ..."), or a single line; answers are then
+ * told apart by order only. On the older protocols, which have no ISO-TP,
+ * the data of each ECU's messages is appended as is, checksums left out.
+ * <p/>
+ * The payload starts with the answer's service ID, e.g. 49 02 01 and the 17
+ * VIN characters for 09 02.
+ */
+public class IsoTpCommand extends ObdCommand {
+
+    public static final int MAX_ANSWERS = 8;
+
+    /**
+     * Answers are read into these buffers, grown as needed; they need no lock
+     * of their own as {@link ObdCommand#run} holds the ObdCommand class lock
+     * while reading.
+     */
+    private static byte[] buffer = new byte[1024];
+    private static byte[] nibbles = new byte[256];
+
+    private Headers headers = Headers.NONE;
+    private final int[] ecus = new int[MAX_ANSWERS];
+    private final byte[][] payloads = new byte[MAX_ANSWERS][];
+    private final int[] lengths = new int[MAX_ANSWERS];
+    /**
+     * The length announced by the single or first frame, -1 if unknown.
+     */
+    private final int[] expected = new int[MAX_ANSWERS];
+    private int answers = 0;
+
+    /**
+     * @param command the request, e.g. "09 02".
+     */
+    public IsoTpCommand(String command) {
+        super(command);
+    }
+
+    /**
+     * Sets how answer lines are prefixed, to match the ATH setting.
+     */
+    public void setHeaders(Headers headers) {
+        this.headers = headers;
+    }
+
+    public Headers getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the number of answers, one per ECU with headers on.
+     */
+    public int getAnswerCount() {
+        return answers;
+    }
+
+    /**
+     * @return the address of the ECU of the i-th answer, -1 with headers off.
+     */
+    public int getEcu(int i) {
+        return ecus[i];
+    }
+
+    /**
+     * @return the reassembled payload of the i-th answer.
+     */
+    public byte[] getPayload(int i) {
+        return Arrays.copyOf(payloads[i], lengths[i]);
+    }
+
+    /**
+     * @return false if frames of the i-th answer were missing.
+     */
+    public boolean isComplete(int i) {
+        return expected[i] < 0 || lengths[i] == expected[i];
+    }
+
+    @Override
+    protected void readResult(InputStream in) throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '>') {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, length * 2);
+            }
+            buffer[length++] = (byte) b;
+        }
+        answers = 0;
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || buffer[i] == '\r' || buffer[i] == '\n') {
+                decodeLine(buffer, start, i);
+                start = i + 1;
+            }
+        }
+        if (answers == 0) {
+            rawData = new String(buffer, 0, length).replaceAll("\\s", "");
+            throw PidCommand.responseError(cmd, rawData);
+        }
+        rawData = null;
+    }
+
+    /**
+     * Decodes one line of the answer into the payload of its ECU. Lines that
+     * aren't data, like "SEARCHING...", are skipped.
+     */
+    private void decodeLine(byte[] buf, int start, int end) {
+        int count = 0;
+        int colon = -1;
+        for (int i = start; i < end; i++) {
+            final int c = buf[i];
+            if (c == ' ') {
+                continue;
+            }
+            if (c == ':' && colon < 0) {
+                colon = count;
+                continue;
+            }
+            final int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return;
+            }
+            if (count == nibbles.length) {
+                nibbles = Arrays.copyOf(nibbles, count * 2);
+            }
+            nibbles[count++] = (byte) digit;
+        }
+        if (count == 0) {
+            return;
+        }
+
+        switch (headers) {
+            case NONE:
+                if (colon == 1) {
+                    // numbered line of the current message
+                    if (answers == 0) {
+                        start(-1, -1);
+                    }
+                    append(answers - 1, 1, count);
+                } else if (colon < 0 && count == 3) {
+                    // length of the message to come
+                    start(-1, value(0, 3));
+                } else if (colon < 0) {
+                    start(-1, count / 2);
+                    append(answers - 1, 0, count);
+                }
+                return;
+            case LEGACY:
+                // priority, target, source, data and checksum
+                if (count >= 8) {
+                    final int answer = answerOf(value(4, 2));
+                    if (answer >= 0) {
+                        append(answer, 6, count - 2);
+                    }
+                }
+                return;
+            default:
+                final int header = headers == Headers.CAN_11 ? 3 : 8;
+                if (count < header + 2) {
+                    return;
+                }
+                final int ecu = value(0, header);
+                final int pci = value(header, 2);
+                switch (pci >> 4) {
+                    case 0:
+                        // single frame
+                        if (restart(ecu, pci & 0x0F)) {
+                            append(answers - 1, header + 2, count);
+                        }
+                        break;
+                    case 1:
+                        // first frame, 12 bit length
+                        if (count >= header + 4 && restart(ecu, (pci & 0x0F) << 8 | value(header + 2, 2))) {
+                            append(answers - 1, header + 4, count);
+                        }
+                        break;
+                    case 2:
+                        // consecutive frame
+                        final int answer = find(ecu);
+                        if (answer >= 0) {
+                            append(answer, header + 2, count);
+                        }
+                        break;
+                    default:
+                        // flow control, or not ISO-TP
+                        break;
+                }
+        }
+    }
+
+    /**
+     * Starts the message of an ECU again, it's the last answer then.
+     *
+     * @return false if there are too many answers already.
+     */
+    private boolean restart(int ecu, int length) {
+        final int answer = find(ecu);
+        if (answer >= 0) {
+            // a new message from the same ECU replaces the one in progress
+            final int last = answers - 1;
+            final byte[] payload = payloads[answer];
+            ecus[answer] = ecus[last];
+            payloads[answer] = payloads[last];
+            lengths[answer] = lengths[last];
+            expected[answer] = expected[last];
+            payloads[last] = payload;
+            answers--;
+        }
+        return start(ecu, length);
+    }
+
+    private boolean start(int ecu, int length) {
+        if (answers == MAX_ANSWERS) {
+            return false;
+        }
+        ecus[answers] = ecu;
+        lengths[answers] = 0;
+        expected[answers] = length;
+        if (payloads[answers] == null) {
+            payloads[answers] = new byte[64];
+        }
+        answers++;
+        return true;
+    }
+
+    private int answerOf(int ecu) {
+        final int answer = find(ecu);
+        if (answer >= 0) {
+            return answer;
+        }
+        return start(ecu, -1) ? answers - 1 : -1;
+    }
+
+    private int find(int ecu) {
+        for (int i = 0; i < answers; i++) {
+            if (ecus[i] == ecu) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Appends the bytes in the nibbles from..to to an answer, up to its
+     * expected length.
+     */
+    private void append(int answer, int from, int to) {
+        int length = lengths[answer];
+        int limit = expected[answer] >= 0 ? expected[answer] : Integer.MAX_VALUE;
+        byte[] payload = payloads[answer];
+        for (int i = from; i + 1 < to && length < limit; i += 2) {
+            if (length == payload.length) {
+                payload = payloads[answer] = Arrays.copyOf(payload, length * 2);
+            }
+            payload[length++] = (byte) (nibbles[i] << 4 | nibbles[i + 1]);
+        }
+        lengths[answer] = length;
+    }
+
+    private static int value(int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            value = value << 4 | nibbles[i];
+        }
+        return value;
+    }
+
+    @Override
+    protected void performCalculations() {
+        // done while reading
+    }
+
+    /**
+     * @return the payloads in hex, prefixed with their ECU with headers on,
+     * e.g. "7E8:4902013144...", comma separated.
+     */
+    @Override
+    public String getFormattedResult() {
+        if (rawData != null) {
+            return rawData;
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < answers; i++) {
+            if (i > 0) {
+                result.append(',');
+            }
+            if (ecus[i] >= 0) {
+                result.append(headers.format(ecus[i])).append(':');
+            }
+            for (int j = 0; j < lengths[i]; j++) {
+                result.append(String.format("%02X", payloads[i][j]));
+            }
+        }
+        return result.toString();
+    }
+
+    @Override
+    public String getResult() {
+        return getFormattedResult();
+    }
+
+    @Override
+    public String getCalculatedResult() {
+        return getFormattedResult();
+    }
+
+    @Override
+    public String getName() {
+        return cmd;
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.pires.obd.reader.commands;
+
+import com.github.pires.obd.commands.protocol.ObdProtocolCommand;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends a raw request and keeps its answer line by line. The stock commands
+ * strip all whitespace from an answer, which merges the lines of several
+ * ECUs or of a multi-frame message into one string; this one doesn't.
+ */
+public class MultiLineCommand extends ObdProtocolCommand {
+
+    private final List<String> lines = new ArrayList<>();
+
+    /**
+     * @param command the request, e.g. "01 00".
+     */
+    public MultiLineCommand(String command) {
+        super(command);
+    }
+
+    @Override
+    protected void readRawData(InputStream in) throws IOException {
+        StringBuilder res = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            char c = (char) b;
+            if (c == '>') {
+                break;
+            }
+            res.append(c);
+        }
+
+        lines.clear();
+        StringBuilder joined = new StringBuilder();
+        for (String line : res.toString().split("[\r\n]+")) {
+            line = line.replace(" ", "").trim();
+            if (line.isEmpty() || line.startsWith("SEARCHING")) {
+                continue;
+            }
+            lines.add(line);
+            if (joined.length() > 0) {
+                joined.append('\n');
+            }
+            joined.append(line);
+        }
+        rawData = joined.toString();
+    }
+
+    /**
+     * @return the answer lines, without spaces.
+     */
+    public List<String> getLines() {
+        return lines;
+    }
+
+    @Override
+    public String getFormattedResult() {
+        return getResult();
+    }
+
+    @Override
+    public String getName() {
+        return cmd;
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.github.pires.obd.reader.commands;
+
+import com.github.pires.obd.enums.AvailableCommandNames;
+
+/**
+ * The Mode 01 PIDs {@link PidCommand} decodes natively, with the formulas and
+ * formatting of their obd-java-api counterparts, so both can be mixed freely.
+ */
+public enum Pid {
+
+    ENGINE_LOAD(0x04, 1, Kind.PERCENTAGE, AvailableCommandNames.ENGINE_LOAD),
+    ENGINE_COOLANT_TEMP(0x05, 1, Kind.TEMPERATURE, AvailableCommandNames.ENGINE_COOLANT_TEMP),
+    INTAKE_MANIFOLD_PRESSURE(0x0B, 1, Kind.PRESSURE, AvailableCommandNames.INTAKE_MANIFOLD_PRESSURE),
+    ENGINE_RPM(0x0C, 2, Kind.RPM, AvailableCommandNames.ENGINE_RPM),
+    SPEED(0x0D, 1, Kind.SPEED, AvailableCommandNames.SPEED),
+    AIR_INTAKE_TEMP(0x0F, 1, Kind.TEMPERATURE, AvailableCommandNames.AIR_INTAKE_TEMP),
+    MAF(0x10, 2, Kind.MAF, AvailableCommandNames.MAF),
+    THROTTLE_POS(0x11, 1, Kind.PERCENTAGE, AvailableCommandNames.THROTTLE_POS),
+    ENGINE_RUNTIME(0x1F, 2, Kind.RUNTIME, AvailableCommandNames.ENGINE_RUNTIME),
+    FUEL_LEVEL(0x2F, 1, Kind.PERCENTAGE, AvailableCommandNames.FUEL_LEVEL),
+    BAROMETRIC_PRESSURE(0x33, 1, Kind.PRESSURE, AvailableCommandNames.BAROMETRIC_PRESSURE),
+    CONTROL_MODULE_VOLTAGE(0x42, 2, Kind.VOLTAGE, AvailableCommandNames.CONTROL_MODULE_VOLTAGE),
+    AMBIENT_AIR_TEMP(0x46, 1, Kind.TEMPERATURE, AvailableCommandNames.AMBIENT_AIR_TEMP),
+    ENGINE_OIL_TEMP(0x5C, 1, Kind.TEMPERATURE, AvailableCommandNames.ENGINE_OIL_TEMP),
+    FUEL_CONSUMPTION_RATE(0x5E, 2, Kind.FUEL_RATE, AvailableCommandNames.FUEL_CONSUMPTION_RATE);
+
+    private enum Kind {
+        PERCENTAGE, TEMPERATURE, PRESSURE, RPM, SPEED, MAF, RUNTIME, VOLTAGE, FUEL_RATE
+    }
+
+    private final int pid;
+    private final int bytes;
+    private final Kind kind;
+    private final AvailableCommandNames name;
+
+    Pid(int pid, int bytes, Kind kind, AvailableCommandNames name) {
+        this.pid = pid;
+        this.bytes = bytes;
+        this.kind = kind;
+        this.name = name;
+    }
+
+    /**
+     * @return the PID matching the given Mode 01 request, e.g. "01 0C", or null.
+     */
+    public static Pid forCommand(String command) {
+        final String c = command.replace(" ", "");
+        if (c.length() != 4 || !c.startsWith("01")) {
+            return null;
+        }
+        final int number;
+        try {
+            number = Integer.parseInt(c.substring(2), 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        for (Pid pid : values()) {
+            if (pid.pid == number) {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public int getPid() {
+        return pid;
+    }
+
+    /**
+     * @return the number of data bytes of the answer.
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    public String getName() {
+        return name.getValue();
+    }
+
+    /**
+     * @return the request, e.g. "01 0C".
+     */
+    public String getCommand() {
+        return String.format("01 %02X", pid);
+    }
+
+    /**
+     * @param a first data byte.
+     * @param b second data byte, 0 for single byte PIDs.
+     * @return the value in metric units.
+     */
+    double decode(int a, int b) {
+        switch (kind) {
+            case PERCENTAGE:
+                return a * 100.0f / 255.0f;
+            case TEMPERATURE:
+                return (float) (a - 40);
+            case RPM:
+                return (a * 256 + b) / 4;
+            case MAF:
+                return (a * 256 + b) / 100.0f;
+            case RUNTIME:
+                return a * 256 + b;
+            case VOLTAGE:
+                return (a * 256 + b) / 1000.0;
+            case FUEL_RATE:
+                return (a * 256 + b) * 0.05f;
+            default:
+                // PRESSURE, SPEED
+                return a;
+        }
+    }
+
+    String getUnit(boolean imperial) {
+        switch (kind) {
+            case PERCENTAGE:
+                return "%";
+            case TEMPERATURE:
+                return imperial ? "F" : "C";
+            case PRESSURE:
+                return imperial ? "psi" : "kPa";
+            case RPM:
+                return "RPM";
+            case SPEED:
+                return imperial ? "mph" : "km/h";
+            case MAF:
+                return "g/s";
+            case VOLTAGE:
+                return "V";
+            case FUEL_RATE:
+                return "L/h";
+            default:
+                return "s";
+        }
+    }
+
+    String format(double value, boolean imperial) {
+        switch (kind) {
+            case PERCENTAGE:
+            case FUEL_RATE:
+            case VOLTAGE:
+                return String.format("%.1f%s", (float) value, getUnit(imperial));
+            case TEMPERATURE:
+                return imperial
+                        ? String.format("%.1f%s", (float) value * 1.8f + 32, getUnit(true))
+                        : String.format("%.0f%s", (float) value, getUnit(false));
+            case PRESSURE:
+                return imperial
+                        ? String.format("%.1f%s", (int) value * 0.14503774f, getUnit(true))
+                        : String.format("%d%s", (int) value, getUnit(false));
+            case SPEED:
+                return imperial
+                        ? String.format("%.2f%s", (int) value * 0.6213712f, getUnit(true))
+                        : String.format("%d%s", (int) value, getUnit(false));
+            case MAF:
+                return String.format("%.2f%s", (float) value, getUnit(imperial));
+            case RUNTIME:
+                final int seconds = (int) value;
+                return String.format("%02d", seconds / 3600) + ":"
+                        + String.format("%02d", seconds % 3600 / 60) + ":"
+                        + String.format("%02d", seconds % 60);
+            default:
+                // RPM
+                return String.format("%d%s", (int) value, getUnit(imperial));
+        }
+    }
+
+    String calculate(double value, boolean imperial) {
+        switch (kind) {
+            case PERCENTAGE:
+            case MAF:
+            case FUEL_RATE:
+                return String.valueOf((float) value);
+            case TEMPERATURE:
+                return String.valueOf(imperial ? (float) value * 1.8f + 32 : (float) value);
+            case PRESSURE:
+                return imperial ? String.valueOf((int) value * 0.14503774f) : String.valueOf((int) value);
+            case SPEED:
+                return imperial ? String.valueOf((int) value * 0.6213712f) : String.valueOf((int) value);
+            case VOLTAGE:
+                return String.valueOf(value);
+            default:
+                // RPM, RUNTIME
+                return String.valueOf((int) value);
+        }
+    }
+}
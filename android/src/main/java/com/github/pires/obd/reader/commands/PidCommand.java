@@ -0,0 +1,377 @@
+package com.github.pires.obd.reader.commands;
+
+import com.github.pires.obd.commands.ObdCommand;
+import com.github.pires.obd.exceptions.BusInitException;
+import com.github.pires.obd.exceptions.MisunderstoodCommandException;
+import com.github.pires.obd.exceptions.NoDataException;
+import com.github.pires.obd.exceptions.NonNumericResponseException;
+import com.github.pires.obd.exceptions.ResponseException;
+import com.github.pires.obd.exceptions.StoppedException;
+import com.github.pires.obd.exceptions.UnableToConnectException;
+import com.github.pires.obd.exceptions.UnknownErrorException;
+import com.github.pires.obd.exceptions.UnsupportedCommandException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads a {@link Pid}, or a {@link PidDefinition} loaded at runtime, and
+ * decodes its answer straight from the bytes into a primitive value. Unlike
+ * the obd-java-api commands there is no String, regex or list of boxed
+ * Integers on the way; the formatted result is only built when asked for.
+ * Errors are detected as the stock commands do and raise the same
+ * exceptions.
+ * <p/>
+ * With headers off the first answer to this PID is used. With headers on
+ * (see {@link #setHeaders}) the answers of all ECUs are kept apart, up to
+ * {@link #MAX_ANSWERS}. Lines that aren't data, like "SEARCHING...", are
+ * skipped.
+ */
+public class PidCommand extends ObdCommand {
+
+    public static final int MAX_ANSWERS = 8;
+
+    /**
+     * How the ELM327 prefixes each answer line once headers are on (ATH1).
+     */
+    public enum Headers {
+        NONE(0, 0),
+        /**
+         * 11 bit CAN: "7E8 03 41 0D 20", the ECU is the whole header.
+         */
+        CAN_11(3, 2),
+        /**
+         * 29 bit CAN: "18 DA F1 10 03 41 0D 20", the ECU is the whole header.
+         */
+        CAN_29(8, 2),
+        /**
+         * J1850 and ISO 9141/14230: "48 6B 10 41 0D 20 CS", the ECU is the
+         * source address, the last header byte.
+         */
+        LEGACY(6, 0);
+
+        private final int headerNibbles;
+        private final int pciNibbles;
+
+        Headers(int headerNibbles, int pciNibbles) {
+            this.headerNibbles = headerNibbles;
+            this.pciNibbles = pciNibbles;
+        }
+
+        /**
+         * @return the headers used with the given ELM327 protocol number.
+         */
+        public static Headers forProtocol(char protocol) {
+            switch (protocol) {
+                case '6':
+                case '8':
+                case 'B':
+                    return CAN_11;
+                case '7':
+                case '9':
+                case 'C':
+                    return CAN_29;
+                case '1':
+                case '2':
+                case '3':
+                case '4':
+                case '5':
+                    return LEGACY;
+                default:
+                    return NONE;
+            }
+        }
+
+        /**
+         * @return the ECU address as shown in the header, e.g. "7E8".
+         */
+        public String format(int ecu) {
+            switch (this) {
+                case CAN_11:
+                    return String.format("%03X", ecu);
+                case CAN_29:
+                    return String.format("%08X", ecu);
+                default:
+                    return String.format("%02X", ecu);
+            }
+        }
+    }
+
+    /**
+     * Answers are read into this buffer, which needs no lock of its own as
+     * {@link ObdCommand#run} holds the ObdCommand class lock while reading.
+     */
+    private static final byte[] BUFFER = new byte[512];
+    /**
+     * The data bytes of the answer line being decoded, same lock.
+     */
+    private static final int[] DATA = new int[PidDefinition.MAX_BYTES];
+
+    private final Pid pid;
+    private final PidDefinition definition;
+    /**
+     * The bytes a data line starts with, e.g. 41 0C.
+     */
+    private final int[] prefix;
+    private final int dataBytes;
+    private Headers headers = Headers.NONE;
+    private int expectedAnswers = 0;
+    private final int[] ecus = new int[MAX_ANSWERS];
+    private final double[] values = new double[MAX_ANSWERS];
+    private int answers = 0;
+
+    public PidCommand(Pid pid) {
+        super(pid.getCommand());
+        this.pid = pid;
+        this.definition = null;
+        this.prefix = new int[]{0x41, pid.getPid()};
+        this.dataBytes = pid.getBytes();
+    }
+
+    public PidCommand(PidDefinition definition) {
+        super(definition.getRequest());
+        this.pid = null;
+        this.definition = definition;
+        this.prefix = definition.getPrefix();
+        this.dataBytes = definition.getBytes();
+    }
+
+    /**
+     * @return the standard PID read, null for a {@link PidDefinition}.
+     */
+    public Pid getPid() {
+        return pid;
+    }
+
+    /**
+     * @return the definition read, null for a standard PID.
+     */
+    public PidDefinition getDefinition() {
+        return definition;
+    }
+
+    /**
+     * Sets how answer lines are prefixed, to match the ATH setting.
+     */
+    public void setHeaders(Headers headers) {
+        this.headers = headers;
+    }
+
+    public Headers getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Appends the number of answers to wait for to the request (ELM327 1.3
+     * and later), so the adapter returns as soon as they're in instead of
+     * waiting for more ECUs to answer until it times out.
+     *
+     * @param expectedAnswers the number of ECUs carrying the PID, 0 to wait
+     *                        for all.
+     */
+    public void setExpectedAnswers(int expectedAnswers) {
+        this.expectedAnswers = Math.max(0, Math.min(9, expectedAnswers));
+    }
+
+    public int getExpectedAnswers() {
+        return expectedAnswers;
+    }
+
+    /**
+     * @return the value in metric units of the first answer, NaN if there's
+     * none.
+     */
+    public double getValue() {
+        return answers > 0 ? values[0] : Double.NaN;
+    }
+
+    /**
+     * @return the number of ECUs that answered.
+     */
+    public int getAnswerCount() {
+        return answers;
+    }
+
+    /**
+     * @return the index of the answer of the ECU with the lowest address (the
+     * engine, normally), the one a single value stream should follow.
+     */
+    public int getPrimaryAnswer() {
+        int primary = 0;
+        for (int i = 1; i < answers; i++) {
+            if (ecus[i] < ecus[primary]) {
+                primary = i;
+            }
+        }
+        return primary;
+    }
+
+    /**
+     * @return the value in metric units of the i-th answer.
+     */
+    public double getValue(int i) {
+        return values[i];
+    }
+
+    /**
+     * @return the address of the ECU of the i-th answer, -1 with headers off.
+     */
+    public int getEcu(int i) {
+        return ecus[i];
+    }
+
+    /**
+     * @return the formatted result of the i-th answer.
+     */
+    public String getFormattedResult(int i) {
+        return pid != null ? pid.format(values[i], useImperialUnits) : definition.format(values[i]);
+    }
+
+    @Override
+    protected void sendCommand(OutputStream out) throws IOException, InterruptedException {
+        if (expectedAnswers == 0) {
+            super.sendCommand(out);
+            return;
+        }
+        out.write((cmd + " " + expectedAnswers + "\r").getBytes());
+        out.flush();
+        if (responseDelayInMs != null && responseDelayInMs > 0) {
+            Thread.sleep(responseDelayInMs);
+        }
+    }
+
+    @Override
+    protected void readResult(InputStream in) throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '>') {
+            if (length < BUFFER.length) {
+                BUFFER[length++] = (byte) b;
+            }
+        }
+        answers = 0;
+        decode(BUFFER, length);
+        if (answers == 0) {
+            throw error(new String(BUFFER, 0, length).replaceAll("\\s", ""));
+        }
+    }
+
+    /**
+     * Decodes every line answering this PID, each line being an optional
+     * header and PCI byte, then the prefix (41 and the PID, or the positive
+     * answer of a definition) and the data bytes.
+     */
+    private void decode(byte[] buf, int length) {
+        final int skip = headers.headerNibbles + headers.pciNibbles;
+        int nibbles = 0;
+        int index = 0;
+        int current = 0;
+        int ecu = -1;
+        boolean isData = true;
+        final int wantedEcu = definition != null && headers != Headers.NONE ? definition.getEcu() : -1;
+        for (int i = 0; i <= length; i++) {
+            final int c = i < length ? buf[i] & 0xFF : '\r';
+            if (c == '\r' || c == '\n') {
+                if (isData && index >= prefix.length + dataBytes && (nibbles - skip) % 2 == 0
+                        && (wantedEcu < 0 || ecu == wantedEcu)) {
+                    ecus[answers] = ecu;
+                    values[answers] = pid != null ? pid.decode(DATA[0], DATA[1]) : definition.decode(DATA);
+                    answers++;
+                    if (headers == Headers.NONE || answers == MAX_ANSWERS) {
+                        return;
+                    }
+                }
+                nibbles = 0;
+                index = 0;
+                current = 0;
+                ecu = -1;
+                isData = true;
+                continue;
+            }
+            if (c == ' ' || !isData) {
+                continue;
+            }
+            final int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                // not a data line, e.g. SEARCHING... or an error
+                isData = false;
+                continue;
+            }
+            nibbles++;
+            if (nibbles <= headers.headerNibbles) {
+                if (headers != Headers.LEGACY || nibbles > 4) {
+                    // legacy headers end with the source address
+                    ecu = Math.max(ecu, 0) << 4 | digit;
+                }
+                continue;
+            }
+            if (nibbles <= skip) {
+                continue;
+            }
+            current = current << 4 | digit;
+            if ((nibbles - skip) % 2 == 0) {
+                if (index < prefix.length) {
+                    isData = current == prefix[index];
+                } else if (index - prefix.length < dataBytes) {
+                    DATA[index - prefix.length] = current;
+                }
+                index++;
+                current = 0;
+            }
+        }
+    }
+    /**
+     * Only called when the answer holds no value, so a String doesn't hurt.
+     */
+    private RuntimeException error(String response) {
+        rawData = response;
+        return responseError(cmd, response);
+    }
+
+    /**
+     * @return the exception the stock commands raise for the given answer
+     * to the given request.
+     */
+    static RuntimeException responseError(String cmd, String response) {
+        final ResponseException[] errors = {
+                new UnableToConnectException(), new BusInitException(),
+                new MisunderstoodCommandException(), new NoDataException(),
+                new StoppedException(), new UnknownErrorException(),
+                new UnsupportedCommandException()
+        };
+        for (ResponseException e : errors) {
+            e.setCommand(cmd);
+            if (e.isError(response)) {
+                return e;
+            }
+        }
+        return new NonNumericResponseException(response);
+    }
+
+    @Override
+    protected void performCalculations() {
+        // done while reading
+    }
+
+    @Override
+    public String getFormattedResult() {
+        return pid != null ? pid.format(getValue(), useImperialUnits) : definition.format(getValue());
+    }
+
+    @Override
+    public String getCalculatedResult() {
+        return pid != null ? pid.calculate(getValue(), useImperialUnits) : String.valueOf(getValue());
+    }
+
+    @Override
+    public String getResultUnit() {
+        return pid != null ? pid.getUnit(useImperialUnits) : definition.getUnit();
+    }
+
+    @Override
+    public String getName() {
+        return pid != null ? pid.getName() : definition.getId();
+    }
+
+}
@@ -0,0 +1,175 @@
+package com.github.pires.obd.reader.commands;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A PID defined at runtime rather than in {@link Pid}, typically a
+ * manufacturer specific one (Mode 21 or 22), read by a {@link PidCommand}
+ * like the standard PIDs.
+ * <p/>
+ * The positive answer to a request starts with its service ID plus 40 and
+ * echoes the rest of the request, e.g. "62 19 40" for "22 19 40", followed
+ * by the data bytes the formula decodes.
+ */
+public class PidDefinition {
+
+    /**
+     * The data bytes a definition can read, A to Z.
+     */
+    public static final int MAX_BYTES = 26;
+
+    private final String id;
+    private final String name;
+    private final String request;
+    private final int[] prefix;
+    private final String header;
+    private final int ecu;
+    private final int bytes;
+    private final Formula formula;
+    private final String unit;
+
+    private PidDefinition(JSONObject json) throws JSONException {
+        id = json.getString("id");
+        name = json.optString("name", id);
+        unit = json.optString("unit", "");
+        request = json.getString("request").replace(" ", "").toUpperCase(Locale.US);
+        if (request.length() < 2 || request.length() % 2 != 0 || !request.matches("[0-9A-F]+")) {
+            throw new JSONException("PID " + id + ": request must be hex bytes, e.g. '22 1940'");
+        }
+        prefix = new int[request.length() / 2];
+        for (int i = 0; i < prefix.length; i++) {
+            prefix[i] = Integer.parseInt(request.substring(i * 2, i * 2 + 2), 16);
+        }
+        // positive answer to the service
+        prefix[0] += 0x40;
+
+        final String h = json.optString("header", "").replace(" ", "").toUpperCase(Locale.US);
+        if (!h.isEmpty() && !h.matches("[0-9A-F]{3}|[0-9A-F]{6}")) {
+            throw new JSONException("PID " + id + ": header must be 3 or 6 hex digits, e.g. '7E0'");
+        }
+        header = h.isEmpty() ? null : h;
+        final String e = json.optString("ecu", "").replace(" ", "");
+        try {
+            ecu = e.isEmpty() ? -1 : Integer.parseInt(e, 16);
+        } catch (NumberFormatException x) {
+            throw new JSONException("PID " + id + ": ecu must be hex, e.g. '7E8'");
+        }
+
+        try {
+            formula = Formula.compile(json.getString("formula"));
+        } catch (IllegalArgumentException x) {
+            throw new JSONException("PID " + id + ": " + x.getMessage());
+        }
+        bytes = json.optInt("bytes", formula.getBytes());
+        if (bytes < formula.getBytes() || bytes > MAX_BYTES) {
+            throw new JSONException("PID " + id + ": bytes must cover the formula and be at most " + MAX_BYTES);
+        }
+    }
+
+    /**
+     * Compiles a definition file, e.g.
+     * <pre>
+     * [{"id": "TRANS_TEMP", "name": "Transmission temperature", "request": "22 1940",
+     *   "header": "7E1", "ecu": "7E9", "bytes": 2, "formula": "(A*256+B)/16 - 40", "unit": "C"}]
+     * </pre>
+     * "header" is the request header to send it with (ATSH), the functional
+     * one by default; "ecu" the ECU whose answer to use when answers carry
+     * headers, the first one by default; "bytes" defaults to the last byte
+     * the formula reads. "name" defaults to the id, "unit" to none.
+     *
+     * @throws JSONException if a definition isn't valid, or an id is used
+     *                       twice or by a standard {@link Pid}.
+     */
+    public static List<PidDefinition> parse(String definitions) throws JSONException {
+        final JSONArray json = new JSONArray(definitions);
+        final List<PidDefinition> list = new ArrayList<>();
+        final Set<String> ids = new HashSet<>();
+        for (int i = 0; i < json.length(); i++) {
+            final PidDefinition definition = new PidDefinition(json.getJSONObject(i));
+            if (isStandard(definition.id)) {
+                throw new JSONException("PID " + definition.id + " is a standard PID");
+            }
+            if (!ids.add(definition.id)) {
+                throw new JSONException("PID " + definition.id + " is defined twice");
+            }
+            list.add(definition);
+        }
+        return list;
+    }
+
+    private static boolean isStandard(String id) {
+        for (Pid pid : Pid.values()) {
+            if (pid.name().equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the stream ID, the cmdID of its values.
+     */
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the request, e.g. "221940".
+     */
+    public String getRequest() {
+        return request;
+    }
+
+    /**
+     * @return the header to send the request with, null for the functional
+     * one.
+     */
+    public String getHeader() {
+        return header;
+    }
+
+    /**
+     * @return the ECU to take the answer of, -1 for the first one.
+     */
+    public int getEcu() {
+        return ecu;
+    }
+
+    /**
+     * @return the number of data bytes of the answer.
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * @return the bytes an answer starts with, e.g. 62 19 40.
+     */
+    int[] getPrefix() {
+        return prefix;
+    }
+
+    double decode(int[] data) {
+        return formula.evaluate(data);
+    }
+
+    String format(double value) {
+        return String.format("%.2f%s", value, unit);
+    }
+}
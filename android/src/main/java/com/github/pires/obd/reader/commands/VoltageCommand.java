@@ -0,0 +1,40 @@
+package com.github.pires.obd.reader.commands;
+
+import com.github.pires.obd.commands.protocol.ObdProtocolCommand;
+
+/**
+ * Reads the battery voltage seen by the adapter (AT RV). It's answered by the
+ * adapter itself, so it costs no bus time and works with the ignition off.
+ */
+public class VoltageCommand extends ObdProtocolCommand {
+
+    public VoltageCommand() {
+        super("AT RV");
+    }
+
+    /**
+     * @return the voltage in volts, or NaN if the answer couldn't be parsed.
+     */
+    public double getVoltage() {
+        if (rawData == null) {
+            return Double.NaN;
+        }
+        int end = rawData.indexOf('V');
+        try {
+            return Double.parseDouble(end > 0 ? rawData.substring(0, end) : rawData);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    @Override
+    public String getFormattedResult() {
+        return getResult();
+    }
+
+    @Override
+    public String getName() {
+        return "Adapter Voltage";
+    }
+
+}
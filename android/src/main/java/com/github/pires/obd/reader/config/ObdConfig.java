@@ -9,14 +9,10 @@ import com.github.pires.obd.commands.control.ModuleVoltageCommand;
 import com.github.pires.obd.commands.control.TimingAdvanceCommand;
 import com.github.pires.obd.commands.control.TroubleCodesCommand;
 import com.github.pires.obd.commands.control.VinCommand;
-import com.github.pires.obd.commands.engine.LoadCommand;
 import com.github.pires.obd.commands.engine.MassAirFlowCommand;
 import com.github.pires.obd.commands.engine.OilTempCommand;
-import com.github.pires.obd.commands.engine.RPMCommand;
 import com.github.pires.obd.commands.engine.RuntimeCommand;
-import com.github.pires.obd.commands.engine.ThrottlePositionCommand;
 import com.github.pires.obd.commands.fuel.AirFuelRatioCommand;
-import com.github.pires.obd.commands.fuel.ConsumptionRateCommand;
 import com.github.pires.obd.commands.fuel.FindFuelTypeCommand;
 import com.github.pires.obd.commands.fuel.FuelLevelCommand;
 import com.github.pires.obd.commands.fuel.FuelTrimCommand;
@@ -29,6 +25,8 @@ import com.github.pires.obd.commands.temperature.AirIntakeTemperatureCommand;
 import com.github.pires.obd.commands.temperature.AmbientAirTemperatureCommand;
 import com.github.pires.obd.commands.temperature.EngineCoolantTemperatureCommand;
 import com.github.pires.obd.enums.FuelTrim;
+import com.github.pires.obd.reader.commands.Pid;
+import com.github.pires.obd.reader.commands.PidCommand;
 
 import java.util.ArrayList;
 
@@ -42,10 +40,10 @@ public final class ObdConfig {
 
         // Control
 
-        cmds.add(new LoadCommand());
-        cmds.add(new RPMCommand());
-        cmds.add(new ThrottlePositionCommand());
-        cmds.add(new ConsumptionRateCommand());
+        cmds.add(new PidCommand(Pid.ENGINE_LOAD));
+        cmds.add(new PidCommand(Pid.ENGINE_RPM));
+        cmds.add(new PidCommand(Pid.THROTTLE_POS));
+        cmds.add(new PidCommand(Pid.FUEL_CONSUMPTION_RATE));
         // cmds.add(new AverageFuelEconomyObdCommand());
         // cmds.add(new FuelEconomyCommand());
 
@@ -0,0 +1,292 @@
+package com.github.pires.obd.reader.config;
+
+import com.github.pires.obd.reader.commands.PidCommand.Headers;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What is known about a vehicle seen through a given adapter: its Mode 09
+ * info, the ECUs that answer, the protocol the adapter negotiated with it and
+ * how fast it answers. Stored by {@link VehicleProfileCache}.
+ */
+public class VehicleProfile {
+
+    /**
+     * Smoothing of the mean response time, per sample.
+     */
+    private static final double TIMING_WEIGHT = 0.05;
+    /**
+     * ATST timeouts are in units of 4 ms, this is 100 ms to 248 ms.
+     */
+    private static final int MIN_TIMEOUT = 25;
+    private static final int MAX_TIMEOUT = 62;
+
+    private String adapterAddress;
+    private String adapter = null;
+    private String adapterClass = null;
+    private String vin = null;
+    private String calibrationIds = null;
+    private char protocol = 0;
+    private final List<String> ecus = new ArrayList<>();
+    private double meanResponseTime = 0;
+    private long maxResponseTime = 0;
+    private int samples = 0;
+    private long updated = 0;
+
+    public VehicleProfile(String adapterAddress) {
+        this.adapterAddress = adapterAddress;
+    }
+
+    public String getAdapterAddress() {
+        return adapterAddress;
+    }
+
+    public void setAdapterAddress(String adapterAddress) {
+        this.adapterAddress = adapterAddress;
+    }
+
+    /**
+     * @return the adapter's identification, e.g. "ELM327v1.4b", or null.
+     */
+    public String getAdapter() {
+        return adapter;
+    }
+
+    /**
+     * @return the kind of adapter, one of {@link
+     * com.github.pires.obd.reader.io.AdapterProber.AdapterClass}, or null.
+     */
+    public String getAdapterClass() {
+        return adapterClass;
+    }
+
+    public void setAdapter(String adapter, String adapterClass) {
+        this.adapter = adapter;
+        this.adapterClass = adapterClass;
+    }
+
+    /**
+     * @return the VIN, or null if the vehicle doesn't report it.
+     */
+    public String getVin() {
+        return vin;
+    }
+
+    public void setVin(String vin) {
+        this.vin = vin;
+    }
+
+    /**
+     * @return the calibration IDs, comma separated, or null.
+     */
+    public String getCalibrationIds() {
+        return calibrationIds;
+    }
+
+    public void setCalibrationIds(String calibrationIds) {
+        this.calibrationIds = calibrationIds;
+    }
+
+    /**
+     * @return the ELM327 protocol number, as in ATSP, or 0 if not known yet.
+     */
+    public char getProtocol() {
+        return protocol;
+    }
+
+    public void setProtocol(char protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * @return the headers of the ECUs answering Mode 01, e.g. "7E8".
+     */
+    public List<String> getEcus() {
+        return ecus;
+    }
+
+    public void setEcus(List<String> ecus) {
+        this.ecus.clear();
+        this.ecus.addAll(ecus);
+    }
+
+    /**
+     * @return true once the protocol has been negotiated with this vehicle.
+     */
+    public boolean isKnown() {
+        return protocol != 0;
+    }
+
+    public double getMeanResponseTime() {
+        return meanResponseTime;
+    }
+
+    public long getMaxResponseTime() {
+        return maxResponseTime;
+    }
+
+    public long getUpdated() {
+        return updated;
+    }
+
+    public void setUpdated(long updated) {
+        this.updated = updated;
+    }
+
+    /**
+     * Accounts for the response time of one bus request.
+     *
+     * @param ms time from the request to the end of its answer.
+     */
+    public synchronized void addResponseTime(long ms) {
+        if (ms < 0) {
+            return;
+        }
+        meanResponseTime = samples == 0 ? ms : meanResponseTime + (ms - meanResponseTime) * TIMING_WEIGHT;
+        maxResponseTime = Math.max(maxResponseTime, ms);
+        samples++;
+    }
+
+    /**
+     * @return the ATST timeout to use for this vehicle, twice the slowest
+     * answer seen so far, within 100 ms to 248 ms.
+     */
+    public synchronized int getTimeout() {
+        if (samples == 0) {
+            return MAX_TIMEOUT;
+        }
+        final int timeout = (int) Math.ceil(maxResponseTime * 2 / 4.0);
+        return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("adapterAddress", adapterAddress);
+        json.putOpt("adapter", adapter);
+        json.putOpt("adapterClass", adapterClass);
+        json.putOpt("vin", vin);
+        json.putOpt("calibrationIds", calibrationIds);
+        if (protocol != 0) {
+            json.put("protocol", String.valueOf(protocol));
+        }
+        json.put("ecus", new JSONArray(ecus));
+        json.put("meanResponseTime", meanResponseTime);
+        json.put("maxResponseTime", maxResponseTime);
+        json.put("samples", samples);
+        json.put("updated", updated);
+        return json;
+    }
+
+    public static VehicleProfile fromJson(JSONObject json) throws JSONException {
+        VehicleProfile profile = new VehicleProfile(json.getString("adapterAddress"));
+        profile.adapter = json.optString("adapter", null);
+        profile.adapterClass = json.optString("adapterClass", null);
+        profile.vin = json.optString("vin", null);
+        profile.calibrationIds = json.optString("calibrationIds", null);
+        final String protocol = json.optString("protocol", "");
+        profile.protocol = protocol.isEmpty() ? 0 : protocol.charAt(0);
+        final JSONArray ecus = json.optJSONArray("ecus");
+        if (ecus != null) {
+            for (int i = 0; i < ecus.length(); i++) {
+                profile.ecus.add(ecus.getString(i));
+            }
+        }
+        profile.meanResponseTime = json.optDouble("meanResponseTime", 0);
+        profile.maxResponseTime = json.optLong("maxResponseTime", 0);
+        profile.samples = json.optInt("samples", 0);
+        profile.updated = json.optLong("updated", 0);
+        return profile;
+    }
+
+    /**
+     * Decodes the ASCII answer of a Mode 09 request (VIN, calibration IDs...)
+     * read with headers off, either as one CAN multi-frame message
+     * ("014", "0:490201...", "1:...") or as numbered lines ("490201...",
+     * "490202..."). Runs of padding bytes separate the values.
+     *
+     * @param lines the lines of the answer.
+     * @param pid   the Mode 09 PID, e.g. "02".
+     * @return the values, comma separated, or null if there are none.
+     */
+    public static String decodeAscii(List<String> lines, String pid) {
+        final String marker = "49" + pid;
+        StringBuilder hex = new StringBuilder();
+        for (String line : lines) {
+            boolean firstFrame = true;
+            if (line.length() > 2 && line.charAt(1) == ':') {
+                firstFrame = line.charAt(0) == '0';
+                line = line.substring(2);
+            } else if (line.length() <= 3) {
+                // CAN byte count
+                continue;
+            }
+            if (firstFrame && line.startsWith(marker)) {
+                // mode, PID and item count or line number
+                line = line.substring(Math.min(line.length(), marker.length() + 2));
+            }
+            hex.append(line);
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i + 1 < hex.length(); i += 2) {
+            final int b;
+            try {
+                b = Integer.parseInt(hex.substring(i, i + 2), 16);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (b > 0x20 && b < 0x7F) {
+                text.append((char) b);
+            } else if (text.length() > 0 && text.charAt(text.length() - 1) != ',') {
+                text.append(',');
+            }
+        }
+        if (text.length() > 0 && text.charAt(text.length() - 1) == ',') {
+            text.setLength(text.length() - 1);
+        }
+        return text.length() > 0 ? text.toString() : null;
+    }
+
+    /**
+     * Reads the headers of the ECUs that answered a request sent with
+     * headers on, e.g. "7E8" for 11 bit CAN, "18DAF110" for 29 bit CAN and
+     * the source address byte for the older protocols.
+     *
+     * @param lines    the lines of the answer.
+     * @param answer   the start of a positive answer, e.g. "4100".
+     * @param protocol the ELM327 protocol number, laid out as
+     *                 {@link Headers#forProtocol} tells.
+     */
+    public static List<String> decodeEcus(List<String> lines, String answer, char protocol) {
+        List<String> ecus = new ArrayList<>();
+        for (String line : lines) {
+            final int at = line.indexOf(answer);
+            if (at <= 0) {
+                continue;
+            }
+            final String header = line.substring(0, at);
+            final String ecu;
+            switch (Headers.forProtocol(protocol)) {
+                case CAN_11:
+                    ecu = header.substring(0, Math.min(3, header.length()));
+                    break;
+                case CAN_29:
+                    ecu = header.substring(0, Math.min(8, header.length()));
+                    break;
+                default:
+                    // priority, target, source
+                    ecu = header.length() >= 6 ? header.substring(4, 6) : header;
+                    break;
+            }
+            if (!ecus.contains(ecu)) {
+                ecus.add(ecu);
+            }
+        }
+        return ecus;
+    }
+}
@@ -0,0 +1,78 @@
+package com.github.pires.obd.reader.config;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps {@link VehicleProfile}s across app restarts, keyed by VIN (or by
+ * adapter address for vehicles without one), and remembers the vehicle each
+ * adapter was last plugged into.
+ */
+public class VehicleProfileCache {
+
+    private static final String TAG = VehicleProfileCache.class.getName();
+    private static final String PREFS_NAME = "obd2_vehicle_profiles";
+    private static final String ADAPTER_PREFIX = "adapter:";
+    private static final String PROFILE_PREFIX = "profile:";
+
+    private final SharedPreferences prefs;
+
+    public VehicleProfileCache(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the profile of the vehicle the adapter was last used with, or
+     * null if there's none.
+     */
+    public VehicleProfile forAdapter(String adapterAddress) {
+        final String key = prefs.getString(ADAPTER_PREFIX + adapterAddress, null);
+        return key != null ? load(key) : null;
+    }
+
+    /**
+     * @return the profile of the vehicle with the given VIN, or null.
+     */
+    public VehicleProfile forVin(String vin) {
+        return load(PROFILE_PREFIX + vin);
+    }
+
+    /**
+     * Stores the profile and makes it the one of its adapter.
+     */
+    public void put(VehicleProfile profile) {
+        final String key = PROFILE_PREFIX
+                + (profile.getVin() != null ? profile.getVin() : profile.getAdapterAddress());
+        profile.setUpdated(System.currentTimeMillis());
+        try {
+            prefs.edit()
+                    .putString(key, profile.toJson().toString())
+                    .putString(ADAPTER_PREFIX + profile.getAdapterAddress(), key)
+                    .apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to store vehicle profile. -> " + e.getMessage());
+        }
+    }
+
+    public void clear() {
+        prefs.edit().clear().apply();
+    }
+
+    private VehicleProfile load(String key) {
+        final String json = prefs.getString(key, null);
+        if (json == null) {
+            return null;
+        }
+        try {
+            return VehicleProfile.fromJson(new JSONObject(json));
+        } catch (JSONException e) {
+            Log.e(TAG, "Dropping unreadable vehicle profile. -> " + e.getMessage());
+            prefs.edit().remove(key).apply();
+            return null;
+        }
+    }
+}
@@ -1,25 +1,68 @@
 package com.github.pires.obd.reader.io;
 
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
 import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.github.pires.obd.commands.ObdCommand;
+import com.github.pires.obd.exceptions.UnsupportedCommandException;
+import com.github.pires.obd.reader.commands.IsoTpCommand;
+import com.github.pires.obd.reader.commands.PidCommand;
+import com.github.pires.obd.reader.commands.PidDefinition;
+import com.github.pires.obd.reader.commands.VoltageCommand;
+import com.github.pires.obd.reader.config.VehicleProfile;
+import com.github.pires.obd.reader.io.ObdCommandJob.ObdCommandJobState;
+
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
 
 public abstract class AbstractGatewayService extends Service {
     public static final int NOTIFICATION_ID = 1;
+    public static final String NOTIFICATION_CHANNEL_ID = "obd2_logging";
     private static final String TAG = AbstractGatewayService.class.getName();
     private final IBinder binder = new AbstractGatewayServiceBinder();
     protected Context ctx;
-    protected ObdProgressListener obdProgressListener;
+    protected Subscription defaultSubscription = null;
+    protected final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
     protected boolean isRunning = false;
+    protected boolean isForeground = false;
+    private PowerManager.WakeLock wakeLock = null;
     protected Long queueCounter = 0L;
-    protected BlockingQueue<ObdCommandJob> jobsQueue = new LinkedBlockingQueue<>();
+    protected BlockingDeque<ObdCommandJob> jobsQueue = new LinkedBlockingDeque<>();
+    protected IgnitionMonitor ignitionMonitor = null;
+    protected FaultProfile faultProfile = null;
+    protected VehicleProfiler vehicleProfiler = null;
+    protected AdapterProber adapterProber = null;
+    protected EcuRouter ecuRouter = null;
+    protected LatestValueTable latestValues = null;
+    protected volatile RateController rateController = new RateController();
+    /**
+     * The adapter header, as switched for PID definitions without the ECU
+     * router, which tracks its own.
+     */
+    protected final HeaderSwitch headerSwitch = new HeaderSwitch();
+    protected volatile boolean paused = false;
+    private volatile long keepAliveInterval = 0;
+    private volatile long nextKeepAlive = 0;
+    private ObdCommandJob keepAlive = null;
     // Run the executeQueue in a different thread to lighten the UI thread
     Thread t = new Thread(new Runnable() {
         @Override
@@ -41,6 +84,7 @@ public abstract class AbstractGatewayService extends Service {
     public void onCreate() {
         super.onCreate();
         Log.d(TAG, "Creating service..");
+        ObdCommandJob.anchorClock(System.currentTimeMillis(), elapsedNanos());
         t.start();
         Log.d(TAG, "Service created.");
     }
@@ -49,7 +93,8 @@ public abstract class AbstractGatewayService extends Service {
     public void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "Destroying service...");
-//        notificationManager.cancel(NOTIFICATION_ID);
+        stopForegroundLogging();
+        releaseWakeLock();
         t.interrupt();
         Log.d(TAG, "Service destroyed.");
     }
@@ -62,6 +107,324 @@ public abstract class AbstractGatewayService extends Service {
         return jobsQueue.isEmpty();
     }
 
+    /**
+     * @return true if the engine is off and polling should pause.
+     */
+    public boolean isIdle() {
+        return ignitionMonitor != null && ignitionMonitor.isIdle();
+    }
+
+    /**
+     * Stops polling but keeps the connection, the protocol and all that was
+     * learned of the adapter and vehicle, so {@link #resume} gets data back
+     * right away. Queued jobs still run, the caller stops queueing more.
+     *
+     * @param keepAliveInterval ms between reads of the adapter voltage while
+     *                          paused, so the adapter and the link don't go
+     *                          to sleep, 0 for none. No bus traffic.
+     */
+    public void pause(long keepAliveInterval) {
+        Log.d(TAG, "Pausing..");
+        this.keepAliveInterval = keepAliveInterval;
+        paused = true;
+        if (keepAliveInterval > 0) {
+            // wakes the gateway thread up, it may be waiting for a job
+            queueJob(newKeepAlive());
+        }
+    }
+
+    public void resume() {
+        Log.d(TAG, "Resuming..");
+        paused = false;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Enables the idle mode, or disables it when monitor is null.
+     */
+    public void setIgnitionMonitor(IgnitionMonitor monitor) {
+        ignitionMonitor = monitor;
+    }
+
+    /**
+     * @return the profile of the connected vehicle, or null if not connected.
+     */
+    public VehicleProfile getVehicleProfile() {
+        final VehicleProfiler profiler = vehicleProfiler;
+        return profiler != null ? profiler.getProfile() : null;
+    }
+
+    /**
+     * @return what was found of the connected adapter, or null if not
+     * connected.
+     */
+    public AdapterProber getAdapterProber() {
+        return adapterProber;
+    }
+
+    /**
+     * @return the request rate control of the connection.
+     */
+    public RateController getRateController() {
+        return rateController;
+    }
+
+    /**
+     * Queues the identification of the adapter, after which the fast paths
+     * it supports are turned on.
+     */
+    protected void queueAdapterProbes() {
+        adapterProber = new AdapterProber();
+        for (ObdCommandJob job : adapterProber.connectJobs()) {
+            queueJob(job);
+        }
+    }
+
+    /**
+     * Splits answers by ECU and addresses each PID to the ECUs carrying it
+     * from the next start on, or keeps headers off when router is null.
+     */
+    public void setEcuRouter(EcuRouter router) {
+        ecuRouter = router;
+    }
+
+    /**
+     * Publishes every live data value to the given table, or stops when
+     * table is null.
+     */
+    public void setLatestValueTable(LatestValueTable table) {
+        latestValues = table;
+    }
+
+    /**
+     * Queues the setup jobs of the ECU router, if any.
+     */
+    protected void queueRouterSetup() {
+        final EcuRouter router = ecuRouter;
+        if (router != null) {
+            for (ObdCommandJob job : router.setupJobs()) {
+                queueJob(job);
+            }
+        }
+    }
+
+    /**
+     * Injects the faults of the given profile into the transport from the
+     * next start on, or stops injecting when profile is null.
+     */
+    public void setFaultProfile(FaultProfile profile) {
+        faultProfile = profile;
+    }
+
+    /**
+     * @return the transport to use, wrapped in a fault injector if a fault
+     * profile is set.
+     */
+    protected ObdTransport withFaults(ObdTransport transport) {
+        return faultProfile != null ? new FaultInjectingTransport(transport, faultProfile) : transport;
+    }
+
+    /**
+     * Takes the next job to run, interleaving the ignition monitor probes with
+     * the queued jobs. Blocks until one of them is due. The monitor only
+     * starts probing once the connection setup has run: a parked voltage read
+     * during the protocol search would otherwise turn it idle before the
+     * adapter is set up.
+     */
+    protected ObdCommandJob nextJob() throws InterruptedException {
+        while (true) {
+            final IgnitionMonitor monitor = setupQueued() ? null : ignitionMonitor;
+            final long interval = paused ? keepAliveInterval : 0;
+            if (monitor == null && interval <= 0) {
+                return jobsQueue.take();
+            }
+            final long now = System.currentTimeMillis();
+            ObdCommandJob job = monitor != null ? monitor.nextProbe(now) : null;
+            if (job == null && interval > 0 && now >= nextKeepAlive) {
+                job = newKeepAlive();
+            }
+            if (job == null) {
+                long wait = monitor != null ? monitor.millisToNextProbe(now) : Long.MAX_VALUE;
+                if (interval > 0) {
+                    wait = Math.min(wait, nextKeepAlive - now);
+                }
+                job = jobsQueue.poll(wait, TimeUnit.MILLISECONDS);
+            }
+            if (job != null) {
+                return job;
+            }
+        }
+    }
+
+    /**
+     * @return true if a job setting up or probing the adapter or the vehicle
+     * is still queued.
+     */
+    private boolean setupQueued() {
+        for (ObdCommandJob job : jobsQueue) {
+            if (!job.isLiveData()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the clock jobs are timed on, in ns since boot. Unlike
+     * {@link System#nanoTime()} it keeps counting in deep sleep, so sample
+     * times don't fall behind the wall clock each time the device sleeps.
+     */
+    protected long elapsedNanos() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    private synchronized ObdCommandJob newKeepAlive() {
+        nextKeepAlive = System.currentTimeMillis() + keepAliveInterval;
+        keepAlive = new ObdCommandJob(new VoltageCommand());
+        keepAlive.setId(0L);
+        return keepAlive;
+    }
+
+    /**
+     * Runs a job on the given transport and sets its state accordingly,
+     * after the gap the rate controller leaves between requests. Whatever is
+     * left unread of earlier answers (e.g. after a garbled one) is dropped
+     * first, so one bad answer doesn't shift all the next ones.
+     * The request and answer times are taken on {@link #elapsedNanos}, around
+     * the command alone.
+     */
+    protected void runJob(ObdCommandJob job, ObdTransport transport) throws InterruptedException {
+        job.setState(ObdCommandJobState.RUNNING);
+        try {
+            if (transport == null || !transport.isConnected()) {
+                job.setState(ObdCommandJobState.BROKEN_PIPE);
+                Log.e(TAG, "Can't run command on a closed socket.");
+                return;
+            }
+            rateController.awaitGap();
+            final InputStream in = transport.getInputStream();
+            for (int stale = in.available(); stale > 0; stale = in.available()) {
+                if (in.skip(stale) <= 0 && in.read() == -1) {
+                    break;
+                }
+            }
+            final EcuRouter router = ecuRouter;
+            final AdapterProber prober = adapterProber;
+            if (router != null) {
+                // the prober tells if the adapter can be trusted with counts
+                router.beforeRun(job.getCommand(), prober != null && prober.isCountingAnswers(),
+                        in, transport.getOutputStream());
+            } else {
+                address(job.getCommand(), in, transport.getOutputStream());
+                if (prober != null) {
+                    prober.beforeRun(job.getCommand());
+                }
+            }
+            final long sent = elapsedNanos();
+            try {
+                job.getCommand().run(in, transport.getOutputStream());
+            } finally {
+                job.setTiming(sent, elapsedNanos());
+            }
+        } catch (InterruptedException i) {
+            throw i;
+        } catch (UnsupportedCommandException u) {
+            job.setState(ObdCommandJobState.NOT_SUPPORTED);
+            Log.d(TAG, "Command not supported. -> " + u.getMessage());
+        } catch (IOException io) {
+            final String message = io.getMessage();
+            if ((message != null && message.contains("Broken pipe")) || !transport.isConnected()) {
+                job.setState(ObdCommandJobState.BROKEN_PIPE);
+            } else {
+                job.setState(ObdCommandJobState.EXECUTION_ERROR);
+            }
+            Log.e(TAG, "IO error. -> " + message);
+        } catch (Exception e) {
+            job.setState(ObdCommandJobState.EXECUTION_ERROR);
+            Log.e(TAG, "Failed to run command. -> " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a PID definition with its header, and the next bus requests with
+     * the functional one again.
+     */
+    private void address(ObdCommand command, InputStream in, OutputStream out)
+            throws IOException, InterruptedException {
+        final PidDefinition definition = command instanceof PidCommand
+                ? ((PidCommand) command).getDefinition() : null;
+        if (definition != null && definition.getHeader() != null) {
+            headerSwitch.address(definition.getHeader(), in, out);
+        } else if (command instanceof PidCommand || command instanceof IsoTpCommand) {
+            headerSwitch.restore(in, out);
+        }
+    }
+
+    /**
+     * Hands a finished job to the subscribers, unless it was an internal job
+     * of the ignition monitor, the ECU router, the adapter prober or the
+     * vehicle profiler.
+     */
+    protected void jobFinished(final ObdCommandJob job) {
+        rateController.handleResult(job);
+        final IgnitionMonitor monitor = ignitionMonitor;
+        if (monitor != null) {
+            final boolean wasIdle = monitor.isIdle();
+            final boolean isProbe = monitor.handleResult(job);
+            if (!wasIdle && monitor.isIdle()) {
+                // the engine just went off, drop the live data still queued
+                // for it, the setup and probes still have to run
+                for (ObdCommandJob queued : jobsQueue) {
+                    if (queued.isLiveData()) {
+                        jobsQueue.remove(queued);
+                    }
+                }
+            }
+            if (isProbe) {
+                return;
+            }
+        }
+        if (job == keepAlive && job.getState() != ObdCommandJobState.BROKEN_PIPE) {
+            // the listeners still hear about a lost connection
+            return;
+        }
+        final EcuRouter router = ecuRouter;
+        if (router != null && router.handleResult(job, this)) {
+            return;
+        }
+        final AdapterProber prober = adapterProber;
+        if (prober != null && prober.handleResult(job, this)) {
+            return;
+        }
+        final VehicleProfiler profiler = vehicleProfiler;
+        if (profiler != null && profiler.handleResult(job, this)) {
+            return;
+        }
+        final LatestValueTable table = latestValues;
+        if (table != null) {
+            // straight from the gateway thread, readers don't wait for the UI hop
+            table.publish(job);
+        }
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(job);
+        }
+    }
+
+    /**
+     * Starts handing finished jobs to the given subscription, on its own
+     * executor, next to the other subscribers.
+     */
+    public void subscribe(Subscription subscription) {
+        subscriptions.add(subscription);
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
     /**
      * This method will add a job to the queue while setting its ID to the
      * internal queue counter.
@@ -82,38 +445,134 @@ public abstract class AbstractGatewayService extends Service {
         }
     }
 
+    /**
+     * Adds a job at the head of the queue, so it runs right after the job in
+     * progress, ahead of the polling jobs already queued.
+     *
+     * @param job the job to queue.
+     */
+    public void queueJobFirst(ObdCommandJob job) {
+        queueCounter++;
+        Log.d(TAG, "Adding job[" + queueCounter + "] to the head of the queue..");
+
+        job.setId(queueCounter);
+        try {
+            jobsQueue.putFirst(job);
+        } catch (InterruptedException e) {
+            job.setState(ObdCommandJob.ObdCommandJobState.QUEUE_ERROR);
+            Log.e(TAG, "Failed to queue job.");
+        }
+    }
+
     /**
      * Show a notification while this service is running.
      */
-    /*
-    protected void showNotification(String contentTitle, String contentText, int icon, boolean ongoing, boolean notify, boolean vibrate) {
-        final PendingIntent contentIntent = PendingIntent.getActivity(ctx, 0, new Intent(ctx, MainActivity.class), 0);
-        final NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(ctx);
+    // Builder(Context) is the only one before O, where there are no channels
+    @SuppressWarnings("deprecation")
+    protected Notification buildNotification(String contentTitle, String contentText, int icon, boolean ongoing) {
+        final Notification.Builder notificationBuilder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+            notificationManager.createNotificationChannel(new NotificationChannel(
+                    NOTIFICATION_CHANNEL_ID, "OBD-II logging", NotificationManager.IMPORTANCE_LOW));
+            notificationBuilder = new Notification.Builder(this, NOTIFICATION_CHANNEL_ID);
+        } else {
+            notificationBuilder = new Notification.Builder(this);
+        }
         notificationBuilder.setContentTitle(contentTitle)
                 .setContentText(contentText).setSmallIcon(icon)
-                .setContentIntent(contentIntent)
                 .setWhen(System.currentTimeMillis());
+        final Intent launchIntent = getPackageManager().getLaunchIntentForPackage(getPackageName());
+        if (launchIntent != null) {
+            int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0;
+            notificationBuilder.setContentIntent(PendingIntent.getActivity(this, 0, launchIntent, flags));
+        }
         // can cancel?
         if (ongoing) {
             notificationBuilder.setOngoing(true);
         } else {
             notificationBuilder.setAutoCancel(true);
         }
-        if (vibrate) {
-            notificationBuilder.setDefaults(Notification.DEFAULT_VIBRATE);
+        return notificationBuilder.build();
+    }
+
+    /**
+     * Promotes this service to a started foreground service, so polling keeps
+     * running after the app goes to the background and the UI unbinds.
+     * <p/>
+     * A foreground service doesn't keep the CPU awake: a partial wake lock is
+     * held until {@link #stopForegroundLogging}, or the gateway thread and the
+     * polling timers would stall once the screen goes off.
+     *
+     * @param contentTitle the title of the ongoing notification.
+     * @param contentText  the text of the ongoing notification.
+     */
+    public void startForegroundLogging(String contentTitle, String contentText) {
+        if (isForeground) {
+            return;
+        }
+        Log.d(TAG, "Starting foreground logging..");
+        // a started service outlives its bindings
+        startService(new Intent(this, getClass()));
+        startForeground(NOTIFICATION_ID, buildNotification(contentTitle, contentText,
+                getApplicationInfo().icon, true));
+        if (wakeLock == null) {
+            final PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+            wakeLock.setReferenceCounted(false);
+        }
+        wakeLock.acquire();
+        isForeground = true;
+    }
+
+    public void stopForegroundLogging() {
+        if (!isForeground) {
+            return;
         }
-        if (notify) {
-            notificationManager.notify(NOTIFICATION_ID, notificationBuilder.getNotification());
+        Log.d(TAG, "Stopping foreground logging..");
+        stopForeground(true);
+        releaseWakeLock();
+        isForeground = false;
+    }
+
+    private void releaseWakeLock() {
+        if (wakeLock != null && wakeLock.isHeld()) {
+            wakeLock.release();
         }
     }
-    */
+
+    public boolean isForegroundLogging() {
+        return isForeground;
+    }
 
     public void setContext(Context c) {
         ctx = c;
     }
 
+    /**
+     * Sets the main listener, called on the React UI queue thread. It's a
+     * subscription like the others, with a queue large enough to never drop
+     * at the polling rates of a single adapter.
+     */
     public void setOBDProgressListener(ObdProgressListener aListener) {
-        obdProgressListener = aListener;
+        if (defaultSubscription != null) {
+            unsubscribe(defaultSubscription);
+        }
+        defaultSubscription = new Subscription(aListener, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                ((ReactApplicationContext) ctx).runOnUiQueueThread(command);
+            }
+        });
+        defaultSubscription.setCapacity(4096);
+        subscribe(defaultSubscription);
+    }
+
+    /**
+     * @return the subscription of the main listener, for its metrics.
+     */
+    public Subscription getDefaultSubscription() {
+        return defaultSubscription;
     }
 
     abstract protected void executeQueue() throws InterruptedException;
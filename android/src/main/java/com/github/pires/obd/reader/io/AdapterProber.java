@@ -0,0 +1,231 @@
+package com.github.pires.obd.reader.io;
+
+import android.util.Log;
+
+import com.github.pires.obd.commands.ObdCommand;
+import com.github.pires.obd.reader.commands.MultiLineCommand;
+import com.github.pires.obd.reader.commands.PidCommand;
+import com.github.pires.obd.reader.config.VehicleProfile;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tells which adapter is behind the link and turns on what it can do faster.
+ * <p/>
+ * ATI gives the ELM327 version the chip claims, STI and STDI the firmware and
+ * device of an OBDLink (STN11xx, STN21xx, STN22xx), which an ELM327 doesn't
+ * know. Cheap clones claim versions whose commands they don't implement, v1.5
+ * most of all, which was never released: a claimed version is only trusted
+ * once the adapter has accepted aggressive adaptive timing (ATAT2, v1.2 on).
+ * <p/>
+ * On an STN or a genuine ELM327 adaptive timing is set to aggressive, so the
+ * adapter waits about as long as the vehicle takes to answer rather than the
+ * whole ATST timeout, and PID requests carry the number of answers expected
+ * (v1.3 on), so the adapter returns as soon as the ECU answered instead of
+ * waiting for others. Spaces are turned off in the answers (ATS0, v1.3 on),
+ * which cuts a third of the bytes of each: the adapter's send buffer then
+ * holds a third more of a long or multi-ECU answer before it overflows
+ * ("BUFFER FULL"), the larger buffer there is to get. The answers are read
+ * by hex digit, with or without spaces. Clones keep the defaults.
+ * <p/>
+ * The UART baud rate (ATBRD, STBR) is left alone: over Bluetooth the link
+ * runs at the radio's rate, the UART between the chip and the radio module
+ * is set by the module's firmware and can't follow.
+ */
+public class AdapterProber {
+
+    private static final String TAG = AdapterProber.class.getName();
+
+    private static final Pattern VERSION = Pattern.compile("v(\\d+)\\.(\\d)");
+
+    public enum AdapterClass {
+        /**
+         * Not probed yet, or not an ELM327 compatible answer.
+         */
+        UNKNOWN,
+        ELM327,
+        STN,
+        /**
+         * An ELM327 clone, which doesn't implement what its version claims.
+         */
+        CLONE
+    }
+
+    private final Set<ObdCommandJob> probes = new HashSet<>();
+    private ObdCommandJob identityProbe = null;
+    private ObdCommandJob stnProbe = null;
+    private ObdCommandJob deviceProbe = null;
+    private ObdCommandJob timingProbe = null;
+    private ObdCommandJob spacesProbe = null;
+
+    private String identity = null;
+    private String stnIdentity = null;
+    private String device = null;
+    /**
+     * The claimed ELM327 version times ten, e.g. 14 for v1.4b.
+     */
+    private int version = 0;
+    private volatile AdapterClass adapterClass = AdapterClass.UNKNOWN;
+    private volatile boolean countAnswers = false;
+
+    /**
+     * @return the identification requests, to queue once the adapter is reset.
+     */
+    public synchronized List<ObdCommandJob> connectJobs() {
+        List<ObdCommandJob> jobs = new ArrayList<>();
+        jobs.add(identityProbe = probe("AT I"));
+        jobs.add(stnProbe = probe("STI"));
+        jobs.add(deviceProbe = probe("STDI"));
+        return jobs;
+    }
+
+    /**
+     * Adds the number of answers to wait for to PID requests, when the
+     * adapter takes it. Not used with the ECU router on, which counts the
+     * answers of each PID itself when {@link #isCountingAnswers} says so.
+     */
+    public void beforeRun(ObdCommand command) {
+        if (countAnswers && command instanceof PidCommand) {
+            ((PidCommand) command).setExpectedAnswers(1);
+        }
+    }
+
+    /**
+     * Feeds a finished job to the prober.
+     *
+     * @param service the gateway, to queue more probes on.
+     * @return true if the job was a probe of this prober, which shouldn't be
+     * passed on to listeners.
+     */
+    public synchronized boolean handleResult(ObdCommandJob job, AbstractGatewayService service) {
+        final ObdCommand command = job.getCommand();
+        if (!probes.remove(job)) {
+            if (command instanceof PidCommand && ((PidCommand) command).getExpectedAnswers() > 0
+                    && "?".equals(command.getResult()) && countAnswers) {
+                Log.d(TAG, "Adapter doesn't take answer counts after all, a clone.");
+                countAnswers = false;
+                adapterClass = AdapterClass.CLONE;
+                record(service);
+            }
+            return false;
+        }
+
+        // failed probes keep their answer too, e.g. "?"
+        final String answer = firstLine(((MultiLineCommand) command).getLines());
+        if (job == identityProbe) {
+            identity = answer;
+            final Matcher m = answer != null ? VERSION.matcher(answer) : null;
+            if (m != null && answer.startsWith("ELM327") && m.find()) {
+                version = Integer.parseInt(m.group(1)) * 10 + Integer.parseInt(m.group(2));
+            }
+        } else if (job == stnProbe) {
+            stnIdentity = answer != null && answer.startsWith("STN") ? answer : null;
+        } else if (job == deviceProbe) {
+            device = stnIdentity != null ? answer : null;
+            classify(service);
+        } else if (job == timingProbe) {
+            if ("OK".equals(answer)) {
+                if (adapterClass == AdapterClass.UNKNOWN) {
+                    adapterClass = AdapterClass.ELM327;
+                }
+                countAnswers = adapterClass == AdapterClass.STN || version >= 13;
+                if (countAnswers) {
+                    service.queueJob(spacesProbe = probe("AT S0"));
+                }
+            } else {
+                Log.d(TAG, identity + " rejects ATAT2, a clone.");
+                adapterClass = AdapterClass.CLONE;
+            }
+            record(service);
+        } else if (job == spacesProbe && !"OK".equals(answer)) {
+            Log.d(TAG, identity + " rejects ATS0, answers keep their spaces.");
+        }
+        return true;
+    }
+
+    public AdapterClass getAdapterClass() {
+        return adapterClass;
+    }
+
+    /**
+     * @return the ATI answer, e.g. "ELM327v1.4b", or null.
+     */
+    public synchronized String getIdentity() {
+        return identity;
+    }
+
+    /**
+     * @return the STI answer of an STN adapter, e.g. "STN1110v4.2.1", or null.
+     */
+    public synchronized String getStnIdentity() {
+        return stnIdentity;
+    }
+
+    /**
+     * @return the STDI answer of an STN adapter, e.g. "OBDLinkMXr1.3", or null.
+     */
+    public synchronized String getDevice() {
+        return device;
+    }
+
+    /**
+     * @return true if PID requests carry the number of answers expected.
+     */
+    public boolean isCountingAnswers() {
+        return countAnswers;
+    }
+
+    /**
+     * @return the adapter in one string, e.g. "STN1110v4.2.1 OBDLinkMXr1.3",
+     * or null if it didn't identify.
+     */
+    public synchronized String describe() {
+        if (stnIdentity != null) {
+            return device != null ? stnIdentity + " " + device : stnIdentity;
+        }
+        return identity;
+    }
+
+    private void classify(AbstractGatewayService service) {
+        if (stnIdentity != null) {
+            adapterClass = AdapterClass.STN;
+        } else if (version == 15) {
+            adapterClass = AdapterClass.CLONE;
+        } else if (version < 12) {
+            // nothing to check a clone against before v1.2, nor to speed up
+            adapterClass = version > 0 ? AdapterClass.ELM327 : AdapterClass.UNKNOWN;
+        }
+        if (adapterClass == AdapterClass.STN || (adapterClass == AdapterClass.UNKNOWN && version >= 12)) {
+            service.queueJob(timingProbe = probe("AT AT2"));
+        } else {
+            record(service);
+        }
+    }
+
+    /**
+     * Stores what was found in the vehicle profile, so adapters can be told
+     * apart when comparing response times.
+     */
+    private void record(AbstractGatewayService service) {
+        Log.d(TAG, "Adapter " + describe() + ", " + adapterClass);
+        final VehicleProfile profile = service.getVehicleProfile();
+        if (profile != null) {
+            profile.setAdapter(describe(), adapterClass.name());
+        }
+    }
+
+    private ObdCommandJob probe(String command) {
+        ObdCommandJob job = new ObdCommandJob(new MultiLineCommand(command));
+        probes.add(job);
+        return job;
+    }
+
+    private static String firstLine(List<String> lines) {
+        return lines.isEmpty() ? null : lines.get(0);
+    }
+}
@@ -0,0 +1,246 @@
+package com.github.pires.obd.reader.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * An {@link ObdTransport} over Bluetooth LE, for the adapters that only
+ * speak GATT: requests are written to one characteristic and the answers
+ * come back as notifications of another, {@link GattPeer} on Android.
+ * <p/>
+ * Writes are held until the command flushes, then go out as few packets as
+ * the negotiated MTU allows, without response. Notifications arrive in
+ * fragments of up to MTU - 3 bytes; they are gathered in one ring buffer,
+ * grown once if ever needed and reused for every answer, and the gateway
+ * thread is only woken when an answer is complete, at the '>' prompt, rather
+ * than on every fragment.
+ */
+public class BleTransport implements ObdTransport {
+
+    /**
+     * The GATT side of the link.
+     */
+    public interface Peer {
+
+        /**
+         * @return the largest write, the ATT MTU less 3 bytes.
+         */
+        int getMaxPayload();
+
+        /**
+         * Writes one packet without response. Blocks until the stack has
+         * taken it, a peer only takes one write at a time.
+         */
+        void write(byte[] packet) throws IOException;
+
+        boolean isConnected();
+
+        void close();
+    }
+
+    private static final byte PROMPT = '>';
+
+    private final Peer peer;
+
+    private final Object lock = new Object();
+    private byte[] ring = new byte[1024];
+    private int head = 0;
+    private int count = 0;
+    private boolean closed = false;
+
+    private byte[] pending = new byte[64];
+    private int pendingLength = 0;
+
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            synchronized (lock) {
+                if (!awaitData()) {
+                    return -1;
+                }
+                final int b = ring[head] & 0xFF;
+                head = (head + 1) % ring.length;
+                count--;
+                return b;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            synchronized (lock) {
+                if (!awaitData()) {
+                    return -1;
+                }
+                final int n = Math.min(len, count);
+                final int first = Math.min(n, ring.length - head);
+                System.arraycopy(ring, head, b, off, first);
+                System.arraycopy(ring, 0, b, off + first, n - first);
+                head = (head + n) % ring.length;
+                count -= n;
+                return n;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (lock) {
+                return count;
+            }
+        }
+
+        @Override
+        public long skip(long n) {
+            synchronized (lock) {
+                final int skipped = (int) Math.min(n, count);
+                head = (head + skipped) % ring.length;
+                count -= skipped;
+                return skipped;
+            }
+        }
+    };
+
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) {
+            synchronized (this) {
+                reserve(1);
+                pending[pendingLength++] = (byte) b;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            synchronized (this) {
+                reserve(len);
+                System.arraycopy(b, off, pending, pendingLength, len);
+                pendingLength += len;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (this) {
+                final int max = Math.max(1, peer.getMaxPayload());
+                try {
+                    for (int sent = 0; sent < pendingLength; sent += max) {
+                        peer.write(Arrays.copyOfRange(pending, sent, Math.min(pendingLength, sent + max)));
+                    }
+                } finally {
+                    pendingLength = 0;
+                }
+            }
+        }
+
+        private void reserve(int len) {
+            if (pendingLength + len > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + len));
+            }
+        }
+    };
+
+    public BleTransport(Peer peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * Takes in a notification of the answer characteristic. Called by the
+     * peer, on its own thread.
+     */
+    public void onNotification(byte[] value) {
+        if (value == null || value.length == 0) {
+            return;
+        }
+        synchronized (lock) {
+            if (count + value.length > ring.length) {
+                grow(count + value.length);
+            }
+            final int tail = (head + count) % ring.length;
+            final int first = Math.min(value.length, ring.length - tail);
+            System.arraycopy(value, 0, ring, tail, first);
+            System.arraycopy(value, first, ring, 0, value.length - first);
+            count += value.length;
+            // the gateway reads answers up to the prompt, wake it once it's there
+            if (indexOf(value, PROMPT) >= 0) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Called by the peer when the link is lost; pending and later reads end
+     * the stream once what was received is read.
+     */
+    public void onDisconnected() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public boolean isConnected() {
+        synchronized (lock) {
+            if (closed) {
+                return false;
+            }
+        }
+        return peer.isConnected();
+    }
+
+    @Override
+    public void close() {
+        onDisconnected();
+        peer.close();
+    }
+
+    /**
+     * Waits until there's something to read, holding the lock.
+     *
+     * @return false at the end of the stream.
+     */
+    private boolean awaitData() throws InterruptedIOException {
+        while (count == 0 && !closed) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        return count > 0;
+    }
+
+    private void grow(int needed) {
+        byte[] grown = new byte[Math.max(ring.length * 2, Integer.highestOneBit(needed) << 1)];
+        final int first = Math.min(count, ring.length - head);
+        System.arraycopy(ring, head, grown, 0, first);
+        System.arraycopy(ring, 0, grown, first, count - first);
+        ring = grown;
+        head = 0;
+    }
+
+    private static int indexOf(byte[] value, byte b) {
+        for (int i = 0; i < value.length; i++) {
+            if (value[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -2,14 +2,32 @@ package com.github.pires.obd.reader.io;
 
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.util.Log;
 
+/**
+ * Connects RFCOMM sockets to Bluetooth adapters.
+ * <p/>
+ * Adapters differ in the socket they take: most answer the secure SPP
+ * service record, some clones only an insecure one, a few only the raw
+ * channel 1. Each {@link Strategy} is tried in turn with its own timeout, so
+ * a strategy that hangs doesn't hold up the next one, and the one that
+ * worked is remembered per adapter and tried first next time.
+ */
 public class BluetoothManager {
-	
+
     private static final String TAG = BluetoothManager.class.getName();
     /*
      * http://developer.android.com/reference/android/bluetooth/BluetoothDevice.html
@@ -21,39 +39,186 @@ public class BluetoothManager {
      * UUID."
      */
     private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final String PREFS_NAME = "obd2_bluetooth";
+    private static final String STRATEGY_PREFIX = "strategy:";
+
+    /**
+     * Closes the sockets of attempts running past their timeout, which makes
+     * their connect() throw.
+     */
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor();
+
+    public enum Strategy {
+        SECURE(10000) {
+            @Override
+            BluetoothSocket createSocket(BluetoothDevice dev) throws Exception {
+                return dev.createRfcommSocketToServiceRecord(MY_UUID);
+            }
+        },
+        INSECURE(10000) {
+            @Override
+            BluetoothSocket createSocket(BluetoothDevice dev) throws Exception {
+                return dev.createInsecureRfcommSocketToServiceRecord(MY_UUID);
+            }
+        },
+        /**
+         * See http://stackoverflow.com/questions/18657427/ioexception-read-failed-socket-might-closed-bluetooth-on-android-4-3/18786701#18786701
+         */
+        CHANNEL_1(8000) {
+            @Override
+            BluetoothSocket createSocket(BluetoothDevice dev) throws Exception {
+                Method m = dev.getClass().getMethod("createRfcommSocket", Integer.TYPE);
+                return (BluetoothSocket) m.invoke(dev, 1);
+            }
+        };
+
+        private final long timeout;
+
+        Strategy(long timeout) {
+            this.timeout = timeout;
+        }
+
+        /**
+         * @return the time an attempt may take, in ms.
+         */
+        public long getTimeout() {
+            return timeout;
+        }
+
+        abstract BluetoothSocket createSocket(BluetoothDevice dev) throws Exception;
+    }
 
     /**
      * @brief Instantiates a BluetoothSocket for the remote device and connects it.
      * <p/>
-     * See http://stackoverflow.com/questions/18657427/ioexception-read-failed-socket-might-closed-bluetooth-on-android-4-3/18786701#18786701
+     * The strategy that last worked with the device goes first, then the
+     * others in the order of {@link Strategy}.
      *
-     * @param dev The remote device to connect to
+     * @param context to remember the strategy of the device in
+     * @param dev     The remote device to connect to
      * @return The BluetoothSocket
-     * @throws IOException
+     * @throws IOException if no strategy connected
+     */
+    public static BluetoothSocket connect(Context context, final BluetoothDevice dev) throws IOException {
+        final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return connect(prefs, dev.getAddress(), new SocketFactory<BluetoothSocket>() {
+            @Override
+            public BluetoothSocket connect(Strategy strategy) throws IOException {
+                return BluetoothManager.connect(strategy, dev);
+            }
+        });
+    }
+
+    /**
+     * Connects a socket with one strategy.
+     */
+    interface SocketFactory<S> {
+        /**
+         * @return the connected socket.
+         * @throws IOException if the strategy didn't connect.
+         */
+        S connect(Strategy strategy) throws IOException;
+    }
+
+    /**
+     * Tries the strategies in turn, the remembered one first, and remembers
+     * the one that connected.
+     *
+     * @param prefs   to remember the strategy of the device in
+     * @param address of the device
+     * @param factory connects a socket with a strategy
+     * @return the socket of the first strategy that connected
+     * @throws IOException with the last failure if no strategy connected
      */
-    public static BluetoothSocket connect(BluetoothDevice dev) throws IOException {
-    	BluetoothSocket sock = null;
-        BluetoothSocket sockFallback = null;
+    static <S> S connect(SharedPreferences prefs, String address, SocketFactory<S> factory) throws IOException {
+        final String key = STRATEGY_PREFIX + address;
+        final Strategy remembered = parse(prefs.getString(key, null));
+        final List<Strategy> strategies = new ArrayList<>();
+        if (remembered != null) {
+            strategies.add(remembered);
+        }
+        for (Strategy strategy : Strategy.values()) {
+            if (strategy != remembered) {
+                strategies.add(strategy);
+            }
+        }
 
         Log.d(TAG, "Starting Bluetooth connection..");
-    	try {
-    		sock = dev.createRfcommSocketToServiceRecord(MY_UUID);
-    		sock.connect();
-        } catch (Exception e1) {
-            Log.e(TAG, "There was an error while establishing Bluetooth connection. Falling back..", e1);
-            Class<?> clazz = sock.getRemoteDevice().getClass();
-            Class<?>[] paramTypes = new Class<?>[]{Integer.TYPE};
+        IOException error = null;
+        for (Strategy strategy : strategies) {
+            final long start = System.currentTimeMillis();
             try {
-                Method m = clazz.getMethod("createRfcommSocket", paramTypes);
-                Object[] params = new Object[]{Integer.valueOf(1)};
-                sockFallback = (BluetoothSocket) m.invoke(sock.getRemoteDevice(), params);
-                sockFallback.connect();
-                sock = sockFallback;
-            } catch (Exception e2) {
-                Log.e(TAG, "Couldn't fallback while establishing Bluetooth connection.", e2);
-                throw new IOException(e2.getMessage());
+                final S sock = factory.connect(strategy);
+                Log.d(TAG, "Connected with " + strategy + " in " + (System.currentTimeMillis() - start) + " ms");
+                if (strategy != remembered) {
+                    prefs.edit().putString(key, strategy.name()).apply();
+                }
+                return sock;
+            } catch (IOException e) {
+                Log.e(TAG, strategy + " connection failed after " + (System.currentTimeMillis() - start)
+                        + " ms. -> " + e.getMessage());
+                error = e;
             }
         }
-    	return sock;
+        throw new IOException("Couldn't connect to " + address, error);
+    }
+
+    /**
+     * Forgets the strategies remembered for all devices.
+     */
+    public static void clear(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+    }
+
+    private static BluetoothSocket connect(Strategy strategy, BluetoothDevice dev) throws IOException {
+        final BluetoothSocket sock;
+        try {
+            sock = strategy.createSocket(dev);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Can't create the socket.", e);
+        }
+
+        final AtomicBoolean timedOut = new AtomicBoolean(false);
+        final ScheduledFuture<?> watchdog = WATCHDOG.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timedOut.set(true);
+                closeQuietly(sock);
+            }
+        }, strategy.getTimeout(), TimeUnit.MILLISECONDS);
+        try {
+            sock.connect();
+        } catch (IOException e) {
+            closeQuietly(sock);
+            throw timedOut.get() ? new IOException("Timed out after " + strategy.getTimeout() + " ms.") : e;
+        } finally {
+            watchdog.cancel(false);
+        }
+        if (timedOut.get()) {
+            // closed just as it connected
+            throw new IOException("Timed out after " + strategy.getTimeout() + " ms.");
+        }
+        return sock;
+    }
+
+    private static Strategy parse(String name) {
+        if (name == null) {
+            return null;
+        }
+        try {
+            return Strategy.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void closeQuietly(BluetoothSocket sock) {
+        try {
+            sock.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close the socket. -> " + e.getMessage());
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,39 @@
+package com.github.pires.obd.reader.io;
+
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An {@link ObdTransport} over a connected Bluetooth RFCOMM socket.
+ */
+public class BluetoothSocketTransport implements ObdTransport {
+
+    private final BluetoothSocket sock;
+
+    public BluetoothSocketTransport(BluetoothSocket sock) {
+        this.sock = sock;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return sock.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return sock.getOutputStream();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return sock.isConnected();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sock.close();
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.pires.obd.reader.io;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Caches the devices bonded to the Bluetooth adapter, so listing them
+ * doesn't go to the adapter every time, and tells a listener when the list
+ * changes: a device paired or unpaired, renamed, or Bluetooth turned on or
+ * off.
+ */
+public class BondedDevices {
+
+    private static final String TAG = BondedDevices.class.getName();
+
+    public interface Listener {
+        /**
+         * Called on the main thread.
+         *
+         * @param devices the bonded devices, empty while Bluetooth is off.
+         */
+        void onBondedDevicesChanged(Set<BluetoothDevice> devices);
+    }
+
+    private final Context context;
+    private final Listener listener;
+    /**
+     * The bonded devices, null until they're listed again.
+     */
+    private Set<BluetoothDevice> devices = null;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (BluetoothDevice.ACTION_NAME_CHANGED.equals(intent.getAction())
+                    && (device == null || device.getBondState() != BluetoothDevice.BOND_BONDED)) {
+                // discovery renames every device it finds
+                return;
+            }
+            Set<BluetoothDevice> changed;
+            synchronized (BondedDevices.this) {
+                final Set<BluetoothDevice> previous = devices;
+                devices = null;
+                try {
+                    changed = get();
+                } catch (IOException e) {
+                    changed = Collections.emptySet();
+                }
+                if (changed.equals(previous) && !BluetoothDevice.ACTION_NAME_CHANGED.equals(intent.getAction())) {
+                    // e.g. a bond started, not completed
+                    return;
+                }
+            }
+            Log.d(TAG, "Bonded devices changed, " + changed.size() + " now");
+            listener.onBondedDevicesChanged(changed);
+        }
+    };
+
+    public BondedDevices(Context context, Listener listener) {
+        this.context = context;
+        this.listener = listener;
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        filter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
+        filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+        context.registerReceiver(receiver, filter);
+    }
+
+    /**
+     * @return the bonded devices, from the cache unless they changed.
+     * @throws IOException if Bluetooth is off or missing.
+     */
+    public synchronized Set<BluetoothDevice> get() throws IOException {
+        if (devices == null) {
+            final BluetoothAdapter btAdapter = BluetoothAdapter.getDefaultAdapter();
+            if (btAdapter == null || !btAdapter.isEnabled()) {
+                throw new IOException("This device does not support Bluetooth or it is disabled.");
+            }
+            devices = Collections.unmodifiableSet(new HashSet<>(btAdapter.getBondedDevices()));
+        }
+        return devices;
+    }
+
+    /**
+     * Stops watching for changes.
+     */
+    public void close() {
+        context.unregisterReceiver(receiver);
+    }
+}
@@ -0,0 +1,208 @@
+package com.github.pires.obd.reader.io;
+
+import android.util.Log;
+
+import com.github.pires.obd.commands.ObdCommand;
+import com.github.pires.obd.reader.commands.IsoTpCommand;
+import com.github.pires.obd.reader.commands.MultiLineCommand;
+import com.github.pires.obd.reader.commands.Pid;
+import com.github.pires.obd.reader.commands.PidCommand;
+import com.github.pires.obd.reader.commands.PidCommand.Headers;
+import com.github.pires.obd.reader.commands.PidDefinition;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns headers on so the answers of several ECUs to a functional request
+ * are kept apart, then learns which ECUs carry each PID.
+ * <p/>
+ * Once every polled PID is known to be carried by one and the same ECU
+ * (typically the engine), requests are sent to that ECU only (physical
+ * addressing, ATSH), so the adapter doesn't wait for other ECUs to answer.
+ * Otherwise requests stay functional, each carrying the number of answers to
+ * wait for when the {@link AdapterProber} found the adapter takes it, which
+ * saves the same wait without switching headers back and forth; PIDs carried by several ECUs feed one value stream per ECU.
+ * Physical addressing needs CAN; on the older protocols the answers are
+ * still split by ECU. PID definitions are sent with their own header, if
+ * they have one, and aren't learned.
+ */
+public class EcuRouter {
+
+    private static final String TAG = EcuRouter.class.getName();
+
+    private static final int FUNCTIONAL = -1;
+    private static final String FUNCTIONAL_CAN_11 = "7DF";
+    private static final String FUNCTIONAL_CAN_29 = "DB33F1";
+
+    private volatile Headers headers = Headers.NONE;
+    private final Map<Pid, Integer> carriers = new EnumMap<>(Pid.class);
+    private final Map<Pid, Integer> answers = new EnumMap<>(Pid.class);
+    private int target = FUNCTIONAL;
+    private final HeaderSwitch headerSwitch = new HeaderSwitch();
+    private ObdCommandJob headersOn = null;
+    private ObdCommandJob protocolProbe = null;
+    private ObdCommandJob headersOff = null;
+
+    /**
+     * @return the jobs turning headers on, to queue once the protocol is set.
+     */
+    public synchronized List<ObdCommandJob> setupJobs() {
+        headers = Headers.NONE;
+        carriers.clear();
+        answers.clear();
+        target = FUNCTIONAL;
+        headerSwitch.reset();
+        List<ObdCommandJob> jobs = new ArrayList<>();
+        jobs.add(headersOn = new ObdCommandJob(new MultiLineCommand("AT H1")));
+        jobs.add(protocolProbe = new ObdCommandJob(new MultiLineCommand("AT DPN")));
+        return jobs;
+    }
+
+    public Headers getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Addresses the given command to the ECUs carrying its PID, switching the
+     * adapter header first if needed. Runs on the gateway thread right before
+     * the command.
+     *
+     * @param countAnswers true if the adapter takes the number of answers to
+     *                     wait for, see {@link AdapterProber#isCountingAnswers}.
+     */
+    public synchronized void beforeRun(ObdCommand command, boolean countAnswers, InputStream in, OutputStream out)
+            throws IOException, InterruptedException {
+        if (command instanceof IsoTpCommand) {
+            // diagnostic reads go to everyone, each ECU answers its part
+            final Headers h = headers;
+            ((IsoTpCommand) command).setHeaders(h);
+            if (h != Headers.NONE && h != Headers.LEGACY) {
+                headerSwitch.address(requestHeader(h, FUNCTIONAL), in, out);
+            } else {
+                headerSwitch.restore(in, out);
+            }
+            return;
+        }
+        if (!(command instanceof PidCommand)) {
+            return;
+        }
+        final PidCommand pidCommand = (PidCommand) command;
+        final Headers h = headers;
+        pidCommand.setHeaders(h);
+        final PidDefinition definition = pidCommand.getDefinition();
+        if (definition != null) {
+            // addressed as defined, there's nothing to learn
+            pidCommand.setExpectedAnswers(countAnswers && definition.getHeader() != null ? 1 : 0);
+            if (definition.getHeader() != null) {
+                headerSwitch.address(definition.getHeader(), in, out);
+            } else if (h != Headers.NONE && h != Headers.LEGACY) {
+                headerSwitch.address(requestHeader(h, FUNCTIONAL), in, out);
+            } else {
+                headerSwitch.restore(in, out);
+            }
+            return;
+        }
+        if (h == Headers.NONE) {
+            headerSwitch.restore(in, out);
+            return;
+        }
+
+        final Integer known = answers.get(pidCommand.getPid());
+        if (h == Headers.LEGACY) {
+            headerSwitch.restore(in, out);
+            pidCommand.setExpectedAnswers(countAnswers && known != null ? known : 0);
+            return;
+        }
+
+        // a PID not seen yet goes to everyone, to learn who carries it
+        final int ecu = known != null ? target : FUNCTIONAL;
+        pidCommand.setExpectedAnswers(countAnswers && known != null && ecu == FUNCTIONAL ? known : 0);
+        headerSwitch.address(requestHeader(h, ecu), in, out);
+    }
+
+    /**
+     * Feeds a finished job to the router.
+     *
+     * @return true if the job was a setup job of this router, which shouldn't
+     * be passed on to listeners.
+     */
+    public synchronized boolean handleResult(ObdCommandJob job, AbstractGatewayService service) {
+        if (job == headersOn || job == headersOff) {
+            return true;
+        }
+        if (job == protocolProbe) {
+            final List<String> lines = job.hasResult()
+                    ? ((MultiLineCommand) job.getCommand()).getLines() : new ArrayList<String>();
+            final String dpn = lines.isEmpty() ? "" : lines.get(lines.size() - 1);
+            headers = Headers.forProtocol(dpn.isEmpty() ? 0 : dpn.charAt(dpn.length() - 1));
+            Log.d(TAG, "Answer headers: " + headers);
+            if (headers == Headers.NONE) {
+                // can't tell the answers apart, better off without headers
+                headersOff = new ObdCommandJob(new MultiLineCommand("AT H0"));
+                service.queueJob(headersOff);
+            }
+            return true;
+        }
+
+        if (!(job.getCommand() instanceof PidCommand)) {
+            return false;
+        }
+        final PidCommand command = (PidCommand) job.getCommand();
+        final Pid pid = command.getPid();
+        if (pid == null) {
+            return false;
+        }
+        if (!job.hasResult()) {
+            // a "?" to an answer count is the adapter prober's to handle
+            if (answers.remove(pid) != null) {
+                // the ECU stopped answering, ask everyone again
+                carriers.remove(pid);
+                updateTarget();
+            }
+        } else if (!answers.containsKey(pid) && command.getHeaders() != Headers.NONE) {
+            // first functional answer, tells which ECUs carry the PID
+            final int count = command.getAnswerCount();
+            answers.put(pid, count);
+            carriers.put(pid, count == 1 ? command.getEcu(0) : FUNCTIONAL);
+            updateTarget();
+        }
+        return false;
+    }
+
+    /**
+     * Picks the ECU to address: the one carrying all known PIDs, if any.
+     */
+    private void updateTarget() {
+        int ecu = FUNCTIONAL;
+        for (int carrier : carriers.values()) {
+            if (carrier == FUNCTIONAL || (ecu != FUNCTIONAL && carrier != ecu)) {
+                ecu = FUNCTIONAL;
+                break;
+            }
+            ecu = carrier;
+        }
+        if (ecu != target) {
+            Log.d(TAG, "Addressing " + (ecu == FUNCTIONAL ? "all ECUs" : "ECU " + headers.format(ecu)));
+        }
+        target = ecu;
+    }
+
+    /**
+     * @return the ATSH argument to reach the given ECU, by the address it
+     * answers from.
+     */
+    private static String requestHeader(Headers headers, int ecu) {
+        if (headers == Headers.CAN_11) {
+            // 7E8 answers to 7E0, and so on
+            return ecu == FUNCTIONAL ? FUNCTIONAL_CAN_11 : String.format("%03X", ecu - 8);
+        }
+        // 18 DA F1 xx answers to 18 DA xx F1, the priority byte stays 18
+        return ecu == FUNCTIONAL ? FUNCTIONAL_CAN_29 : String.format("DA%02XF1", ecu & 0xFF);
+    }
+}
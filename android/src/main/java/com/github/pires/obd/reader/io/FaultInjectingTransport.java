@@ -0,0 +1,237 @@
+package com.github.pires.obd.reader.io;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Wraps another {@link ObdTransport} and corrupts its responses as described
+ * by a {@link FaultProfile}, to exercise the gateway error paths and measure
+ * how they behave under bad radio conditions without a bad radio.
+ * <p/>
+ * Each response of the wrapped transport is read up to the '>' prompt as
+ * soon as the gateway starts reading it, then handed out again with the
+ * injected faults. Once disconnected, writes fail with "Broken pipe" and
+ * reads with a closed socket error, as an Android Bluetooth socket does.
+ */
+public class FaultInjectingTransport implements ObdTransport {
+
+    private static final String TAG = FaultInjectingTransport.class.getName();
+    private static final byte[] GARBAGE = {0x00, (byte) 0xFF, '?', 'Z', '\n', (byte) 0x80};
+
+    private final ObdTransport delegate;
+    private final FaultProfile profile;
+    private final Random random;
+
+    private final ByteArrayOutputStream rawResponse = new ByteArrayOutputStream();
+    private byte[] response = new byte[0];
+    private int responsePos = 0;
+    private int stallAt = -1;
+    private int disconnectAt = -1;
+    private boolean requestPending = false;
+    private volatile boolean disconnected = false;
+
+    private int responses = 0;
+    private int stalls = 0;
+    private int garbled = 0;
+    private int stopped = 0;
+    private int bufferFull = 0;
+
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            synchronized (FaultInjectingTransport.this) {
+                if (disconnected) {
+                    throw new IOException("bt socket closed, read return: -1");
+                }
+                if (requestPending) {
+                    requestPending = false;
+                    nextResponse();
+                }
+                if (responsePos >= response.length) {
+                    return -1;
+                }
+                if (responsePos == stallAt) {
+                    sleep(profile.getPartialReadStall());
+                }
+                if (responsePos == disconnectAt) {
+                    Log.d(TAG, "Injecting a disconnect.");
+                    disconnected = true;
+                    throw new IOException("bt socket closed, read return: -1");
+                }
+                return response[responsePos++] & 0xFF;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (FaultInjectingTransport.this) {
+                return requestPending ? 0 : response.length - responsePos;
+            }
+        }
+    };
+
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            synchronized (FaultInjectingTransport.this) {
+                if (disconnected) {
+                    throw new IOException("Broken pipe");
+                }
+                delegate.getOutputStream().write(b);
+                if (b == '\r') {
+                    requestPending = true;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.getOutputStream().flush();
+        }
+    };
+
+    public FaultInjectingTransport(ObdTransport delegate, FaultProfile profile) {
+        this(delegate, profile, new Random());
+    }
+
+    /**
+     * @param random source of the injected faults, seed it for repeatable runs.
+     */
+    public FaultInjectingTransport(ObdTransport delegate, FaultProfile profile, Random random) {
+        this.delegate = delegate;
+        this.profile = profile;
+        this.random = random;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !disconnected && delegate.isConnected();
+    }
+
+    @Override
+    public void close() throws IOException {
+        disconnected = true;
+        delegate.close();
+    }
+
+    /**
+     * @return the number of responses handed out so far.
+     */
+    public synchronized int getResponseCount() {
+        return responses;
+    }
+
+    public synchronized int getStallCount() {
+        return stalls;
+    }
+
+    public synchronized int getGarbledCount() {
+        return garbled;
+    }
+
+    public synchronized int getStoppedCount() {
+        return stopped;
+    }
+
+    public synchronized int getBufferFullCount() {
+        return bufferFull;
+    }
+
+    private void nextResponse() throws IOException {
+        // whatever the gateway didn't read of the last answer is still in
+        // the pipe, in front of the new one
+        rawResponse.reset();
+        if (responsePos < response.length) {
+            rawResponse.write(response, responsePos, response.length - responsePos);
+        }
+        final int leftover = rawResponse.size();
+
+        // read the real answer first, it's needed even if replaced
+        final InputStream delegateIn = delegate.getInputStream();
+        int b;
+        while ((b = delegateIn.read()) != -1) {
+            rawResponse.write(b);
+            if (b == '>') {
+                break;
+            }
+        }
+        byte[] raw = rawResponse.toByteArray();
+        responses++;
+
+        if (roll(profile.getStoppedProbability())) {
+            stopped++;
+            raw = replaceAnswer(raw, leftover, "STOPPED\r\r>");
+        } else if (roll(profile.getBufferFullProbability())) {
+            bufferFull++;
+            raw = replaceAnswer(raw, leftover, "BUFFER FULL\r\r>");
+        } else if (roll(profile.getGarbageProbability()) && raw.length > 0) {
+            garbled++;
+            raw = insertGarbage(raw);
+        }
+        response = raw;
+        responsePos = 0;
+
+        stallAt = -1;
+        if (raw.length > 1 && roll(profile.getPartialReadProbability())) {
+            stalls++;
+            stallAt = 1 + random.nextInt(raw.length - 1);
+        }
+        disconnectAt = -1;
+        if (roll(profile.getDisconnectProbability())) {
+            disconnectAt = random.nextInt(Math.max(1, raw.length));
+        }
+
+        sleep(profile.nextLatency(random));
+    }
+
+    private static byte[] replaceAnswer(byte[] raw, int keep, String answer) {
+        byte[] replaced = answer.getBytes();
+        byte[] result = new byte[keep + replaced.length];
+        System.arraycopy(raw, 0, result, 0, keep);
+        System.arraycopy(replaced, 0, result, keep, replaced.length);
+        return result;
+    }
+
+    private byte[] insertGarbage(byte[] raw) {
+        final int count = 1 + random.nextInt(3);
+        final int at = random.nextInt(raw.length);
+        byte[] garbled = new byte[raw.length + count];
+        System.arraycopy(raw, 0, garbled, 0, at);
+        for (int i = 0; i < count; i++) {
+            garbled[at + i] = GARBAGE[random.nextInt(GARBAGE.length)];
+        }
+        System.arraycopy(raw, at, garbled, at + count, raw.length - at);
+        return garbled;
+    }
+
+    private boolean roll(double probability) {
+        return probability > 0 && random.nextDouble() < probability;
+    }
+
+    private static void sleep(long ms) throws IOException {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the adapter.");
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.github.pires.obd.reader.io;
+
+import java.util.Random;
+
+/**
+ * Describes the faults a {@link FaultInjectingTransport} injects: added
+ * latency and jitter, responses that stall half way, garbage bytes,
+ * "STOPPED" and "BUFFER FULL" replies and disconnects in the middle of a
+ * response. Probabilities are per response.
+ */
+public class FaultProfile {
+
+    public enum JitterDistribution {
+        /**
+         * Latency +/- jitter, evenly spread.
+         */
+        UNIFORM,
+        /**
+         * Latency with a normally distributed jitter of the given deviation.
+         */
+        NORMAL,
+        /**
+         * Latency plus an exponential tail with the given mean, the shape
+         * of retransmissions over a bad radio link.
+         */
+        EXPONENTIAL
+    }
+
+    private long latency = 0;
+    private long jitter = 0;
+    private JitterDistribution distribution = JitterDistribution.EXPONENTIAL;
+    private double partialReadProbability = 0;
+    private long partialReadStall = 50;
+    private double garbageProbability = 0;
+    private double stoppedProbability = 0;
+    private double bufferFullProbability = 0;
+    private double disconnectProbability = 0;
+
+    /**
+     * A slow, jittery but otherwise healthy link.
+     */
+    public static FaultProfile badRadio() {
+        FaultProfile p = new FaultProfile();
+        p.setLatency(40, 80, JitterDistribution.EXPONENTIAL);
+        p.setPartialReadProbability(0.2, 30);
+        return p;
+    }
+
+    /**
+     * A cheap clone that garbles and drops answers now and then.
+     */
+    public static FaultProfile flakyAdapter() {
+        FaultProfile p = new FaultProfile();
+        p.setLatency(10, 5, JitterDistribution.UNIFORM);
+        p.setGarbageProbability(0.02);
+        p.setStoppedProbability(0.02);
+        p.setBufferFullProbability(0.01);
+        return p;
+    }
+
+    /**
+     * A link that eventually drops in the middle of a response.
+     */
+    public static FaultProfile disconnecting() {
+        FaultProfile p = badRadio();
+        p.setDisconnectProbability(0.01);
+        return p;
+    }
+
+    public static FaultProfile byName(String name) {
+        if ("badRadio".equals(name)) {
+            return badRadio();
+        } else if ("flakyAdapter".equals(name)) {
+            return flakyAdapter();
+        } else if ("disconnecting".equals(name)) {
+            return disconnecting();
+        }
+        throw new IllegalArgumentException("Unknown fault profile " + name);
+    }
+
+    /**
+     * @param latency      ms added before each response.
+     * @param jitter       spread of the added latency in ms.
+     * @param distribution how the jitter is distributed.
+     */
+    public void setLatency(long latency, long jitter, JitterDistribution distribution) {
+        this.latency = latency;
+        this.jitter = jitter;
+        this.distribution = distribution;
+    }
+
+    /**
+     * @param probability chance a response stalls half way.
+     * @param stall       ms the response stalls for.
+     */
+    public void setPartialReadProbability(double probability, long stall) {
+        this.partialReadProbability = probability;
+        this.partialReadStall = stall;
+    }
+
+    public void setGarbageProbability(double probability) {
+        this.garbageProbability = probability;
+    }
+
+    public void setStoppedProbability(double probability) {
+        this.stoppedProbability = probability;
+    }
+
+    public void setBufferFullProbability(double probability) {
+        this.bufferFullProbability = probability;
+    }
+
+    public void setDisconnectProbability(double probability) {
+        this.disconnectProbability = probability;
+    }
+
+    public double getPartialReadProbability() {
+        return partialReadProbability;
+    }
+
+    public long getPartialReadStall() {
+        return partialReadStall;
+    }
+
+    public double getGarbageProbability() {
+        return garbageProbability;
+    }
+
+    public double getStoppedProbability() {
+        return stoppedProbability;
+    }
+
+    public double getBufferFullProbability() {
+        return bufferFullProbability;
+    }
+
+    public double getDisconnectProbability() {
+        return disconnectProbability;
+    }
+
+    /**
+     * @return the latency to add to the next response, in ms.
+     */
+    public long nextLatency(Random random) {
+        final double extra;
+        switch (distribution) {
+            case UNIFORM:
+                extra = (random.nextDouble() * 2 - 1) * jitter;
+                break;
+            case NORMAL:
+                extra = random.nextGaussian() * jitter;
+                break;
+            default:
+                extra = -Math.log(1 - random.nextDouble()) * jitter;
+                break;
+        }
+        return Math.max(0, latency + Math.round(extra));
+    }
+}
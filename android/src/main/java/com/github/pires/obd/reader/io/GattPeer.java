@@ -0,0 +1,236 @@
+package com.github.pires.obd.reader.io;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Android GATT client behind a {@link BleTransport}.
+ * <p/>
+ * Connects, negotiates the largest MTU the adapter takes, finds the serial
+ * service (the usual FFF0, FFE0, 18F0 or Vgate ones, else the first service
+ * with a notify and a write characteristic) and subscribes to the answers.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class GattPeer extends BluetoothGattCallback implements BleTransport.Peer {
+
+    private static final String TAG = GattPeer.class.getName();
+
+    private static final UUID CLIENT_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    /**
+     * Serial services of the BLE adapters around, most common first.
+     */
+    private static final UUID[] SERIAL_SERVICES = {
+            UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("000018f0-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("e7810a71-73ae-499d-8c15-faa9aef0c3f2")
+    };
+    /**
+     * The largest ATT MTU, Android caps it anyway.
+     */
+    private static final int MAX_MTU = 517;
+    private static final int DEFAULT_MTU = 23;
+    private static final long CONNECT_TIMEOUT = 15000;
+    private static final long WRITE_TIMEOUT = 2000;
+
+    private BleTransport transport;
+    private BluetoothGatt gatt = null;
+    private BluetoothGattCharacteristic writer = null;
+    private BluetoothGattCharacteristic notifier = null;
+    private volatile int mtu = DEFAULT_MTU;
+    private volatile boolean connected = false;
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final Semaphore writeDone = new Semaphore(0);
+
+    private GattPeer() {
+    }
+
+    /**
+     * Connects to a BLE adapter.
+     *
+     * @return the transport, ready for the first request.
+     * @throws IOException if the adapter can't be reached or has no serial
+     *                     service.
+     */
+    public static BleTransport connect(Context context, BluetoothDevice dev) throws IOException {
+        Log.d(TAG, "Starting Bluetooth LE connection..");
+        final GattPeer peer = new GattPeer();
+        peer.transport = new BleTransport(peer);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            peer.gatt = dev.connectGatt(context, false, peer, BluetoothDevice.TRANSPORT_LE);
+        } else {
+            peer.gatt = dev.connectGatt(context, false, peer);
+        }
+        if (peer.gatt == null) {
+            throw new IOException("Bluetooth LE not available.");
+        }
+        try {
+            if (!peer.ready.await(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                peer.close();
+                throw new IOException("Bluetooth LE connection timed out.");
+            }
+        } catch (InterruptedException e) {
+            peer.close();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting.");
+        }
+        if (!peer.connected) {
+            peer.close();
+            throw new IOException("No serial service on " + dev.getAddress());
+        }
+        Log.d(TAG, "Connected, MTU " + peer.mtu);
+        return peer.transport;
+    }
+
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED) {
+            gatt.discoverServices();
+        } else {
+            Log.d(TAG, "Disconnected, status " + status);
+            connected = false;
+            transport.onDisconnected();
+            writeDone.release();
+            ready.countDown();
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS || !findCharacteristics(gatt)) {
+            ready.countDown();
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || !gatt.requestMtu(MAX_MTU)) {
+            subscribe(gatt);
+        }
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.mtu = mtu;
+        }
+        subscribe(gatt);
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        connected = status == BluetoothGatt.GATT_SUCCESS;
+        ready.countDown();
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        transport.onNotification(characteristic.getValue());
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        writeDone.release();
+    }
+
+    @Override
+    public int getMaxPayload() {
+        return mtu - 3;
+    }
+
+    @Override
+    public void write(byte[] packet) throws IOException {
+        writer.setValue(packet);
+        writeDone.drainPermits();
+        if (!gatt.writeCharacteristic(writer)) {
+            throw new IOException("Bluetooth LE write refused.");
+        }
+        try {
+            if (!writeDone.tryAcquire(WRITE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Bluetooth LE write timed out.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing.");
+        }
+        if (!connected) {
+            throw new IOException("Broken pipe");
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+        if (gatt != null) {
+            gatt.disconnect();
+            gatt.close();
+        }
+    }
+
+    private boolean findCharacteristics(BluetoothGatt gatt) {
+        for (UUID uuid : SERIAL_SERVICES) {
+            final BluetoothGattService service = gatt.getService(uuid);
+            if (service != null && findCharacteristics(service)) {
+                return true;
+            }
+        }
+        for (BluetoothGattService service : gatt.getServices()) {
+            if (findCharacteristics(service)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean findCharacteristics(BluetoothGattService service) {
+        writer = null;
+        notifier = null;
+        for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+            final int properties = characteristic.getProperties();
+            if (notifier == null && (properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+                notifier = characteristic;
+            }
+            if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+                writer = characteristic;
+                writer.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            } else if (writer == null && (properties & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0) {
+                // acknowledged writes only, slower but works
+                writer = characteristic;
+                writer.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            }
+        }
+        return writer != null && notifier != null;
+    }
+
+    private void subscribe(BluetoothGatt gatt) {
+        gatt.setCharacteristicNotification(notifier, true);
+        final BluetoothGattDescriptor config = notifier.getDescriptor(CLIENT_CONFIG);
+        if (config == null) {
+            // notifies without being asked
+            connected = true;
+            ready.countDown();
+            return;
+        }
+        config.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        if (!gatt.writeDescriptor(config)) {
+            ready.countDown();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.pires.obd.reader.io;
+
+import android.util.Log;
+
+import com.github.pires.obd.reader.commands.MultiLineCommand;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Tracks the request header of the adapter (ATSH) so it's only switched
+ * when a request needs another one. Gateway thread only.
+ */
+class HeaderSwitch {
+
+    private static final String TAG = HeaderSwitch.class.getName();
+
+    /**
+     * The header set, null while it's the adapter's default.
+     */
+    private String current = null;
+
+    /**
+     * Forgets the header, e.g. after the adapter was reset.
+     */
+    void reset() {
+        current = null;
+    }
+
+    /**
+     * Switches the adapter header, unless it's already set.
+     */
+    void address(String header, InputStream in, OutputStream out) throws IOException, InterruptedException {
+        if (header.equals(current)) {
+            return;
+        }
+        Log.d(TAG, "Addressing " + header);
+        new MultiLineCommand("AT SH " + header).run(in, out);
+        current = header;
+    }
+
+    /**
+     * Goes back to the functional header of the protocol, if another one
+     * was set.
+     */
+    void restore(InputStream in, OutputStream out) throws IOException, InterruptedException {
+        if (current != null && !current.equals(functional(current))) {
+            address(functional(current), in, out);
+        }
+    }
+
+    /**
+     * @return the functional header of the protocol the given header is
+     * for: 11 or 29 bit CAN, or the older protocols.
+     */
+    static String functional(String header) {
+        if (header.length() == 3) {
+            return "7DF";
+        }
+        return header.startsWith("DA") || header.startsWith("DB") ? "DB33F1" : "686AF1";
+    }
+}
@@ -0,0 +1,183 @@
+package com.github.pires.obd.reader.io;
+
+import android.util.Log;
+
+import com.github.pires.obd.commands.ObdCommand;
+import com.github.pires.obd.commands.engine.RPMCommand;
+import com.github.pires.obd.reader.commands.Pid;
+import com.github.pires.obd.reader.commands.PidCommand;
+import com.github.pires.obd.reader.commands.VoltageCommand;
+import com.github.pires.obd.reader.io.ObdCommandJob.ObdCommandJobState;
+
+/**
+ * Decides whether the engine is running, so the gateway can stop polling a
+ * parked vehicle.
+ * <p/>
+ * The engine is considered off when the battery voltage drops below the
+ * charging level while RPM reads zero, when the bus keeps answering
+ * "NO DATA" to live data requests, or when the ELM327 reports it's going to low power. While idle
+ * only cheap probes are sent: the voltage (answered by the adapter, no bus
+ * traffic) every probe interval and RPM once in a while for vehicles whose
+ * voltage doesn't rise with the engine. The alternator pushes the voltage up
+ * right after engine start, so polling resumes within one probe interval.
+ */
+public class IgnitionMonitor {
+
+    private static final String TAG = IgnitionMonitor.class.getName();
+
+    public interface Listener {
+        /**
+         * Called on the gateway thread when the engine goes off or on.
+         */
+        void onIdleChanged(boolean idle);
+    }
+
+    public static final double DEFAULT_ENGINE_ON_VOLTAGE = 13.2;
+    public static final long DEFAULT_PROBE_INTERVAL = 1000;
+    private static final double VOLTAGE_HYSTERESIS = 0.4;
+    private static final long RUNNING_CHECK_INTERVAL = 5000;
+    private static final int FAILURES_TO_IDLE = 8;
+    private static final int PROBES_PER_BUS_PROBE = 15;
+
+    private final double engineOnVoltage;
+    private final long probeInterval;
+
+    private volatile boolean idle = false;
+    private volatile Listener listener = null;
+    private ObdCommandJob probe = null;
+    private long nextProbe = 0;
+    private int probesSinceBusProbe = 0;
+    private int failures = 0;
+    private int lastRpm = -1;
+    private double voltage = Double.NaN;
+
+    public IgnitionMonitor() {
+        this(DEFAULT_ENGINE_ON_VOLTAGE, DEFAULT_PROBE_INTERVAL);
+    }
+
+    /**
+     * @param engineOnVoltage battery voltage at or above which the alternator
+     *                        is charging, i.e. the engine runs.
+     * @param probeInterval   ms between voltage probes while idle.
+     */
+    public IgnitionMonitor(double engineOnVoltage, long probeInterval) {
+        this.engineOnVoltage = engineOnVoltage;
+        this.probeInterval = probeInterval;
+    }
+
+    public boolean isIdle() {
+        return idle;
+    }
+
+    /**
+     * Tells the given listener when the engine goes off or on, or stops
+     * when listener is null.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public double getVoltage() {
+        return voltage;
+    }
+
+    /**
+     * @return ms until the next probe is due.
+     */
+    public long millisToNextProbe(long now) {
+        return Math.max(0, nextProbe - now);
+    }
+
+    /**
+     * @return the probe job to run now, or null if none is due.
+     */
+    public ObdCommandJob nextProbe(long now) {
+        if (now < nextProbe) {
+            return null;
+        }
+        nextProbe = now + (idle ? probeInterval : RUNNING_CHECK_INTERVAL);
+        if (idle && ++probesSinceBusProbe >= PROBES_PER_BUS_PROBE) {
+            probesSinceBusProbe = 0;
+            probe = new ObdCommandJob(new PidCommand(Pid.ENGINE_RPM));
+        } else {
+            probe = new ObdCommandJob(new VoltageCommand());
+        }
+        probe.setId(0L);
+        return probe;
+    }
+
+    /**
+     * Feeds a finished job to the monitor.
+     *
+     * @return true if the job was a probe of this monitor, which shouldn't be
+     * passed on to listeners.
+     */
+    public boolean handleResult(ObdCommandJob job) {
+        final boolean isProbe = job == probe;
+        if (isProbe) {
+            probe = null;
+        }
+
+        final String result = job.getCommand().getResult();
+        if (result != null && result.contains("ALERT")) {
+            // LP ALERT / ACT ALERT, the ELM327 is about to go to low power
+            setIdle(true, "adapter low power alert");
+            return isProbe;
+        }
+
+        if (job.getCommand() instanceof VoltageCommand) {
+            if (job.hasResult()) {
+                voltage = ((VoltageCommand) job.getCommand()).getVoltage();
+                if (voltage >= engineOnVoltage) {
+                    setIdle(false, "voltage " + voltage + "V");
+                } else if (voltage < engineOnVoltage - VOLTAGE_HYSTERESIS && lastRpm <= 0) {
+                    setIdle(true, "voltage " + voltage + "V");
+                }
+            }
+            return isProbe;
+        }
+
+        if (!job.isLiveData()) {
+            // the setup and the probes of the adapter and the vehicle, e.g.
+            // NO DATA to an unsupported Mode 09 request, tell nothing of
+            // the engine
+            return isProbe;
+        }
+        if (job.hasResult()) {
+            failures = 0;
+            if (isRpm(job.getCommand())) {
+                lastRpm = (int) job.getNumericResult();
+                if (lastRpm > 0) {
+                    setIdle(false, "engine speed " + lastRpm + "rpm");
+                }
+            }
+        } else if (job.getState() == ObdCommandJobState.EXECUTION_ERROR && ++failures >= FAILURES_TO_IDLE) {
+            setIdle(true, failures + " requests failed");
+        }
+        return isProbe;
+    }
+
+    private static boolean isRpm(ObdCommand command) {
+        return command instanceof RPMCommand
+                || (command instanceof PidCommand && ((PidCommand) command).getPid() == Pid.ENGINE_RPM);
+    }
+
+    private void setIdle(boolean newIdle, String reason) {
+        if (idle == newIdle) {
+            return;
+        }
+        Log.d(TAG, (newIdle ? "Engine off" : "Engine on") + " (" + reason + ")");
+        idle = newIdle;
+        failures = 0;
+        probesSinceBusProbe = 0;
+        if (newIdle) {
+            lastRpm = -1;
+        }
+        // check again soon in the new state
+        nextProbe = 0;
+        final Listener l = listener;
+        if (l != null) {
+            l.onIdleChanged(newIdle);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.github.pires.obd.reader.io;
+
+import com.github.pires.obd.reader.commands.Pid;
+import com.github.pires.obd.reader.commands.PidCommand;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The latest value of every stream, in one fixed slot per stream: the value,
+ * its timestamp and a sequence number counting the updates.
+ * <p/>
+ * The gateway thread is the only writer and publishes each slot with a
+ * seqlock: the sequence is odd while the slot is being written, so a reader
+ * retries when it sees an odd sequence or a different one after reading.
+ * Any number of threads can read without locks or allocation and without
+ * ever holding the gateway back; a consumer that wants only the changes
+ * compares sequence numbers.
+ * <p/>
+ * Streams are the PIDs by cmdID, plus "cmdID@ecu" for the other ECUs
+ * answering with {@link EcuRouter} on. A slot is assigned the first time a
+ * stream is published and keeps it from then on; the slot of a stream is
+ * looked up once by ID, then read by index.
+ */
+public class LatestValueTable {
+
+    public static final int DEFAULT_CAPACITY = 128;
+
+    /**
+     * Longs per slot, a 64 byte cache line so slots don't share one.
+     */
+    private static final int STRIDE = 8;
+    private static final int SEQUENCE = 0;
+    private static final int VALUE = 1;
+    private static final int TIMESTAMP = 2;
+
+    /**
+     * A sample read from the table, reused by its reader.
+     */
+    public static class Sample {
+        private double value;
+        private double timestamp;
+        private long sequence;
+
+        public double getValue() {
+            return value;
+        }
+
+        /**
+         * @return when the value was read, in ms since the epoch.
+         */
+        public double getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the number of updates of the slot so far.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+    }
+
+    private final AtomicLongArray data;
+    private final String[] ids;
+    private final ConcurrentHashMap<String, Integer> slots = new ConcurrentHashMap<>();
+    private volatile int size = 0;
+
+    // writer side caches, so publishing a PID doesn't look its slot up by name
+    private final int[] pidSlots = new int[Pid.values().length];
+    private final int[][] ecuSlots = new int[Pid.values().length][];
+
+    public LatestValueTable(int capacity) {
+        data = new AtomicLongArray(capacity * STRIDE);
+        ids = new String[capacity];
+        for (int i = 0; i < pidSlots.length; i++) {
+            pidSlots[i] = -1;
+        }
+    }
+
+    /**
+     * Publishes the values of a finished PID command. Gateway thread only.
+     */
+    void publish(ObdCommandJob job) {
+        if (!job.hasResult() || !(job.getCommand() instanceof PidCommand)) {
+            return;
+        }
+        final PidCommand command = (PidCommand) job.getCommand();
+        final Pid pid = command.getPid();
+        final double timestamp = job.getTimestamp();
+        final int answers = command.getAnswerCount();
+        if (answers == 0) {
+            return;
+        }
+        final int primary = command.getPrimaryAnswer();
+        if (pid == null) {
+            // defined at runtime, addressed to one ECU
+            write(register(command.getDefinition().getId()), command.getValue(primary), timestamp);
+            return;
+        }
+
+        int slot = pidSlots[pid.ordinal()];
+        if (slot < 0) {
+            slot = pidSlots[pid.ordinal()] = register(pid.name());
+        }
+        write(slot, command.getValue(primary), timestamp);
+
+        for (int i = 0; i < answers; i++) {
+            if (i != primary) {
+                write(ecuSlot(pid, command.getHeaders(), command.getEcu(i)), command.getValue(i), timestamp);
+            }
+        }
+    }
+
+    /**
+     * @return the slot of the given stream, -1 if it wasn't published yet.
+     */
+    public int slotOf(String id) {
+        final Integer slot = slots.get(id);
+        return slot != null ? slot : -1;
+    }
+
+    /**
+     * @return the number of slots in use, slots 0 to size - 1.
+     */
+    public int size() {
+        return size;
+    }
+
+    public String getId(int slot) {
+        return ids[slot];
+    }
+
+    /**
+     * @return the number of updates of the slot so far, 0 if never written.
+     */
+    public long getSequence(int slot) {
+        return data.get(slot * STRIDE + SEQUENCE) >>> 1;
+    }
+
+    /**
+     * Reads a slot consistently.
+     *
+     * @param into receives the value, its timestamp and sequence.
+     * @return false if the slot was never written.
+     */
+    public boolean read(int slot, Sample into) {
+        final int base = slot * STRIDE;
+        while (true) {
+            final long before = data.get(base + SEQUENCE);
+            if ((before & 1) != 0) {
+                // being written, it takes a few ns
+                Thread.yield();
+                continue;
+            }
+            final long value = data.get(base + VALUE);
+            final long timestamp = data.get(base + TIMESTAMP);
+            if (data.get(base + SEQUENCE) == before) {
+                if (before == 0) {
+                    return false;
+                }
+                into.value = Double.longBitsToDouble(value);
+                into.timestamp = Double.longBitsToDouble(timestamp);
+                into.sequence = before >>> 1;
+                return true;
+            }
+        }
+    }
+
+    private void write(int slot, double value, double timestamp) {
+        if (slot < 0) {
+            return;
+        }
+        final int base = slot * STRIDE;
+        final long sequence = data.get(base + SEQUENCE);
+        data.set(base + SEQUENCE, sequence + 1);
+        data.set(base + VALUE, Double.doubleToRawLongBits(value));
+        data.set(base + TIMESTAMP, Double.doubleToRawLongBits(timestamp));
+        data.set(base + SEQUENCE, sequence + 2);
+    }
+
+    /**
+     * @return the slot of a secondary ECU stream, registering it on first
+     * sight, or -1 if the table is full.
+     */
+    private int ecuSlot(Pid pid, PidCommand.Headers headers, int ecu) {
+        // pairs of ECU address and slot
+        int[] known = ecuSlots[pid.ordinal()];
+        if (known != null) {
+            for (int i = 0; i < known.length; i += 2) {
+                if (known[i] == ecu) {
+                    return known[i + 1];
+                }
+            }
+        }
+        final int slot = register(pid.name() + "@" + headers.format(ecu));
+        final int n = known != null ? known.length : 0;
+        final int[] grown = new int[n + 2];
+        if (known != null) {
+            System.arraycopy(known, 0, grown, 0, n);
+        }
+        grown[n] = ecu;
+        grown[n + 1] = slot;
+        ecuSlots[pid.ordinal()] = grown;
+        return slot;
+    }
+
+    private int register(String id) {
+        final Integer existing = slots.get(id);
+        if (existing != null) {
+            return existing;
+        }
+        final int slot = size;
+        if (slot == ids.length) {
+            return -1;
+        }
+        ids[slot] = id;
+        slots.put(id, slot);
+        // publishes the id to readers going through size
+        size = slot + 1;
+        return slot;
+    }
+}
@@ -3,7 +3,6 @@ package com.github.pires.obd.reader.io;
 import android.util.Log;
 
 import com.facebook.react.ReactActivity;
-import com.facebook.react.bridge.ReactApplicationContext;
 import com.github.pires.obd.commands.protocol.EchoOffCommand;
 import com.github.pires.obd.commands.protocol.LineFeedOffCommand;
 import com.github.pires.obd.commands.protocol.ObdResetCommand;
@@ -12,9 +11,10 @@ import com.github.pires.obd.commands.protocol.TimeoutCommand;
 import com.github.pires.obd.commands.temperature.AmbientAirTemperatureCommand;
 import com.github.pires.obd.enums.ObdProtocols;
 import com.github.pires.obd.reader.io.ObdCommandJob.ObdCommandJobState;
+import com.github.pires.obd.reader.sim.DriveCycle;
+import com.github.pires.obd.reader.sim.SimulatedElm327;
+import com.github.pires.obd.reader.sim.VehicleModel;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 
 /**
  * This service is primarily responsible for establishing and maintaining a
@@ -28,8 +28,30 @@ public class MockObdGatewayService extends AbstractGatewayService {
 
     private static final String TAG = MockObdGatewayService.class.getName();
 
+    private DriveCycle driveCycle = DriveCycle.MIXED;
+    private long latency = 0;
+    private int bytesPerSecond = 0;
+    private double timeScale = 1;
+    private volatile ObdTransport transport;
+
+    /**
+     * Sets what the simulated vehicle does, applied on the next start.
+     *
+     * @param cycle          the drive cycle to follow.
+     * @param latency        ms the simulated adapter takes to answer.
+     * @param bytesPerSecond throughput of the simulated link, 0 for unlimited.
+     * @param timeScale      simulated seconds per real second.
+     */
+    public void setSimulation(DriveCycle cycle, long latency, int bytesPerSecond, double timeScale) {
+        this.driveCycle = cycle;
+        this.latency = latency;
+        this.bytesPerSecond = bytesPerSecond;
+        this.timeScale = timeScale;
+    }
+
     public void startService(final String remoteDevice) {
         Log.d(TAG, "Starting " + this.getClass().getName() + " service..");
+        transport = withFaults(new SimulatedElm327(new VehicleModel(driveCycle), latency, bytesPerSecond, timeScale));
 
         // Let's configure the connection.
         Log.d(TAG, "Queing jobs for connection configuration..");
@@ -44,6 +66,9 @@ public class MockObdGatewayService extends AbstractGatewayService {
      */
         queueJob(new ObdCommandJob(new EchoOffCommand()));
         queueJob(new ObdCommandJob(new LineFeedOffCommand()));
+        rateController = new RateController();
+        headerSwitch.reset();
+        queueAdapterProbes();
         queueJob(new ObdCommandJob(new TimeoutCommand(62)));
 
         // For now set protocol to AUTO
@@ -51,6 +76,7 @@ public class MockObdGatewayService extends AbstractGatewayService {
 
         // Job for returning dummy data
         queueJob(new ObdCommandJob(new AmbientAirTemperatureCommand()));
+        queueRouterSetup();
 
         queueCounter = 0L;
         Log.d(TAG, "Initialization jobs queued.");
@@ -67,38 +93,27 @@ public class MockObdGatewayService extends AbstractGatewayService {
         while (!Thread.currentThread().isInterrupted()) {
             ObdCommandJob job = null;
             try {
-                job = jobsQueue.take();
+                job = nextJob();
 
                 Log.d(TAG, "Taking job[" + job.getId() + "] from queue..");
 
                 if (job.getState().equals(ObdCommandJobState.NEW)) {
                     Log.d(TAG, "Job state is NEW. Run it..");
-                    job.setState(ObdCommandJobState.RUNNING);
                     Log.d(TAG, job.getCommand().getName());
-                    job.getCommand().run(new ByteArrayInputStream("41 00 00 00>41 00 00 00>41 00 00 00>".getBytes()), new ByteArrayOutputStream());
+                    runJob(job, transport);
                 } else {
                     Log.e(TAG, "Job state was not new, so it shouldn't be in queue. BUG ALERT!");
                 }
             } catch (InterruptedException i) {
                 Thread.currentThread().interrupt();
-            } catch (Exception e) {
-                e.printStackTrace();
-                if (job != null) {
-                    job.setState(ObdCommandJobState.EXECUTION_ERROR);
-                }
-                Log.e(TAG, "Failed to run command. -> " + e.getMessage());
             }
 
             if (job != null) {
                 Log.d(TAG, "Job is finished.");
-                job.setState(ObdCommandJobState.FINISHED);
-                final ObdCommandJob job2 = job;
-                ((ReactApplicationContext) ctx).runOnUiQueueThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        obdProgressListener.stateUpdate(job2);
-                    }
-                });
+                if (job.getState() == ObdCommandJobState.RUNNING) {
+                    job.setState(ObdCommandJobState.FINISHED);
+                }
+                jobFinished(job);
 
             }
         }
@@ -111,9 +126,10 @@ public class MockObdGatewayService extends AbstractGatewayService {
     public void stopService() {
         Log.d(TAG, "Stopping service..");
 
-//        notificationManager.cancel(NOTIFICATION_ID);
+        stopForegroundLogging();
         jobsQueue.clear();
         isRunning = false;
+        paused = false;
 
         // kill service
         stopSelf();
@@ -4,6 +4,14 @@
 package com.github.pires.obd.reader.io;
 
 import com.github.pires.obd.commands.ObdCommand;
+import com.github.pires.obd.commands.PercentageObdCommand;
+import com.github.pires.obd.commands.SpeedCommand;
+import com.github.pires.obd.commands.engine.RPMCommand;
+import com.github.pires.obd.commands.fuel.ConsumptionRateCommand;
+import com.github.pires.obd.commands.protocol.ObdProtocolCommand;
+import com.github.pires.obd.commands.temperature.TemperatureCommand;
+import com.github.pires.obd.reader.commands.IsoTpCommand;
+import com.github.pires.obd.reader.commands.PidCommand;
 
 /**
  * This class represents a job that ObdGatewayService will have to execute and
@@ -13,9 +21,17 @@ import com.github.pires.obd.commands.ObdCommand;
  */
 public class ObdCommandJob {
 
+    /**
+     * Wall clock and job clock read together, to date samples from the job
+     * clock without being thrown off by wall clock adjustments.
+     */
+    private static volatile long[] clock = {System.currentTimeMillis(), System.nanoTime()};
+
     private Long _id;
     private ObdCommand _command;
     private ObdCommandJobState _state;
+    private long _sentNanos = 0;
+    private long _receivedNanos = 0;
 
     /**
      * Default ctor.
@@ -39,6 +55,102 @@ public class ObdCommandJob {
         return _command;
     }
 
+    /**
+     * @return true if the job reads a PID, as polled for live data, rather
+     * than setting up or probing the adapter (AT commands, including the
+     * requests read line by line) or reading a diagnostic (ISO-TP).
+     */
+    public boolean isLiveData() {
+        return !(_command instanceof ObdProtocolCommand) && !(_command instanceof IsoTpCommand);
+    }
+
+    /**
+     * Records when the request went out and when its answer was read, on the
+     * gateway's clock: the time since boot, deep sleep included.
+     */
+    public void setTiming(long sentNanos, long receivedNanos) {
+        _sentNanos = sentNanos;
+        _receivedNanos = receivedNanos;
+    }
+
+    public long getSentNanos() {
+        return _sentNanos;
+    }
+
+    public long getReceivedNanos() {
+        return _receivedNanos;
+    }
+
+    /**
+     * The time the value was sampled, taken as the midpoint between request
+     * and answer since the ECU reads it somewhere in between.
+     *
+     * @return the sample time in ms since the epoch, with sub-ms precision,
+     * or the current time if the job didn't run.
+     */
+    public double getTimestamp() {
+        if (_receivedNanos == 0) {
+            return System.currentTimeMillis();
+        }
+        return millisAt(_sentNanos + (_receivedNanos - _sentNanos) / 2);
+    }
+
+    /**
+     * Sets the wall clock time of a time of the job clock, which job times
+     * are dated from. Set by the gateway before it runs any job.
+     */
+    static void anchorClock(long millis, long nanos) {
+        clock = new long[]{millis, nanos};
+    }
+
+    /**
+     * @param nanos a time of the job clock.
+     * @return the same time in ms since the epoch, with sub-ms precision.
+     */
+    public static double millisAt(long nanos) {
+        final long[] c = clock;
+        return c[0] + (nanos - c[1]) / 1e6;
+    }
+
+    /**
+     * @return true if the command ran without error and holds a result.
+     */
+    public boolean hasResult() {
+        return _state == ObdCommandJobState.RUNNING || _state == ObdCommandJobState.FINISHED;
+    }
+
+    /**
+     * Reads the result of the command as a plain number, in metric units.
+     * {@link PidCommand}s and the common live data commands are read through
+     * their typed getters so that no String has to be parsed for them.
+     *
+     * @return the numeric result, or NaN if the job failed or the result
+     * isn't a number.
+     */
+    public double getNumericResult() {
+        if (!hasResult()) {
+            return Double.NaN;
+        }
+        if (_command instanceof PidCommand) {
+            return ((PidCommand) _command).getValue();
+        } else if (_command instanceof RPMCommand) {
+            return ((RPMCommand) _command).getRPM();
+        } else if (_command instanceof PercentageObdCommand) {
+            return ((PercentageObdCommand) _command).getPercentage();
+        } else if (_command instanceof ConsumptionRateCommand) {
+            return ((ConsumptionRateCommand) _command).getLitersPerHour();
+        } else if (_command instanceof SpeedCommand) {
+            return ((SpeedCommand) _command).getMetricSpeed();
+        } else if (_command instanceof TemperatureCommand) {
+            return ((TemperatureCommand) _command).getTemperature();
+        }
+        try {
+            return Double.parseDouble(_command.getCalculatedResult());
+        } catch (RuntimeException e) {
+            return Double.NaN;
+        }
+    }
+
     /**
      * @return job current state.
      */
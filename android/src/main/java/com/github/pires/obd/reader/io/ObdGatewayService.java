@@ -2,29 +2,18 @@ package com.github.pires.obd.reader.io;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
-import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
-import android.os.Environment;
 import android.os.IBinder;
 import android.util.Log;
 
-import com.facebook.react.bridge.ReactApplicationContext;
 import com.github.pires.obd.commands.protocol.EchoOffCommand;
 import com.github.pires.obd.commands.protocol.LineFeedOffCommand;
 import com.github.pires.obd.commands.protocol.ObdResetCommand;
-import com.github.pires.obd.commands.protocol.SelectProtocolCommand;
-import com.github.pires.obd.commands.protocol.TimeoutCommand;
-import com.github.pires.obd.commands.temperature.AmbientAirTemperatureCommand;
-import com.github.pires.obd.enums.ObdProtocols;
-import com.github.pires.obd.exceptions.UnsupportedCommandException;
+import com.github.pires.obd.reader.config.VehicleProfileCache;
 import com.github.pires.obd.reader.io.ObdCommandJob.ObdCommandJobState;
 
-import java.io.File;
 import java.io.IOException;
 
 /**
@@ -40,7 +29,7 @@ public class ObdGatewayService extends AbstractGatewayService {
     private static final String TAG = ObdGatewayService.class.getName();
 
     private BluetoothDevice dev = null;
-    private BluetoothSocket sock = null;
+    private volatile ObdTransport transport = null;
 
     public void startService(final String remoteDevice) throws IOException {
         Log.d(TAG, "Starting service..");
@@ -111,7 +100,13 @@ public class ObdGatewayService extends AbstractGatewayService {
         Log.d(TAG, "Starting OBD connection..");
         isRunning = true;
         try {
-            sock = BluetoothManager.connect(dev);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                    && dev.getType() == BluetoothDevice.DEVICE_TYPE_LE) {
+                // BLE only adapter, no RFCOMM to connect to
+                transport = withFaults(GattPeer.connect(this, dev));
+            } else {
+                transport = withFaults(new BluetoothSocketTransport(BluetoothManager.connect(this, dev)));
+            }
         } catch (Exception e2) {
             Log.e(TAG, "There was an error while establishing Bluetooth connection. Stopping app..", e2);
             stopService();
@@ -135,15 +130,17 @@ public class ObdGatewayService extends AbstractGatewayService {
      */
         queueJob(new ObdCommandJob(new EchoOffCommand()));
         queueJob(new ObdCommandJob(new LineFeedOffCommand()));
-        queueJob(new ObdCommandJob(new TimeoutCommand(62)));
-
-        // Get protocol from preferences
-        // final String protocol = prefs.getString(ConfigActivity.PROTOCOLS_LIST_KEY, "AUTO");
-        // queueJob(new ObdCommandJob(new SelectProtocolCommand(ObdProtocols.valueOf(protocol))));
-        queueJob(new ObdCommandJob(new SelectProtocolCommand(ObdProtocols.valueOf("AUTO"))));
-
-        // Job for returning dummy data
-        queueJob(new ObdCommandJob(new AmbientAirTemperatureCommand()));
+        rateController = new RateController();
+        headerSwitch.reset();
+        queueAdapterProbes();
+
+        // Protocol and timeout, learned from earlier connections if the
+        // vehicle is known, and the probes filling its profile otherwise
+        vehicleProfiler = new VehicleProfiler(new VehicleProfileCache(this), dev.getAddress());
+        for (ObdCommandJob job : vehicleProfiler.connectJobs()) {
+            queueJob(job);
+        }
+        queueRouterSetup();
 
         queueCounter = 0L;
         Log.d(TAG, "Initialization jobs queued.");
@@ -175,54 +172,24 @@ public class ObdGatewayService extends AbstractGatewayService {
         while (!Thread.currentThread().isInterrupted()) {
             ObdCommandJob job = null;
             try {
-                job = jobsQueue.take();
+                job = nextJob();
 
                 // log job
                 Log.d(TAG, "Taking job[" + job.getId() + "] from queue..");
 
                 if (job.getState().equals(ObdCommandJobState.NEW)) {
                     Log.d(TAG, "Job state is NEW. Run it..");
-                    job.setState(ObdCommandJobState.RUNNING);
-                    if (sock.isConnected()) {
-                        job.getCommand().run(sock.getInputStream(), sock.getOutputStream());
-                    } else {
-                        job.setState(ObdCommandJobState.EXECUTION_ERROR);
-                        Log.e(TAG, "Can't run command on a closed socket.");
-                    }
+                    runJob(job, transport);
                 } else
                     // log not new job
                     Log.e(TAG,
                             "Job state was not new, so it shouldn't be in queue. BUG ALERT!");
             } catch (InterruptedException i) {
                 Thread.currentThread().interrupt();
-            } catch (UnsupportedCommandException u) {
-                if (job != null) {
-                    job.setState(ObdCommandJobState.NOT_SUPPORTED);
-                }
-                Log.d(TAG, "Command not supported. -> " + u.getMessage());
-            } catch (IOException io) {
-                if (job != null) {
-                    if(io.getMessage().contains("Broken pipe"))
-                        job.setState(ObdCommandJobState.BROKEN_PIPE);
-                    else
-                        job.setState(ObdCommandJobState.EXECUTION_ERROR);
-                }
-                Log.e(TAG, "IO error. -> " + io.getMessage());
-            } catch (Exception e) {
-                if (job != null) {
-                    job.setState(ObdCommandJobState.EXECUTION_ERROR);
-                }
-                Log.e(TAG, "Failed to run command. -> " + e.getMessage());
             }
 
             if (job != null) {
-                final ObdCommandJob job2 = job;
-                ((ReactApplicationContext) ctx).runOnUiQueueThread(new Runnable() {
-                    @Override
-                    public void run() {
-                         obdProgressListener.stateUpdate(job2);
-                    }
-                });
+                jobFinished(job);
             }
         }
     }
@@ -233,14 +200,18 @@ public class ObdGatewayService extends AbstractGatewayService {
     public void stopService() {
         Log.d(TAG, "Stopping service..");
 
-//        notificationManager.cancel(NOTIFICATION_ID);
+        stopForegroundLogging();
         jobsQueue.clear();
+        if (vehicleProfiler != null) {
+            vehicleProfiler.save();
+        }
         isRunning = false;
+        paused = false;
 
-        if (sock != null)
+        if (transport != null)
             // close socket
             try {
-                sock.close();
+                transport.close();
             } catch (IOException e) {
                 Log.e(TAG, e.getMessage());
             }
@@ -253,39 +224,4 @@ public class ObdGatewayService extends AbstractGatewayService {
         return isRunning;
     }
 
-    public static void saveLogcatToFile(Context context, String devemail) {
-        Intent emailIntent = new Intent(Intent.ACTION_SEND);
-        emailIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        emailIntent.setType("text/plain");
-        emailIntent.putExtra(Intent.EXTRA_EMAIL, new String[]{devemail});
-        emailIntent.putExtra(Intent.EXTRA_SUBJECT, "OBD2 Reader Debug Logs");
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("\nManufacturer: ").append(Build.MANUFACTURER);
-        sb.append("\nModel: ").append(Build.MODEL);
-        sb.append("\nRelease: ").append(Build.VERSION.RELEASE);
-
-        emailIntent.putExtra(Intent.EXTRA_TEXT, sb.toString());
-
-        String fileName = "OBDReader_logcat_" + System.currentTimeMillis() + ".txt";
-        File sdCard = Environment.getExternalStorageDirectory();
-        File dir = new File(sdCard.getAbsolutePath() + File.separator + "OBD2Logs");
-        if (dir.mkdirs()) {
-            File outputFile = new File(dir, fileName);
-            Uri uri = Uri.fromFile(outputFile);
-            emailIntent.putExtra(Intent.EXTRA_STREAM, uri);
-
-            Log.d("savingFile", "Going to save logcat to " + outputFile);
-            //emailIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            context.startActivity(Intent.createChooser(emailIntent, "Pick an Email provider").addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
-
-            try {
-                @SuppressWarnings("unused")
-                Process process = Runtime.getRuntime().exec("logcat -f " + outputFile.getAbsolutePath());
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
 }
@@ -0,0 +1,22 @@
+package com.github.pires.obd.reader.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The byte link between the gateway and the OBD interface, e.g. a Bluetooth
+ * socket. Commands are written to the output stream and their answers read
+ * from the input stream up to the '>' prompt.
+ */
+public interface ObdTransport {
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    boolean isConnected();
+
+    void close() throws IOException;
+
+}
@@ -0,0 +1,179 @@
+package com.github.pires.obd.reader.io;
+
+import android.util.Log;
+
+import com.github.pires.obd.reader.commands.PidCommand;
+import com.github.pires.obd.reader.io.ObdCommandJob.ObdCommandJobState;
+
+/**
+ * Keeps the request rate just below what the adapter and the bus take.
+ * <p/>
+ * Every answer is timed by the gateway. The controller keeps moving
+ * averages of the round trip of PID requests and of the overrun rate:
+ * answers the adapter cut short ("STOPPED"), overflowed ("BUFFER FULL"),
+ * garbled or never completed. Overruns double the gap left between an
+ * answer and the next request, every clean answer takes a little off again,
+ * so the gap settles at the edge of saturation: zero on most CAN vehicles,
+ * whatever a slow K-line bus or a weak clone needs elsewhere. The round trip
+ * itself isn't a congestion signal here, the gateway only sends a request
+ * once the previous answer is in.
+ * <p/>
+ * The polling loop uses {@link #getMillisPerRequest()} to queue the next
+ * cycle as the previous one drains instead of on a fixed period.
+ */
+public class RateController {
+
+    private static final String TAG = RateController.class.getName();
+
+    /**
+     * Weight of the last answer in the moving averages.
+     */
+    private static final double ALPHA = 0.1;
+    private static final double MAX_OVERRUN_RATE = 0.05;
+    private static final double GAP_STEP = 4;
+    private static final double GAP_RELIEF = 0.25;
+    private static final double MAX_GAP = 250;
+    /**
+     * Answers after a backoff before the next one, so one burst of errors
+     * isn't punished several times over.
+     */
+    private static final int HOLD_OFF = 8;
+    private static final long RATE_WINDOW = 1000000000L;
+    private static final long DEFAULT_MILLIS_PER_REQUEST = 100;
+
+    private double roundTrip = Double.NaN;
+    private double overrunRate = 0;
+    private int holdOff = 0;
+    private volatile double gap = 0;
+    private volatile long lastAnswer = 0;
+
+    private long windowStart = 0;
+    private int windowSamples = 0;
+    private double samplesPerSecond = 0;
+
+    /**
+     * Waits until the gap after the last answer has passed. Called by the
+     * gateway thread before each request.
+     */
+    public void awaitGap() throws InterruptedException {
+        final long gapNanos = (long) (gap * 1000000);
+        if (gapNanos <= 0) {
+            return;
+        }
+        final long wait = lastAnswer + gapNanos - System.nanoTime();
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+    }
+
+    /**
+     * Feeds a finished job to the controller, on the gateway thread, right
+     * after its answer was read. The gap and the rate are timed on
+     * {@link System#nanoTime()}, only the round trip on the job's clock.
+     */
+    public synchronized void handleResult(ObdCommandJob job) {
+        final long received = job.getReceivedNanos();
+        if (received == 0) {
+            // never went out
+            return;
+        }
+        final long now = System.nanoTime();
+        lastAnswer = now;
+        final boolean overrun = isOverrun(job);
+        overrunRate += ALPHA * ((overrun ? 1 : 0) - overrunRate);
+        // bus requests only, the adapter answers its own commands at once
+        if (!overrun && job.getCommand() instanceof PidCommand) {
+            final double rtt = (received - job.getSentNanos()) / 1e6;
+            roundTrip = Double.isNaN(roundTrip) ? rtt : roundTrip + ALPHA * (rtt - roundTrip);
+            countSample(now);
+        }
+
+        if (holdOff > 0) {
+            holdOff--;
+        } else if (overrun && overrunRate > MAX_OVERRUN_RATE) {
+            setGap(Math.max(gap * 2, GAP_STEP));
+            holdOff = HOLD_OFF;
+        } else if (!overrun && gap > 0) {
+            gap = Math.max(0, gap - GAP_RELIEF);
+        }
+    }
+
+    /**
+     * @return the moving average of the round trip, in ms, NaN before the
+     * first answer.
+     */
+    public synchronized double getRoundTripTime() {
+        return roundTrip;
+    }
+
+    /**
+     * @return the moving average of the share of answers overrun, 0 to 1.
+     */
+    public synchronized double getOverrunRate() {
+        return overrunRate;
+    }
+
+    /**
+     * @return the gap left between an answer and the next request, in ms.
+     */
+    public double getRequestGap() {
+        return gap;
+    }
+
+    /**
+     * @return the PID answers with a value over the last second or so.
+     */
+    public synchronized double getSamplesPerSecond() {
+        if (windowStart != 0 && System.nanoTime() - windowStart > 2 * RATE_WINDOW) {
+            // nothing answered lately
+            return 0;
+        }
+        return samplesPerSecond;
+    }
+
+    /**
+     * @return the time one request takes at the current rate, in ms.
+     */
+    public synchronized long getMillisPerRequest() {
+        if (Double.isNaN(roundTrip)) {
+            return DEFAULT_MILLIS_PER_REQUEST;
+        }
+        return Math.max(1, (long) Math.ceil(roundTrip + gap));
+    }
+
+    private void setGap(double gap) {
+        this.gap = Math.min(gap, MAX_GAP);
+        Log.d(TAG, "Request gap " + this.gap + " ms, round trip " + roundTrip + " ms, overruns " + overrunRate);
+    }
+
+    private void countSample(long now) {
+        if (windowStart == 0) {
+            windowStart = now;
+        }
+        windowSamples++;
+        if (now - windowStart >= RATE_WINDOW) {
+            samplesPerSecond = windowSamples * 1e9 / (now - windowStart);
+            windowStart = now;
+            windowSamples = 0;
+        }
+    }
+
+    /**
+     * @return true if the adapter didn't keep up with the request; answers
+     * failing for what the vehicle does or doesn't support ("NO DATA", "?",
+     * "UNABLE TO CONNECT"...) don't count.
+     */
+    private static boolean isOverrun(ObdCommandJob job) {
+        if (job.getState() != ObdCommandJobState.EXECUTION_ERROR) {
+            return false;
+        }
+        final String result = job.getCommand().getResult();
+        if (result == null) {
+            // timed out or garbled
+            return true;
+        }
+        final String answer = result.replaceAll("\\s", "");
+        return !(answer.equals("?") || answer.contains("NODATA") || answer.contains("UNABLETOCONNECT")
+                || answer.contains("BUSINIT"));
+    }
+}
@@ -0,0 +1,231 @@
+package com.github.pires.obd.reader.io;
+
+import com.github.pires.obd.reader.commands.Pid;
+import com.github.pires.obd.reader.commands.PidCommand;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A listener of finished jobs with its own executor, PID filter, rate limit
+ * and queue, registered with {@link AbstractGatewayService#subscribe}.
+ * <p/>
+ * The gateway thread only filters a job and offers it to the queue, it never
+ * waits for the listener: when the queue is full the oldest job is dropped.
+ * The queue is drained by one task at a time on the executor, so the
+ * listener sees jobs in order and never concurrently. A slow subscriber
+ * (disk, network) thus only falls behind and drops its own jobs, without
+ * holding back the others or the bus.
+ * <p/>
+ * Set the filters before subscribing.
+ */
+public class Subscription {
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final long DEFAULT_DELAY_THRESHOLD = 100;
+
+    private final ObdProgressListener listener;
+    private final Executor executor;
+    private Set<Pid> pids = null;
+    private Set<String> ids = null;
+    private long minInterval = 0;
+    private int capacity = DEFAULT_CAPACITY;
+    private long delayThresholdNanos = DEFAULT_DELAY_THRESHOLD * 1000000L;
+
+    private volatile BlockingQueue<Delivery> queue = null;
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    // gateway thread only
+    private final Map<String, long[]> lastDelivered = new HashMap<>();
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong maxDelayNanos = new AtomicLong();
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            do {
+                Delivery delivery;
+                while ((delivery = queue.poll()) != null) {
+                    final long delay = System.nanoTime() - delivery.offered;
+                    if (delay > delayThresholdNanos) {
+                        delayed.incrementAndGet();
+                    }
+                    if (delay > maxDelayNanos.get()) {
+                        maxDelayNanos.set(delay);
+                    }
+                    delivered.incrementAndGet();
+                    listener.stateUpdate(delivery.job);
+                }
+                draining.set(false);
+                // a job offered after the last poll but before the flag was
+                // cleared would otherwise wait for the next one
+            } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+        }
+    };
+
+    /**
+     * @param listener gets the jobs.
+     * @param executor runs the listener, e.g. a single thread executor.
+     */
+    public Subscription(ObdProgressListener listener, Executor executor) {
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    public ObdProgressListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Only passes the jobs of the given PIDs, and of the definitions given
+     * to {@link #setIds}; other commands are dropped, except when they lost
+     * the connection. All jobs pass by default.
+     */
+    public void setPids(Pid... pids) {
+        this.pids = pids.length > 0 ? EnumSet.of(pids[0], pids) : null;
+    }
+
+    /**
+     * Only passes the jobs of the PID definitions with the given ids, and of
+     * the PIDs given to {@link #setPids}; other commands are dropped, except
+     * when they lost the connection. All jobs pass by default.
+     */
+    public void setIds(String... ids) {
+        this.ids = ids.length > 0 ? new HashSet<>(Arrays.asList(ids)) : null;
+    }
+
+    /**
+     * Passes at most rate results per second of each command, the others
+     * are counted as throttled. 0, the default, for no limit.
+     */
+    public void setMaxRate(double rate) {
+        minInterval = rate > 0 ? (long) (1000 / rate) : 0;
+    }
+
+    /**
+     * @param capacity the jobs that can wait for the listener before the
+     *                 oldest are dropped.
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * @param ms time in the queue above which a delivery counts as delayed.
+     */
+    public void setDelayThreshold(long ms) {
+        delayThresholdNanos = ms * 1000000L;
+    }
+
+    /**
+     * Filters the job and queues it for the listener. Gateway thread only,
+     * never blocks.
+     */
+    void offer(ObdCommandJob job) {
+        if (queue == null) {
+            queue = new ArrayBlockingQueue<>(capacity);
+        }
+        final boolean connectionLost = job.getState() == ObdCommandJob.ObdCommandJobState.BROKEN_PIPE;
+        if ((pids != null || ids != null) && !connectionLost && !selected(job)) {
+            return;
+        }
+        if (minInterval > 0 && job.hasResult()) {
+            final String name = job.getCommand().getName();
+            long[] last = lastDelivered.get(name);
+            if (last == null) {
+                last = new long[]{Long.MIN_VALUE / 2};
+                lastDelivered.put(name, last);
+            }
+            final long time = (long) job.getTimestamp();
+            if (time - last[0] < minInterval) {
+                throttled.incrementAndGet();
+                return;
+            }
+            last[0] = time;
+        }
+
+        final Delivery delivery = new Delivery(job);
+        while (!queue.offer(delivery)) {
+            if (queue.poll() != null) {
+                dropped.incrementAndGet();
+            }
+        }
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(drain);
+        }
+    }
+
+    private boolean selected(ObdCommandJob job) {
+        if (!(job.getCommand() instanceof PidCommand)) {
+            return false;
+        }
+        final PidCommand command = (PidCommand) job.getCommand();
+        if (command.getPid() != null) {
+            return pids != null && pids.contains(command.getPid());
+        }
+        return ids != null && ids.contains(command.getDefinition().getId());
+    }
+
+    /**
+     * @return the jobs handed to the listener so far.
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return the jobs dropped because the queue was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the jobs left out by the rate limit.
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * @return the deliveries that waited longer than the delay threshold.
+     */
+    public long getDelayed() {
+        return delayed.get();
+    }
+
+    /**
+     * @return the longest a delivery waited in the queue, in ms.
+     */
+    public double getMaxDelay() {
+        return maxDelayNanos.get() / 1e6;
+    }
+
+    /**
+     * @return the jobs waiting for the listener.
+     */
+    public int getBacklog() {
+        return queue != null ? queue.size() : 0;
+    }
+
+    private static class Delivery {
+        private final ObdCommandJob job;
+        private final long offered = System.nanoTime();
+
+        Delivery(ObdCommandJob job) {
+            this.job = job;
+        }
+    }
+}
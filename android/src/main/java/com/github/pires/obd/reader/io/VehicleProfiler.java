@@ -0,0 +1,257 @@
+package com.github.pires.obd.reader.io;
+
+import android.util.Log;
+
+import com.github.pires.obd.commands.ObdCommand;
+import com.github.pires.obd.commands.protocol.ObdProtocolCommand;
+import com.github.pires.obd.commands.protocol.SelectProtocolCommand;
+import com.github.pires.obd.commands.protocol.TimeoutCommand;
+import com.github.pires.obd.enums.ObdProtocols;
+import com.github.pires.obd.reader.commands.IsoTpCommand;
+import com.github.pires.obd.reader.commands.MultiLineCommand;
+import com.github.pires.obd.reader.config.VehicleProfile;
+import com.github.pires.obd.reader.config.VehicleProfileCache;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fills and uses the {@link VehicleProfile} of the vehicle behind an adapter.
+ * <p/>
+ * For a vehicle seen before with the adapter, the connection is set up with
+ * the protocol and timeout learned last time, so the first live data request
+ * goes out without a protocol search or any other read ahead of it; the VIN
+ * is read again in the background once live data comes in, to check it's
+ * still the same vehicle. For a new vehicle the protocol is searched, then the ECUs, the
+ * protocol number, the VIN and the calibration IDs are read once and cached.
+ * Response times of the live data requests are tracked all along.
+ */
+public class VehicleProfiler {
+
+    private static final String TAG = VehicleProfiler.class.getName();
+
+    private final VehicleProfileCache cache;
+    private final String adapterAddress;
+    private VehicleProfile profile;
+
+    private final Set<ObdCommandJob> probes = new HashSet<>();
+    private ObdCommandJob ecuProbe = null;
+    private ObdCommandJob protocolProbe = null;
+    private ObdCommandJob vinProbe = null;
+    private ObdCommandJob calibrationProbe = null;
+    private List<String> ecuLines = null;
+    private boolean verifying = false;
+    /**
+     * True until the VIN of a known vehicle is read, after the first live
+     * data answer.
+     */
+    private boolean vinCheckDue = false;
+
+    public VehicleProfiler(VehicleProfileCache cache, String adapterAddress) {
+        this.cache = cache;
+        this.adapterAddress = adapterAddress;
+        this.profile = cache.forAdapter(adapterAddress);
+        if (profile == null) {
+            profile = new VehicleProfile(adapterAddress);
+        }
+    }
+
+    public synchronized VehicleProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return the jobs that select the protocol and read what's missing of
+     * the profile, to queue once the adapter is reset.
+     */
+    public synchronized List<ObdCommandJob> connectJobs() {
+        List<ObdCommandJob> jobs = new ArrayList<>();
+        if (profile.isKnown()) {
+            Log.d(TAG, "Known vehicle " + profile.getVin() + ", protocol " + profile.getProtocol());
+            jobs.add(new ObdCommandJob(new TimeoutCommand(profile.getTimeout())));
+            // try the known protocol first, search if it fails
+            jobs.add(new ObdCommandJob(new MultiLineCommand("AT SP A" + profile.getProtocol())));
+            verifying = true;
+            vinCheckDue = true;
+            jobs.add(protocolProbe = probe("AT DPN"));
+        } else {
+            Log.d(TAG, "Unknown vehicle, probing it.");
+            jobs.add(new ObdCommandJob(new TimeoutCommand(62)));
+            jobs.add(new ObdCommandJob(new SelectProtocolCommand(ObdProtocols.AUTO)));
+            jobs.addAll(fullProbe(true));
+        }
+        return jobs;
+    }
+
+    /**
+     * Feeds a finished job to the profiler.
+     *
+     * @param service the gateway, to queue more probes on.
+     * @return true if the job was a probe of this profiler, which shouldn't
+     * be passed on to listeners.
+     */
+    public synchronized boolean handleResult(ObdCommandJob job, AbstractGatewayService service) {
+        final ObdCommand command = job.getCommand();
+        if (!probes.remove(job)) {
+            if (job.hasResult() && !(command instanceof ObdProtocolCommand)) {
+                profile.addResponseTime((job.getReceivedNanos() - job.getSentNanos()) / 1000000L);
+                if (vinCheckDue) {
+                    // live data flows, the check can wait behind it
+                    vinCheckDue = false;
+                    vinProbe = new ObdCommandJob(new IsoTpCommand("09 02"));
+                    probes.add(vinProbe);
+                    service.queueJob(vinProbe);
+                }
+            }
+            return false;
+        }
+        if (command instanceof IsoTpCommand) {
+            // the VIN check, read with whatever headers the ECU router set
+            handleVin(job.hasResult() ? decodeVin((IsoTpCommand) command) : null, service);
+            finishProbe();
+            return true;
+        }
+
+        final List<String> lines = job.hasResult()
+                ? ((MultiLineCommand) command).getLines() : new ArrayList<String>();
+        if (job == protocolProbe) {
+            final char protocol = decodeProtocol(lines);
+            if (protocol != 0) {
+                profile.setProtocol(protocol);
+            }
+            if (ecuLines != null) {
+                // the headers' layout depends on the protocol
+                profile.setEcus(VehicleProfile.decodeEcus(ecuLines, "4100", profile.getProtocol()));
+                ecuLines = null;
+            }
+        } else if (job == ecuProbe) {
+            ecuLines = lines;
+        } else if (job == calibrationProbe) {
+            profile.setCalibrationIds(VehicleProfile.decodeAscii(lines, "04"));
+        } else if (job == vinProbe) {
+            handleVin(VehicleProfile.decodeAscii(lines, "02"), service);
+        }
+        finishProbe();
+        return true;
+    }
+
+    private void finishProbe() {
+        if (probes.isEmpty() && !vinCheckDue) {
+            verifying = false;
+            save();
+        }
+    }
+
+    /**
+     * Stores the profile, with the response times measured so far.
+     */
+    public synchronized void save() {
+        if (profile.isKnown() && !verifying) {
+            cache.put(profile);
+        }
+    }
+
+    private void handleVin(String vins, AbstractGatewayService service) {
+        // several ECUs may answer, the first VIN is the vehicle's
+        final String vin = vins != null ? vins.split(",")[0] : null;
+        if (vin == null || vin.length() != 17) {
+            // no VIN, the profile stays keyed by the adapter
+            return;
+        }
+        if (!verifying || profile.getVin() == null) {
+            profile.setVin(vin);
+            return;
+        }
+        if (vin.equals(profile.getVin())) {
+            return;
+        }
+
+        Log.d(TAG, "Adapter moved from " + profile.getVin() + " to " + vin);
+        final VehicleProfile previous = profile;
+        VehicleProfile known = cache.forVin(vin);
+        if (known != null) {
+            known.setAdapterAddress(adapterAddress);
+            profile = known;
+        } else {
+            profile = new VehicleProfile(adapterAddress);
+            profile.setVin(vin);
+            for (ObdCommandJob job : fullProbe(false)) {
+                service.queueJob(job);
+            }
+            // the probes turn headers off, the ECU router has to set them again
+            service.queueRouterSetup();
+        }
+        // same adapter, already probed
+        profile.setAdapter(previous.getAdapter(), previous.getAdapterClass());
+    }
+
+    private List<ObdCommandJob> fullProbe(boolean withVin) {
+        List<ObdCommandJob> jobs = new ArrayList<>();
+        // the first request to the bus also runs the protocol search
+        jobs.add(new ObdCommandJob(new MultiLineCommand("AT H1")));
+        jobs.add(ecuProbe = probe("01 00"));
+        jobs.add(new ObdCommandJob(new MultiLineCommand("AT H0")));
+        jobs.add(protocolProbe = probe("AT DPN"));
+        if (withVin) {
+            jobs.add(vinProbe = probe("09 02"));
+        }
+        jobs.add(calibrationProbe = probe("09 04"));
+        // the header switches are probes too, so they stay internal
+        probes.add(jobs.get(0));
+        probes.add(jobs.get(2));
+        return jobs;
+    }
+
+    private ObdCommandJob probe(String command) {
+        ObdCommandJob job = new ObdCommandJob(new MultiLineCommand(command));
+        probes.add(job);
+        return job;
+    }
+
+    /**
+     * @return the VIN of the first ECU answering 09 02 with one, null if
+     * none did.
+     */
+    private static String decodeVin(IsoTpCommand command) {
+        for (int i = 0; i < command.getAnswerCount(); i++) {
+            final byte[] payload = command.getPayload(i);
+            if (payload.length < 3 || (payload[0] & 0xFF) != 0x49 || payload[1] != 0x02) {
+                continue;
+            }
+            StringBuilder vin = new StringBuilder();
+            // ISO-TP sends 49 02 01 and the VIN, the older protocols one
+            // 49 02 nn line per 4 bytes
+            final boolean numbered = payload.length % 7 == 0 && payload.length > 7 && (payload[7] & 0xFF) == 0x49;
+            for (int at = 3; at < payload.length; at++) {
+                if (numbered && at % 7 < 3) {
+                    continue;
+                }
+                final int b = payload[at] & 0xFF;
+                if (b > 0x20 && b < 0x7F) {
+                    vin.append((char) b);
+                }
+            }
+            if (vin.length() == 17) {
+                return vin.toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the protocol number of an ATDPN answer, e.g. '6' for "A6".
+     */
+    private static char decodeProtocol(List<String> lines) {
+        if (lines.isEmpty()) {
+            return 0;
+        }
+        final String dpn = lines.get(lines.size() - 1);
+        if (dpn.length() == 2 && dpn.charAt(0) == 'A') {
+            // automatically selected
+            return dpn.charAt(1);
+        }
+        return dpn.length() == 1 && dpn.charAt(0) != '0' ? dpn.charAt(0) : 0;
+    }
+}
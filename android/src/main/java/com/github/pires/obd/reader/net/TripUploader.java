@@ -0,0 +1,347 @@
+package com.github.pires.obd.reader.net;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads samples to a server in gzip compressed CSV chunks.
+ * <p/>
+ * Samples are collected in memory until a batch is full (or the flush
+ * interval elapses), then compressed and spooled to disk. The spool is
+ * drained oldest first by a single background thread; a failed upload is
+ * retried with exponential backoff and the chunk stays on disk until the
+ * server accepts it, so nothing is lost when the connection drops or the app
+ * is restarted.
+ */
+public class TripUploader {
+
+    private static final String TAG = TripUploader.class.getName();
+    private static final String CHUNK_SUFFIX = ".csv.gz";
+    private static final String CSV_HEADER = "timestamp,cmdID,value\n";
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 5 * 60 * 1000;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private final File spoolDir;
+    private final URL endpoint;
+    private final Map<String, String> headers;
+    private final int batchSize;
+    private final long flushInterval;
+    private final long maxSpoolSize;
+    private final Random random = new Random();
+    /**
+     * Held while uploading, so the upload a stopped uploader finishes and
+     * the drain of the next one don't post the same chunk.
+     */
+    private static final Object DRAIN_LOCK = new Object();
+
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> pendingDrain;
+    private StringBuilder batch = new StringBuilder(CSV_HEADER);
+    private int batchCount = 0;
+    private long chunkSequence = 0;
+    private long backoff = 0;
+
+    /**
+     * @param spoolDir      directory where compressed chunks wait for upload.
+     * @param endpoint      the URL chunks are POSTed to.
+     * @param headers       extra request headers, e.g. for authorization.
+     * @param batchSize     number of samples per chunk.
+     * @param flushInterval max time in ms a sample waits in memory.
+     * @param maxSpoolSize  max bytes kept on disk, the oldest chunks are
+     *                      dropped beyond that.
+     */
+    public TripUploader(File spoolDir, URL endpoint, Map<String, String> headers,
+                        int batchSize, long flushInterval, long maxSpoolSize) {
+        this.spoolDir = spoolDir;
+        this.endpoint = endpoint;
+        this.headers = headers != null ? headers : Collections.<String, String>emptyMap();
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.maxSpoolSize = maxSpoolSize;
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        Log.d(TAG, "Starting uploader to " + endpoint);
+        spoolDir.mkdirs();
+        executor = Executors.newSingleThreadScheduledExecutor();
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        // chunks left over from a previous run go first
+        scheduleDrain(0);
+    }
+
+    /**
+     * Flushes the current batch to disk and stops the background thread,
+     * without waiting for it. Batches already handed to it are still
+     * spooled, and the upload in progress is finished; whatever couldn't be
+     * uploaded yet stays spooled for the next start.
+     */
+    public void stop() {
+        final ScheduledExecutorService e;
+        synchronized (this) {
+            e = executor;
+            executor = null;
+            if (pendingDrain != null) {
+                // a retry could otherwise keep the thread alive for minutes
+                pendingDrain.cancel(false);
+                pendingDrain = null;
+            }
+        }
+        if (e == null) {
+            return;
+        }
+        Log.d(TAG, "Stopping uploader..");
+        e.shutdown();
+        // spooled on this thread, the executor is gone
+        flush();
+    }
+
+    /**
+     * Adds a sample to the current batch. Cheap enough to be called for
+     * every result; compression and I/O happen on the uploader thread.
+     */
+    public void add(String cmdID, double value, long timestamp) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        boolean full;
+        synchronized (this) {
+            batch.append(timestamp).append(',').append(cmdID).append(',').append(value).append('\n');
+            full = ++batchCount >= batchSize;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Spools the current batch and triggers an upload. Once stopped, the
+     * batch is spooled on the calling thread and uploaded after the next
+     * start.
+     */
+    public void flush() {
+        final String pending;
+        synchronized (this) {
+            pending = takeBatch();
+            if (pending == null) {
+                return;
+            }
+            if (executor != null) {
+                // not shut down yet, stop() clears it under this lock first
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        spool(pending);
+                        if (backoff == 0) {
+                            drain();
+                        }
+                    }
+                });
+                return;
+            }
+        }
+        spool(pending);
+    }
+
+    private synchronized String takeBatch() {
+        if (batchCount == 0) {
+            return null;
+        }
+        String pending = batch.toString();
+        batch = new StringBuilder(pending.length() + 64).append(CSV_HEADER);
+        batchCount = 0;
+        return pending;
+    }
+
+    private synchronized void scheduleDrain(long delay) {
+        if (executor == null) {
+            return;
+        }
+        if (pendingDrain != null) {
+            pendingDrain.cancel(false);
+        }
+        pendingDrain = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized File nextChunk() {
+        return new File(spoolDir, String.format("%013d-%06d%s",
+                System.currentTimeMillis(), chunkSequence++ % 1000000, CHUNK_SUFFIX));
+    }
+
+    private void spool(String csv) {
+        spoolDir.mkdirs();
+        File chunk = nextChunk();
+        File tmp = new File(spoolDir, chunk.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new GZIPOutputStream(new FileOutputStream(tmp));
+            out.write(csv.getBytes("UTF-8"));
+            out.close();
+            out = null;
+            if (!tmp.renameTo(chunk)) {
+                throw new IOException("Can't rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to spool chunk. -> " + e.getMessage());
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+        trimSpool();
+    }
+
+    private File[] spooledChunks() {
+        File[] chunks = spoolDir.listFiles();
+        if (chunks == null) {
+            return new File[0];
+        }
+        int n = 0;
+        for (File f : chunks) {
+            if (f.getName().endsWith(CHUNK_SUFFIX)) {
+                chunks[n++] = f;
+            }
+        }
+        chunks = Arrays.copyOf(chunks, n);
+        // names start with a zero padded timestamp, so this is oldest first
+        Arrays.sort(chunks);
+        return chunks;
+    }
+
+    private void trimSpool() {
+        File[] chunks = spooledChunks();
+        long total = 0;
+        for (File f : chunks) {
+            total += f.length();
+        }
+        for (int i = 0; i < chunks.length && total > maxSpoolSize; i++) {
+            Log.e(TAG, "Spool is full, dropping " + chunks[i].getName());
+            total -= chunks[i].length();
+            chunks[i].delete();
+        }
+    }
+
+    /**
+     * Uploads spooled chunks until the spool is empty or an upload fails.
+     * Runs on the uploader thread only.
+     */
+    private void drain() {
+        synchronized (DRAIN_LOCK) {
+            drainSpool();
+        }
+    }
+
+    private void drainSpool() {
+        for (File chunk : spooledChunks()) {
+            synchronized (this) {
+                if (executor == null) {
+                    // stopped, the rest goes after the next start
+                    return;
+                }
+            }
+            if (!chunk.exists()) {
+                // uploaded by the drain this one waited for
+                continue;
+            }
+            int code;
+            try {
+                code = post(chunk);
+            } catch (IOException e) {
+                Log.e(TAG, "Upload failed. -> " + e.getMessage());
+                retryLater();
+                return;
+            }
+            if (code >= 200 && code < 300) {
+                Log.d(TAG, "Uploaded " + chunk.getName());
+                chunk.delete();
+            } else if (code >= 400 && code < 500 && code != 408 && code != 429) {
+                // the server will never take this one, don't block the spool with it
+                Log.e(TAG, "Chunk " + chunk.getName() + " rejected with " + code + ", dropping it.");
+                chunk.delete();
+            } else {
+                Log.e(TAG, "Upload failed with HTTP " + code);
+                retryLater();
+                return;
+            }
+        }
+        backoff = 0;
+    }
+
+    private void retryLater() {
+        backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+        // jitter, so a fleet coming back online doesn't hit the server at once
+        long delay = backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+        Log.d(TAG, "Retrying upload in " + delay + "ms");
+        scheduleDrain(delay);
+    }
+
+    private int post(File chunk) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) endpoint.openConnection();
+        InputStream in = null;
+        try {
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode((int) chunk.length());
+            conn.setRequestProperty("Content-Type", "text/csv");
+            conn.setRequestProperty("Content-Encoding", "gzip");
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            OutputStream out = conn.getOutputStream();
+            in = new FileInputStream(chunk);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.close();
+            return conn.getResponseCode();
+        } finally {
+            closeQuietly(in);
+            conn.disconnect();
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.github.pires.obd.reader.rules;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates alert rules on every sample and reports only the transitions.
+ * <p/>
+ * A rule is a set of threshold conditions on streams (cmdIDs), combined with
+ * "all" or "any", that has to hold for a given duration before the alert is
+ * raised. Each condition has its own hysteresis: "above 6000, hysteresis 200"
+ * turns true over 6000 and back to false under 5800 only, so a value hovering
+ * around the threshold doesn't toggle the alert.
+ * <p/>
+ * The rule set is compiled into flat arrays indexed by condition and rule;
+ * a sample costs one map lookup for its stream, then only touches the
+ * conditions on that stream and the rules using them.
+ */
+public class RuleEngine {
+
+    public interface Listener {
+        /**
+         * @param ruleId the rule that changed.
+         * @param active true when raised, false when cleared.
+         * @param time   the time of the sample that changed it, in ms since
+         *               the epoch.
+         * @param ids    the streams the rule looks at.
+         * @param values their last values, NaN if not read yet.
+         */
+        void onAlert(String ruleId, boolean active, double time, String[] ids, double[] values);
+    }
+
+    private final Listener listener;
+
+    // per stream
+    private final Map<String, Integer> streamIndex = new HashMap<>();
+    private final String[] streamIds;
+    private final double[] lastValues;
+    private final int[][] streamConditions;
+
+    // per condition
+    private final int[] conditionRule;
+    private final boolean[] conditionAbove;
+    private final double[] conditionThreshold;
+    private final double[] conditionHysteresis;
+    private final boolean[] conditionState;
+
+    // per rule
+    private final String[] ruleIds;
+    private final boolean[] ruleAll;
+    private final long[] ruleDuration;
+    private final int[][] ruleConditions;
+    private final int[][] ruleStreams;
+    private final double[] pendingSince;
+    private final boolean[] ruleActive;
+
+    /**
+     * Compiles a rule set, e.g.
+     * <pre>
+     * [{"id": "overRev", "match": "all", "duration": 500, "conditions": [
+     *     {"cmdID": "ENGINE_RPM", "above": 6000, "hysteresis": 200}]}]
+     * </pre>
+     * "match" defaults to "all", "duration" (ms) and "hysteresis" to 0; each
+     * condition takes either "above" or "below".
+     *
+     * @throws JSONException if the rule set isn't valid.
+     */
+    public RuleEngine(String rules, Listener listener) throws JSONException {
+        this.listener = listener;
+        final JSONArray json = new JSONArray(rules);
+
+        List<String> streams = new ArrayList<>();
+        List<List<Integer>> byStream = new ArrayList<>();
+        int conditions = 0;
+        for (int r = 0; r < json.length(); r++) {
+            conditions += json.getJSONObject(r).getJSONArray("conditions").length();
+        }
+
+        ruleIds = new String[json.length()];
+        ruleAll = new boolean[json.length()];
+        ruleDuration = new long[json.length()];
+        ruleConditions = new int[json.length()][];
+        ruleStreams = new int[json.length()][];
+        pendingSince = new double[json.length()];
+        ruleActive = new boolean[json.length()];
+        conditionRule = new int[conditions];
+        conditionAbove = new boolean[conditions];
+        conditionThreshold = new double[conditions];
+        conditionHysteresis = new double[conditions];
+        conditionState = new boolean[conditions];
+
+        int c = 0;
+        for (int r = 0; r < json.length(); r++) {
+            final JSONObject rule = json.getJSONObject(r);
+            ruleIds[r] = rule.getString("id");
+            final String match = rule.optString("match", "all");
+            if (!match.equals("all") && !match.equals("any")) {
+                throw new JSONException("Rule " + ruleIds[r] + ": match must be 'all' or 'any'");
+            }
+            ruleAll[r] = match.equals("all");
+            ruleDuration[r] = rule.optLong("duration", 0);
+            pendingSince[r] = Double.NaN;
+
+            final JSONArray conds = rule.getJSONArray("conditions");
+            if (conds.length() == 0) {
+                throw new JSONException("Rule " + ruleIds[r] + " has no conditions");
+            }
+            ruleConditions[r] = new int[conds.length()];
+            List<Integer> ruleStreamList = new ArrayList<>();
+            for (int i = 0; i < conds.length(); i++, c++) {
+                final JSONObject cond = conds.getJSONObject(i);
+                final String stream = cond.getString("cmdID");
+                Integer s = streamIndex.get(stream);
+                if (s == null) {
+                    s = streams.size();
+                    streamIndex.put(stream, s);
+                    streams.add(stream);
+                    byStream.add(new ArrayList<Integer>());
+                }
+                if (cond.has("above") == cond.has("below")) {
+                    throw new JSONException("Rule " + ruleIds[r] + ": a condition takes either above or below");
+                }
+                conditionRule[c] = r;
+                conditionAbove[c] = cond.has("above");
+                conditionThreshold[c] = cond.getDouble(conditionAbove[c] ? "above" : "below");
+                conditionHysteresis[c] = Math.abs(cond.optDouble("hysteresis", 0));
+                ruleConditions[r][i] = c;
+                byStream.get(s).add(c);
+                if (!ruleStreamList.contains(s)) {
+                    ruleStreamList.add(s);
+                }
+            }
+            ruleStreams[r] = toArray(ruleStreamList);
+        }
+
+        streamIds = streams.toArray(new String[streams.size()]);
+        lastValues = new double[streamIds.length];
+        streamConditions = new int[streamIds.length][];
+        for (int s = 0; s < streamIds.length; s++) {
+            lastValues[s] = Double.NaN;
+            streamConditions[s] = toArray(byStream.get(s));
+        }
+    }
+
+    /**
+     * Evaluates the rules looking at the given stream.
+     *
+     * @param id    the stream ID.
+     * @param value the value, NaN samples are ignored.
+     * @param time  the sample time in ms since the epoch.
+     */
+    public synchronized void add(String id, double value, double time) {
+        final Integer s = streamIndex.get(id);
+        if (s == null || Double.isNaN(value)) {
+            return;
+        }
+        lastValues[s] = value;
+
+        final int[] conds = streamConditions[s];
+        int lastRule = -1;
+        for (int i = 0; i < conds.length; i++) {
+            final int c = conds[i];
+            final double threshold = conditionThreshold[c];
+            if (conditionAbove[c]) {
+                conditionState[c] = conditionState[c]
+                        ? value >= threshold - conditionHysteresis[c] : value > threshold;
+            } else {
+                conditionState[c] = conditionState[c]
+                        ? value <= threshold + conditionHysteresis[c] : value < threshold;
+            }
+            // conditions of a rule are contiguous, evaluate each rule once
+            if (conditionRule[c] != lastRule) {
+                if (lastRule >= 0) {
+                    evaluate(lastRule, time);
+                }
+                lastRule = conditionRule[c];
+            }
+        }
+        if (lastRule >= 0) {
+            evaluate(lastRule, time);
+        }
+    }
+
+    /**
+     * Clears all alerts without reporting them, e.g. between two connections.
+     */
+    public synchronized void reset() {
+        for (int s = 0; s < lastValues.length; s++) {
+            lastValues[s] = Double.NaN;
+        }
+        for (int c = 0; c < conditionState.length; c++) {
+            conditionState[c] = false;
+        }
+        for (int r = 0; r < ruleActive.length; r++) {
+            ruleActive[r] = false;
+            pendingSince[r] = Double.NaN;
+        }
+    }
+
+    private void evaluate(int r, double time) {
+        final int[] conds = ruleConditions[r];
+        boolean holds = ruleAll[r];
+        for (int i = 0; i < conds.length; i++) {
+            if (conditionState[conds[i]] != ruleAll[r]) {
+                holds = !ruleAll[r];
+                break;
+            }
+        }
+
+        if (!holds) {
+            pendingSince[r] = Double.NaN;
+            if (ruleActive[r]) {
+                ruleActive[r] = false;
+                report(r, false, time);
+            }
+            return;
+        }
+        if (ruleActive[r]) {
+            return;
+        }
+        if (Double.isNaN(pendingSince[r])) {
+            pendingSince[r] = time;
+        }
+        if (time - pendingSince[r] >= ruleDuration[r]) {
+            ruleActive[r] = true;
+            report(r, true, time);
+        }
+    }
+
+    private void report(int r, boolean active, double time) {
+        final int[] streams = ruleStreams[r];
+        final String[] ids = new String[streams.length];
+        final double[] values = new double[streams.length];
+        for (int i = 0; i < streams.length; i++) {
+            ids[i] = streamIds[streams[i]];
+            values[i] = lastValues[streams[i]];
+        }
+        listener.onAlert(ruleIds[r], active, time, ids, values);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        final int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
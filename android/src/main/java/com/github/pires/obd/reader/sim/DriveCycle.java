@@ -0,0 +1,112 @@
+package com.github.pires.obd.reader.sim;
+
+/**
+ * A speed profile the simulated vehicle follows, as waypoints of time and
+ * target speed linearly interpolated in between. A negative speed means the
+ * engine is off. The cycle repeats once it ends.
+ */
+public class DriveCycle {
+
+    public static final DriveCycle IDLE = new DriveCycle(
+            new double[]{0, 60},
+            new double[]{0, 0});
+
+    /**
+     * Stop and go city driving, loosely after the ECE-15 urban cycle.
+     */
+    public static final DriveCycle URBAN = new DriveCycle(
+            new double[]{0, 11, 15, 23, 25, 28, 49, 61, 63, 75, 86, 88, 96, 112, 136, 144, 155, 163, 176, 188, 195},
+            new double[]{0, 0, 15, 15, 10, 0, 0, 32, 32, 10, 0, 0, 0, 50, 50, 35, 35, 20, 20, 0, 0});
+
+    /**
+     * Highway driving, loosely after the HWFET cycle.
+     */
+    public static final DriveCycle HIGHWAY = new DriveCycle(
+            new double[]{0, 5, 40, 120, 180, 230, 300, 380, 420, 480, 540, 600, 640, 680, 700},
+            new double[]{0, 0, 70, 85, 78, 95, 100, 92, 110, 105, 80, 96, 60, 20, 0});
+
+    /**
+     * City, highway and a short stop with the engine off.
+     */
+    public static final DriveCycle MIXED = concat(URBAN, HIGHWAY, new DriveCycle(
+            new double[]{0, 5, 35, 40},
+            new double[]{0, -1, -1, 0}));
+
+    private final double[] times;
+    private final double[] speeds;
+
+    /**
+     * @param times  waypoint times in seconds, ascending and starting at 0.
+     * @param speeds target speeds in km/h, negative for engine off.
+     */
+    public DriveCycle(double[] times, double[] speeds) {
+        if (times.length < 2 || times.length != speeds.length || times[0] != 0) {
+            throw new IllegalArgumentException("A drive cycle needs at least two waypoints starting at 0s.");
+        }
+        for (int i = 1; i < times.length; i++) {
+            if (times[i] <= times[i - 1]) {
+                throw new IllegalArgumentException("Drive cycle times must be ascending.");
+            }
+        }
+        this.times = times;
+        this.speeds = speeds;
+    }
+
+    public static DriveCycle byName(String name) {
+        if ("idle".equalsIgnoreCase(name)) {
+            return IDLE;
+        } else if ("urban".equalsIgnoreCase(name)) {
+            return URBAN;
+        } else if ("highway".equalsIgnoreCase(name)) {
+            return HIGHWAY;
+        } else if ("mixed".equalsIgnoreCase(name)) {
+            return MIXED;
+        }
+        throw new IllegalArgumentException("Unknown drive cycle " + name);
+    }
+
+    public static DriveCycle concat(DriveCycle... cycles) {
+        int n = 0;
+        for (DriveCycle c : cycles) {
+            n += c.times.length;
+        }
+        double[] times = new double[n];
+        double[] speeds = new double[n];
+        int i = 0;
+        double offset = 0;
+        for (DriveCycle c : cycles) {
+            for (int j = 0; j < c.times.length; j++, i++) {
+                // keep the times strictly ascending at the seams
+                times[i] = offset + c.times[j] + (j == 0 && i > 0 ? 0.001 : 0);
+                speeds[i] = c.speeds[j];
+            }
+            offset = times[i - 1];
+        }
+        return new DriveCycle(times, speeds);
+    }
+
+    /**
+     * @return the cycle length in seconds.
+     */
+    public double getDuration() {
+        return times[times.length - 1];
+    }
+
+    /**
+     * @param t seconds since the start of the cycle, wrapped around its end.
+     * @return the target speed in km/h, negative when the engine is off.
+     */
+    public double speedAt(double t) {
+        t = t % getDuration();
+        int i = 1;
+        while (times[i] < t) {
+            i++;
+        }
+        if (speeds[i - 1] < 0 || speeds[i] < 0) {
+            // no interpolation into or out of engine off, it holds until the next waypoint
+            return speeds[i - 1];
+        }
+        double f = (t - times[i - 1]) / (times[i] - times[i - 1]);
+        return speeds[i - 1] + f * (speeds[i] - speeds[i - 1]);
+    }
+}
@@ -0,0 +1,366 @@
+package com.github.pires.obd.reader.sim;
+
+import com.github.pires.obd.reader.io.ObdTransport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * An in-memory ELM327 answering requests from a {@link VehicleModel}.
+ * <p/>
+ * Requests written to the output stream are answered on the input stream
+ * the way an ELM327 with echo off would: hex bytes separated by spaces and
+ * terminated by the '>' prompt. The vehicle talks 11 bit CAN and has two
+ * ECUs, the engine (7E8) and the transmission (7E9, RPM and speed only);
+ * headers (ATH1) and physical addressing (ATSH 7E0 / 7E1) work as on a real
+ * vehicle, and the engine's VIN (09 02) comes as a multi-frame answer. Each answer is held back by the
+ * configured latency plus its transfer time at the configured throughput,
+ * so the gateway can be loaded at realistic or arbitrary rates.
+ */
+public class SimulatedElm327 implements ObdTransport {
+
+    private static final String PROMPT = "\r\r>";
+    private static final int ENGINE = 0x7E8;
+    private static final int TRANSMISSION = 0x7E9;
+    private static final int FUNCTIONAL = 0x7DF;
+    private static final String VIN = "1HGCM82633A004352";
+
+    private final VehicleModel vehicle;
+    private final long latencyNanos;
+    private final long nanosPerByte;
+    private final double timeScale;
+    private final long startTime = System.nanoTime();
+
+    private final StringBuilder request = new StringBuilder();
+    private final StringBuilder response = new StringBuilder();
+    private byte[] pending = new byte[0];
+    private int pendingPos = 0;
+    private long readyAt = 0;
+    private boolean headers = false;
+    private int requestHeader = FUNCTIONAL;
+    private volatile boolean connected = true;
+
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            synchronized (SimulatedElm327.this) {
+                if (pendingPos >= pending.length) {
+                    return -1;
+                }
+                waitUntilReady();
+                return pending[pendingPos++] & 0xFF;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (SimulatedElm327.this) {
+                return System.nanoTime() >= readyAt ? pending.length - pendingPos : 0;
+            }
+        }
+    };
+
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) {
+            synchronized (SimulatedElm327.this) {
+                if (b == '\r') {
+                    respond(request.toString());
+                    request.setLength(0);
+                } else if (b != ' ' && b != '\n') {
+                    request.append(Character.toUpperCase((char) b));
+                }
+            }
+        }
+    };
+
+    /**
+     * @param vehicle        the vehicle to read values from.
+     * @param latency        ms between the end of a request and the answer.
+     * @param bytesPerSecond link throughput, 0 for unlimited.
+     * @param timeScale      how many simulated seconds pass per real second.
+     */
+    public SimulatedElm327(VehicleModel vehicle, long latency, int bytesPerSecond, double timeScale) {
+        this.vehicle = vehicle;
+        this.latencyNanos = latency * 1000000L;
+        this.nanosPerByte = bytesPerSecond > 0 ? 1000000000L / bytesPerSecond : 0;
+        this.timeScale = timeScale;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+    }
+
+    private void waitUntilReady() throws IOException {
+        long wait = readyAt - System.nanoTime();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the adapter.");
+            }
+        }
+    }
+
+    private void respond(String cmd) {
+        vehicle.advanceTo((System.nanoTime() - startTime) / 1e9 * timeScale);
+        response.setLength(0);
+        if (cmd.startsWith("AT")) {
+            respondAt(cmd.substring(2));
+        } else if (cmd.startsWith("01") && cmd.matches("01[0-9A-F]{2}[1-9]?")) {
+            // an optional digit tells how many answers to wait for
+            respondMode1(cmd.substring(2, 4), cmd.length() > 4 ? cmd.charAt(4) - '0' : Integer.MAX_VALUE);
+        } else if (cmd.equals("0902") && (requestHeader == FUNCTIONAL || requestHeader == ENGINE - 8)) {
+            // 49 02, one item, then the VIN
+            byte[] answer = new byte[3 + VIN.length()];
+            answer[0] = 0x49;
+            answer[1] = 0x02;
+            answer[2] = 0x01;
+            System.arraycopy(VIN.getBytes(), 0, answer, 3, VIN.length());
+            appendMessage(ENGINE, answer);
+        } else if (cmd.startsWith("09") || cmd.startsWith("03") || cmd.startsWith("07")) {
+            response.append("NO DATA");
+        } else {
+            response.append('?');
+        }
+        response.append(PROMPT);
+
+        // whatever wasn't read of the previous answer is dropped, as after a new request
+        pending = response.toString().getBytes();
+        pendingPos = 0;
+        readyAt = System.nanoTime() + latencyNanos + nanosPerByte * (cmd.length() + 1 + pending.length);
+    }
+
+    private void respondAt(String at) {
+        if (at.equals("Z") || at.equals("WS")) {
+            headers = false;
+            requestHeader = FUNCTIONAL;
+            response.append("ELM327 v1.4b");
+        } else if (at.equals("I")) {
+            response.append("ELM327 v1.4b");
+        } else if (at.equals("RV")) {
+            response.append(String.format(Locale.US, "%.1fV", vehicle.getBatteryVoltage()));
+        } else if (at.equals("DP")) {
+            response.append("AUTO, ISO 15765-4 (CAN 11/500)");
+        } else if (at.equals("DPN")) {
+            response.append("A6");
+        } else if (at.equals("H0") || at.equals("H1")) {
+            headers = at.equals("H1");
+            response.append("OK");
+        } else if (at.startsWith("SH")) {
+            try {
+                requestHeader = Integer.parseInt(at.substring(2), 16);
+                response.append("OK");
+            } catch (NumberFormatException e) {
+                response.append('?');
+            }
+        } else if (at.equals("D")) {
+            headers = false;
+            requestHeader = FUNCTIONAL;
+            response.append("OK");
+        } else {
+            response.append("OK");
+        }
+    }
+
+    private void respondMode1(String pid, int maxAnswers) {
+        if (!vehicle.isEngineOn()) {
+            // the ECUs are asleep
+            response.append("NO DATA");
+            return;
+        }
+
+        final int number = Integer.parseInt(pid, 16);
+        boolean answered = false;
+        if (requestHeader == FUNCTIONAL || requestHeader == ENGINE - 8) {
+            answered = answerEngine(number);
+        }
+        if ((requestHeader == FUNCTIONAL && (!answered || maxAnswers > 1)) || requestHeader == TRANSMISSION - 8) {
+            answered |= answerTransmission(number);
+        }
+        if (!answered) {
+            response.append("NO DATA");
+        }
+    }
+
+    private boolean answerEngine(int pid) {
+        final int value;
+        final int bytes;
+        switch (pid) {
+            case 0x00:
+                // 04 05 0B 0C 0D 0F 10 11 1F 20
+                bytes = 4;
+                value = 0x183B8003;
+                break;
+            case 0x20:
+                // 2F 33 40
+                bytes = 4;
+                value = 0x00022001;
+                break;
+            case 0x40:
+                // 42 46 5C 5E
+                bytes = 4;
+                value = 0x44000014;
+                break;
+            case 0x04:
+                bytes = 1;
+                value = (int) Math.round(vehicle.getLoad() * 255 / 100);
+                break;
+            case 0x05:
+                bytes = 1;
+                value = (int) Math.round(vehicle.getCoolantTemp() + 40);
+                break;
+            case 0x0B:
+                bytes = 1;
+                value = (int) Math.round(vehicle.getManifoldPressure());
+                break;
+            case 0x0C:
+                bytes = 2;
+                value = (int) Math.round(vehicle.getRpm() * 4);
+                break;
+            case 0x0D:
+                bytes = 1;
+                value = (int) Math.round(vehicle.getSpeed());
+                break;
+            case 0x0F:
+            case 0x46:
+                bytes = 1;
+                value = (int) Math.round(vehicle.getAmbientTemp() + 40);
+                break;
+            case 0x10:
+                bytes = 2;
+                value = (int) Math.round(vehicle.getMaf() * 100);
+                break;
+            case 0x11:
+                bytes = 1;
+                value = (int) Math.round(vehicle.getThrottle() * 255 / 100);
+                break;
+            case 0x1F:
+                bytes = 2;
+                value = (int) vehicle.getRuntime();
+                break;
+            case 0x2F:
+                bytes = 1;
+                value = (int) Math.round(vehicle.getFuelLevel() * 255 / 100);
+                break;
+            case 0x33:
+                bytes = 1;
+                value = 101;
+                break;
+            case 0x42:
+                bytes = 2;
+                value = (int) Math.round(vehicle.getBatteryVoltage() * 1000);
+                break;
+            case 0x5C:
+                bytes = 1;
+                value = (int) Math.round(vehicle.getCoolantTemp() + 40 + 5);
+                break;
+            case 0x5E:
+                bytes = 2;
+                value = (int) Math.round(vehicle.getFuelRate() * 20);
+                break;
+            default:
+                return false;
+        }
+        appendAnswer(ENGINE, pid, bytes, value);
+        return true;
+    }
+
+    private boolean answerTransmission(int pid) {
+        switch (pid) {
+            case 0x00:
+                // 0C 0D
+                appendAnswer(TRANSMISSION, pid, 4, 0x00180000);
+                return true;
+            case 0x0C:
+                appendAnswer(TRANSMISSION, pid, 2, (int) Math.round(vehicle.getRpm() * 4));
+                return true;
+            case 0x0D:
+                appendAnswer(TRANSMISSION, pid, 1, (int) Math.round(vehicle.getSpeed()));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void appendAnswer(int ecu, int pid, int bytes, int value) {
+        if (response.length() > 0) {
+            response.append('\r');
+        }
+        if (headers) {
+            response.append(Integer.toHexString(ecu).toUpperCase()).append(" 0").append(bytes + 2).append(' ');
+        }
+        response.append("41");
+        appendByte(pid);
+        for (int i = bytes - 1; i >= 0; i--) {
+            appendByte(bytes < 4 && value >= 1 << (8 * bytes) ? 0xFF : (value >>> (8 * i)) & 0xFF);
+        }
+    }
+
+    /**
+     * Appends a message the way an ISO-TP answer shows: a single frame if it
+     * fits, else a first frame and consecutive frames, padded with 00. Without
+     * headers the adapter shows a length line and numbered lines instead.
+     */
+    private void appendMessage(int ecu, byte[] payload) {
+        if (payload.length <= 7) {
+            if (headers) {
+                response.append(Integer.toHexString(ecu).toUpperCase()).append(" 0").append(payload.length);
+            }
+            for (byte b : payload) {
+                appendByte(b & 0xFF);
+            }
+            return;
+        }
+        if (!headers) {
+            response.append(String.format(Locale.US, "%03X", payload.length));
+        }
+        int pos = 0;
+        for (int frame = 0; pos < payload.length; frame++) {
+            response.append('\r');
+            final int size = frame == 0 ? 6 : 7;
+            if (headers) {
+                response.append(Integer.toHexString(ecu).toUpperCase());
+                if (frame == 0) {
+                    appendByte(0x10 | payload.length >> 8);
+                    appendByte(payload.length & 0xFF);
+                } else {
+                    appendByte(0x20 | frame & 0x0F);
+                }
+            } else {
+                response.append(Character.toUpperCase(Character.forDigit(frame & 0x0F, 16))).append(':');
+            }
+            for (int i = 0; i < size; i++, pos++) {
+                if (pos < payload.length) {
+                    appendByte(payload[pos] & 0xFF);
+                } else if (headers) {
+                    appendByte(0x00);
+                }
+            }
+        }
+    }
+
+    private void appendByte(int b) {
+        response.append(' ').append(Character.toUpperCase(Character.forDigit(b >> 4, 16)))
+                .append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+    }
+}
@@ -0,0 +1,217 @@
+package com.github.pires.obd.reader.sim;
+
+/**
+ * A simple longitudinal model of a petrol car following a drive cycle.
+ * <p/>
+ * Speed follows the cycle with bounded acceleration, the gear is picked from
+ * the speed, and RPM, engine load, throttle, air flow and fuel rate all derive
+ * from the road load (inertia, rolling resistance and drag), so the signals
+ * stay consistent with each other: fuel rate integrates to the fuel level,
+ * MAF matches the fuel rate at stoichiometry, and so on.
+ */
+public class VehicleModel {
+
+    private static final double STEP = 0.1;
+    private static final double MASS = 1400;
+    private static final double DRAG_AREA = 0.7;
+    private static final double ROLLING_RESISTANCE = 0.012;
+    private static final double AIR_DENSITY = 1.2;
+    private static final double GRAVITY = 9.81;
+    private static final double WHEEL_RADIUS = 0.31;
+    private static final double FINAL_DRIVE = 3.9;
+    private static final double[] GEAR_RATIOS = {3.5, 2.1, 1.4, 1.0, 0.8};
+    private static final double UPSHIFT_RPM = 2500;
+    private static final double IDLE_RPM = 800;
+    private static final double MAX_RPM = 6000;
+    private static final double MAX_POWER = 100000;
+    private static final double MAX_ACCELERATION = 2.5;
+    private static final double MAX_DECELERATION = 3.5;
+    private static final double BSFC = 260;
+    private static final double FUEL_DENSITY = 745;
+    private static final double STOICHIOMETRIC_RATIO = 14.7;
+    private static final double TANK_SIZE = 50;
+    private static final double AMBIENT_TEMP = 20;
+    private static final double OPERATING_TEMP = 90;
+
+    private final DriveCycle cycle;
+
+    private double time = 0;
+    private boolean engineOn = true;
+    private double speed = 0;
+    private double rpm = IDLE_RPM;
+    private double load = 0;
+    private double throttle = 0;
+    private double fuelRate = 0;
+    private double maf = 0;
+    private double coolantTemp = AMBIENT_TEMP;
+    private double fuelLevel = 0.6;
+    private double runtime = 0;
+    private double distance = 0;
+
+    public VehicleModel(DriveCycle cycle) {
+        this.cycle = cycle;
+    }
+
+    /**
+     * Runs the model up to the given time, in fixed steps.
+     *
+     * @param t seconds since the simulation started.
+     */
+    public synchronized void advanceTo(double t) {
+        while (time + STEP <= t) {
+            step(STEP);
+            time += STEP;
+        }
+    }
+
+    private void step(double dt) {
+        final double target = cycle.speedAt(time) / 3.6;
+        engineOn = target >= 0;
+        if (!engineOn) {
+            speed = 0;
+            rpm = 0;
+            load = 0;
+            throttle = 0;
+            fuelRate = 0;
+            maf = 0;
+            runtime = 0;
+            coolantTemp += (AMBIENT_TEMP - coolantTemp) * dt / 1800;
+            return;
+        }
+
+        double acceleration = Math.max(-MAX_DECELERATION, Math.min(MAX_ACCELERATION, (target - speed) / 1.0));
+        speed = Math.max(0, speed + acceleration * dt);
+        if (speed == 0) {
+            acceleration = 0;
+        }
+        distance += speed * dt;
+
+        // road load and the power the engine has to deliver for it
+        final double force = MASS * acceleration
+                + 0.5 * AIR_DENSITY * DRAG_AREA * speed * speed
+                + (speed > 0 ? ROLLING_RESISTANCE * MASS * GRAVITY : 0);
+        final double power = force * speed;
+
+        rpm = engineSpeed();
+        final double friction = 3.5 * rpm;
+        final double available = MAX_POWER * Math.min(1, rpm / 5500);
+        if (power < 0 && rpm > 1200) {
+            // engine braking, fuel cut off
+            load = 0;
+            fuelRate = 0;
+            maf = 0.5;
+        } else {
+            final double brake = Math.max(0, power);
+            load = Math.min(100, 100 * (brake + friction) / (available + friction));
+            final double fuelGramsPerSecond = (brake + friction) / 1000 * BSFC / 3600;
+            fuelRate = fuelGramsPerSecond * 3600 / FUEL_DENSITY;
+            maf = fuelGramsPerSecond * STOICHIOMETRIC_RATIO;
+        }
+        throttle = Math.min(100, 6 + load * 0.9);
+
+        fuelLevel = Math.max(0, fuelLevel - fuelRate * dt / 3600 / TANK_SIZE);
+        coolantTemp += (OPERATING_TEMP - coolantTemp) * dt / 300;
+        runtime += dt;
+    }
+
+    private double engineSpeed() {
+        if (speed < 2) {
+            return IDLE_RPM + speed * 100;
+        }
+        final double wheelRpm = speed / WHEEL_RADIUS * 60 / (2 * Math.PI);
+        double r = wheelRpm * GEAR_RATIOS[0] * FINAL_DRIVE;
+        for (double ratio : GEAR_RATIOS) {
+            r = wheelRpm * ratio * FINAL_DRIVE;
+            if (r < UPSHIFT_RPM) {
+                break;
+            }
+        }
+        return Math.max(IDLE_RPM, Math.min(MAX_RPM, r));
+    }
+
+    public synchronized boolean isEngineOn() {
+        return engineOn;
+    }
+
+    /**
+     * @return speed in km/h.
+     */
+    public synchronized double getSpeed() {
+        return speed * 3.6;
+    }
+
+    public synchronized double getRpm() {
+        return rpm;
+    }
+
+    /**
+     * @return calculated engine load in percent.
+     */
+    public synchronized double getLoad() {
+        return load;
+    }
+
+    /**
+     * @return throttle position in percent.
+     */
+    public synchronized double getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * @return fuel rate in L/h.
+     */
+    public synchronized double getFuelRate() {
+        return fuelRate;
+    }
+
+    /**
+     * @return mass air flow in g/s.
+     */
+    public synchronized double getMaf() {
+        return maf;
+    }
+
+    /**
+     * @return intake manifold absolute pressure in kPa.
+     */
+    public synchronized double getManifoldPressure() {
+        return engineOn ? 30 + load * 0.7 : 101;
+    }
+
+    public synchronized double getCoolantTemp() {
+        return coolantTemp;
+    }
+
+    public double getAmbientTemp() {
+        return AMBIENT_TEMP;
+    }
+
+    /**
+     * @return fuel level in percent.
+     */
+    public synchronized double getFuelLevel() {
+        return fuelLevel * 100;
+    }
+
+    /**
+     * @return seconds since engine start.
+     */
+    public synchronized double getRuntime() {
+        return runtime;
+    }
+
+    /**
+     * @return distance travelled in km.
+     */
+    public synchronized double getDistance() {
+        return distance / 1000;
+    }
+
+    /**
+     * @return battery voltage, charging while the engine runs.
+     */
+    public synchronized double getBatteryVoltage() {
+        return engineOn ? 14.1 : 12.4;
+    }
+}
@@ -0,0 +1,470 @@
+package com.github.pires.obd.reader.trips;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The samples of one stream, compressed as in Facebook's Gorilla: timestamps
+ * as delta of deltas and values XORed with the previous one, bit packed into
+ * chunks of longs.
+ * <p/>
+ * A stream polled at a steady rate costs a bit or a few per timestamp, and a
+ * value that didn't change costs one bit, so a slowly changing signal takes
+ * one to two bytes per sample instead of the 16 of a time and a double (or
+ * some 40 as boxed objects). Timestamps are kept in whole ms.
+ * <p/>
+ * Every {@link #BLOCK} samples, the decoder state and a summary (time span,
+ * min, max, sum) are kept aside, so a decode can start at any block and
+ * {@link #aggregate} can skip blocks out of range and fold whole blocks from
+ * their summary.
+ * <p/>
+ * Appends and reads may run on different threads: a {@link Cursor} only
+ * reads the samples there were when it was created, and those bits are never
+ * written again; neither are the checkpoints and summaries of full blocks.
+ */
+public class GorillaColumn {
+
+    /**
+     * Longs per chunk, 1 kB.
+     */
+    private static final int CHUNK_LONGS = 128;
+    private static final int CHUNK_BITS = CHUNK_LONGS * 64;
+    /**
+     * Samples per block.
+     */
+    public static final int BLOCK = 256;
+    /**
+     * Windows an aggregate may have, to bound the memory of a query.
+     */
+    public static final int MAX_WINDOWS = 100000;
+
+    private long[][] chunks = new long[1][];
+    private long bitCount = 0;
+    private int count = 0;
+
+    // encoder state
+    private long lastTime;
+    private long lastDelta;
+    private long lastBits;
+    private int lastLeading = Integer.MAX_VALUE;
+    private int lastTrailing = 0;
+
+    // per block: decoder state at its start, then its summary once full
+    private long[] blockBit = new long[16];
+    private long[] blockPrevTime = new long[16];
+    private long[] blockPrevDelta = new long[16];
+    private long[] blockPrevBits = new long[16];
+    private int[] blockLeading = new int[16];
+    private int[] blockTrailing = new int[16];
+    private long[] blockFirstTime = new long[16];
+    private long[] blockLastTime = new long[16];
+    private double[] blockMin = new double[16];
+    private double[] blockMax = new double[16];
+    private double[] blockSum = new double[16];
+    private double runningMin;
+    private double runningMax;
+    private double runningSum;
+
+    public GorillaColumn() {
+        chunks[0] = new long[CHUNK_LONGS];
+    }
+
+    /**
+     * Appends a sample. Times are expected in increasing order; an older
+     * sample is stored with a negative delta, which only costs more bits.
+     *
+     * @param time  ms since the epoch.
+     * @param value the value.
+     */
+    public synchronized void append(long time, double value) {
+        if (count % BLOCK == 0) {
+            startBlock(time, value);
+        } else {
+            runningMin = Math.min(runningMin, value);
+            runningMax = Math.max(runningMax, value);
+            runningSum += value;
+        }
+
+        final long bits = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            write(time, 64);
+            write(bits, 64);
+            lastTime = time;
+            lastDelta = 0;
+            lastBits = bits;
+            count++;
+            return;
+        }
+
+        final long delta = time - lastTime;
+        final long deltaOfDelta = delta - lastDelta;
+        if (deltaOfDelta == 0) {
+            write(0, 1);
+        } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            write(0x2, 2);
+            write(deltaOfDelta, 7);
+        } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            write(0x6, 3);
+            write(deltaOfDelta, 9);
+        } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            write(0xE, 4);
+            write(deltaOfDelta, 12);
+        } else {
+            write(0xF, 4);
+            write(deltaOfDelta, 64);
+        }
+        lastTime = time;
+        lastDelta = delta;
+
+        final long xor = bits ^ lastBits;
+        if (xor == 0) {
+            write(0, 1);
+        } else {
+            // the count is written in 5 bits, more leading zeros are stored as meaningful
+            final int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            final int trailing = Long.numberOfTrailingZeros(xor);
+            if (leading >= lastLeading && trailing >= lastTrailing) {
+                // fits in the previous meaningful bits window
+                write(0x2, 2);
+                write(xor >>> lastTrailing, 64 - lastLeading - lastTrailing);
+            } else {
+                final int meaningful = 64 - leading - trailing;
+                write(0x3, 2);
+                write(leading, 5);
+                // 64 meaningful bits don't fit in 6 bits, 0 stands for them
+                write(meaningful & 0x3F, 6);
+                write(xor >>> trailing, meaningful);
+                lastLeading = leading;
+                lastTrailing = trailing;
+            }
+        }
+        lastBits = bits;
+        count++;
+        if (count % BLOCK == 0) {
+            final int block = count / BLOCK - 1;
+            blockLastTime[block] = time;
+            blockMin[block] = runningMin;
+            blockMax[block] = runningMax;
+            blockSum[block] = runningSum;
+        }
+    }
+
+    private void startBlock(long time, double value) {
+        final int block = count / BLOCK;
+        if (block == blockBit.length) {
+            final int size = block * 2;
+            blockBit = Arrays.copyOf(blockBit, size);
+            blockPrevTime = Arrays.copyOf(blockPrevTime, size);
+            blockPrevDelta = Arrays.copyOf(blockPrevDelta, size);
+            blockPrevBits = Arrays.copyOf(blockPrevBits, size);
+            blockLeading = Arrays.copyOf(blockLeading, size);
+            blockTrailing = Arrays.copyOf(blockTrailing, size);
+            blockFirstTime = Arrays.copyOf(blockFirstTime, size);
+            blockLastTime = Arrays.copyOf(blockLastTime, size);
+            blockMin = Arrays.copyOf(blockMin, size);
+            blockMax = Arrays.copyOf(blockMax, size);
+            blockSum = Arrays.copyOf(blockSum, size);
+        }
+        blockBit[block] = bitCount;
+        blockPrevTime[block] = lastTime;
+        blockPrevDelta[block] = lastDelta;
+        blockPrevBits[block] = lastBits;
+        blockLeading[block] = lastLeading;
+        blockTrailing[block] = lastTrailing;
+        blockFirstTime[block] = time;
+        runningMin = value;
+        runningMax = value;
+        runningSum = value;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return the memory used by the chunks, in bytes.
+     */
+    public synchronized long getSizeInBytes() {
+        long chunkCount = (bitCount + CHUNK_BITS - 1) / CHUNK_BITS;
+        return Math.max(1, chunkCount) * CHUNK_LONGS * 8;
+    }
+
+    /**
+     * @return the compressed size of the samples, in bytes.
+     */
+    public synchronized long getEncodedBytes() {
+        return (bitCount + 7) / 8;
+    }
+
+    /**
+     * @return a cursor over the samples appended so far, oldest first.
+     */
+    public synchronized Cursor cursor() {
+        return new Cursor(chunks, count);
+    }
+
+    /**
+     * Computes count, min, max, average and percentiles of the samples in
+     * [from, to), per window of the given length. Blocks out of range are
+     * skipped and, unless percentiles are asked for, blocks within a single
+     * window are folded from their summary without being decoded.
+     *
+     * @param from        start time, in ms since the epoch.
+     * @param to          end time, excluded.
+     * @param window      window length in ms, 0 for a single window.
+     * @param percentiles the percentiles to compute, 0 to 100, may be empty.
+     * @return the windows holding samples, oldest first.
+     */
+    public List<WindowStats> aggregate(long from, long to, long window, double[] percentiles) {
+        if (to <= from) {
+            return new ArrayList<>();
+        }
+        if (window <= 0) {
+            window = to - from;
+        }
+        if ((to - from + window - 1) / window > MAX_WINDOWS) {
+            throw new IllegalArgumentException("More than " + MAX_WINDOWS + " windows");
+        }
+
+        final long[][] chunks;
+        final int count;
+        final int fullBlocks;
+        final long[] firstTimes;
+        final long[] lastTimes;
+        final double[] mins;
+        final double[] maxs;
+        final double[] sums;
+        synchronized (this) {
+            chunks = this.chunks;
+            count = this.count;
+            fullBlocks = count / BLOCK;
+            // full blocks are never written again, only the arrays may be replaced
+            firstTimes = blockFirstTime;
+            lastTimes = blockLastTime;
+            mins = blockMin;
+            maxs = blockMax;
+            sums = blockSum;
+        }
+
+        final boolean needValues = percentiles.length > 0;
+        final Map<Long, WindowStats> windows = new TreeMap<>();
+        final int blocks = (count + BLOCK - 1) / BLOCK;
+        // the last block starting at or before from, if any
+        int block = 0;
+        for (int lo = 0, hi = blocks - 1; lo <= hi; ) {
+            final int mid = (lo + hi) >>> 1;
+            if (firstTimes[mid] <= from) {
+                block = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        for (; block < blocks && firstTimes[block] < to; block++) {
+            if (block < fullBlocks && !needValues) {
+                final long first = firstTimes[block];
+                final long last = lastTimes[block];
+                if (last < from) {
+                    continue;
+                }
+                final long start = windowStart(first, from, window);
+                if (first >= from && last < to && start == windowStart(last, from, window)) {
+                    windowAt(windows, start, window).add(BLOCK, mins[block], maxs[block], sums[block]);
+                    continue;
+                }
+            }
+            final int end = Math.min(count, (block + 1) * BLOCK);
+            final Cursor cursor = cursorAt(chunks, count, block);
+            for (int i = block * BLOCK; i < end && cursor.next(); i++) {
+                final long time = cursor.getTime();
+                if (time >= from && time < to) {
+                    windowAt(windows, windowStart(time, from, window), window).add(cursor.getValue(), needValues);
+                }
+            }
+        }
+
+        final List<WindowStats> result = new ArrayList<>(windows.values());
+        for (WindowStats stats : result) {
+            stats.computePercentiles(percentiles);
+        }
+        return result;
+    }
+
+    /**
+     * @return the time of the first sample, or 0 if there's none.
+     */
+    public synchronized long getFirstTime() {
+        return count > 0 ? blockFirstTime[0] : 0;
+    }
+
+    /**
+     * @return the time of the last sample, or 0 if there's none.
+     */
+    public synchronized long getLastTime() {
+        return count > 0 ? lastTime : 0;
+    }
+
+    private synchronized Cursor cursorAt(long[][] chunks, int count, int block) {
+        final Cursor cursor = new Cursor(chunks, count);
+        if (block > 0) {
+            cursor.bitPos = blockBit[block];
+            cursor.index = block * BLOCK;
+            cursor.time = blockPrevTime[block];
+            cursor.delta = blockPrevDelta[block];
+            cursor.bits = blockPrevBits[block];
+            cursor.leading = blockLeading[block];
+            cursor.trailing = blockTrailing[block];
+        }
+        return cursor;
+    }
+
+    private static long windowStart(long time, long from, long window) {
+        return from + (time - from) / window * window;
+    }
+
+    private static WindowStats windowAt(Map<Long, WindowStats> windows, long start, long window) {
+        WindowStats stats = windows.get(start);
+        if (stats == null) {
+            stats = new WindowStats(start, start + window);
+            windows.put(start, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Writes the low n bits of value, most significant first.
+     */
+    private void write(long value, int n) {
+        while (n > 0) {
+            final int chunk = (int) (bitCount / CHUNK_BITS);
+            if (chunk == chunks.length) {
+                long[][] grown = new long[chunks.length * 2][];
+                System.arraycopy(chunks, 0, grown, 0, chunks.length);
+                chunks = grown;
+            }
+            if (chunks[chunk] == null) {
+                chunks[chunk] = new long[CHUNK_LONGS];
+            }
+            final int bit = (int) (bitCount % CHUNK_BITS);
+            final int word = bit >>> 6;
+            final int free = 64 - (bit & 63);
+            final int take = Math.min(free, n);
+            final long part = (value >>> (n - take)) & (take == 64 ? -1L : (1L << take) - 1);
+            chunks[chunk][word] |= part << (free - take);
+            bitCount += take;
+            n -= take;
+        }
+    }
+
+    /**
+     * Decodes the samples one by one:
+     * <pre>
+     * for (GorillaColumn.Cursor c = column.cursor(); c.next(); ) {
+     *     use(c.getTime(), c.getValue());
+     * }
+     * </pre>
+     */
+    public static class Cursor {
+        private final long[][] chunks;
+        private final int count;
+        private long bitPos = 0;
+        private int index = 0;
+
+        private long time;
+        private long delta;
+        private long bits;
+        private int leading;
+        private int trailing;
+
+        private Cursor(long[][] chunks, int count) {
+            this.chunks = chunks;
+            this.count = count;
+        }
+
+        /**
+         * @return the number of samples this cursor reads.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Moves to the next sample.
+         *
+         * @return false once all samples have been read.
+         */
+        public boolean next() {
+            if (index >= count) {
+                return false;
+            }
+            if (index == 0) {
+                time = read(64);
+                bits = read(64);
+                index++;
+                return true;
+            }
+
+            long deltaOfDelta;
+            if (read(1) == 0) {
+                deltaOfDelta = 0;
+            } else if (read(1) == 0) {
+                deltaOfDelta = signed(read(7), 7);
+            } else if (read(1) == 0) {
+                deltaOfDelta = signed(read(9), 9);
+            } else if (read(1) == 0) {
+                deltaOfDelta = signed(read(12), 12);
+            } else {
+                deltaOfDelta = read(64);
+            }
+            delta += deltaOfDelta;
+            time += delta;
+
+            if (read(1) == 1) {
+                if (read(1) == 1) {
+                    leading = (int) read(5);
+                    int meaningful = (int) read(6);
+                    trailing = 64 - leading - (meaningful == 0 ? 64 : meaningful);
+                }
+                bits ^= read(64 - leading - trailing) << trailing;
+            }
+            index++;
+            return true;
+        }
+
+        /**
+         * @return the time of the current sample, in ms since the epoch.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public double getValue() {
+            return Double.longBitsToDouble(bits);
+        }
+
+        private long read(int n) {
+            long value = 0;
+            while (n > 0) {
+                final long[] chunk = chunks[(int) (bitPos / CHUNK_BITS)];
+                final int bit = (int) (bitPos % CHUNK_BITS);
+                final int avail = 64 - (bit & 63);
+                final int take = Math.min(avail, n);
+                final long word = chunk[bit >>> 6];
+                final long part = (word >>> (avail - take)) & (take == 64 ? -1L : (1L << take) - 1);
+                value = take == 64 ? part : (value << take) | part;
+                bitPos += take;
+                n -= take;
+            }
+            return value;
+        }
+
+        private static long signed(long value, int n) {
+            // the ranges are skewed by one, -63..64 in 7 bits, as in the paper
+            return value > (1L << (n - 1)) ? value - (1L << n) : value;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.github.pires.obd.reader.trips;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Aligns samples of several streams, each read at its own time and rate, on
+ * one fixed-rate time grid, so the values of a row can be correlated.
+ * <p/>
+ * Grid points are multiples of the period since the epoch. Each value of a
+ * row is linearly interpolated between the two samples of its stream around
+ * the grid point; a row is emitted once every live stream has a sample past
+ * it, so rows lag by about one polling cycle. A stream without a sample for
+ * longer than the maximum gap is left out (NaN) until it comes back, so an
+ * unsupported PID doesn't hold back the others. After a pause of all streams,
+ * longer than the maximum gap, the grid picks up where a stream has a value
+ * again rather than emitting a row of NaNs for every point of the pause.
+ */
+public class Resampler {
+
+    /**
+     * Samples kept per stream; older ones can't be interpolated any more.
+     */
+    private static final int HISTORY = 64;
+
+    public interface Listener {
+        /**
+         * @param time   the grid point, in ms since the epoch.
+         * @param ids    the stream IDs, in the order they first showed up.
+         * @param values the value of each stream at that time, NaN if none.
+         */
+        void onRow(double time, String[] ids, double[] values);
+    }
+
+    private final double period;
+    private final double maxGap;
+    private final Listener listener;
+    private final List<Stream> streams = new ArrayList<>();
+    private String[] ids = new String[0];
+    private double nextTick = Double.NaN;
+    private double latest = Double.NEGATIVE_INFINITY;
+
+    /**
+     * @param period   ms between grid points, e.g. 100 for 10 Hz.
+     * @param maxGap   ms without a sample after which a stream is left out.
+     * @param listener gets the rows, on the thread adding the samples.
+     */
+    public Resampler(double period, double maxGap, Listener listener) {
+        this.period = period;
+        this.maxGap = maxGap;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a sample, emitting the rows it completes.
+     *
+     * @param id    the stream ID.
+     * @param value the value, NaN samples are dropped.
+     * @param time  the sample time in ms since the epoch.
+     */
+    public synchronized void add(String id, double value, double time) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        Stream stream = null;
+        for (int i = 0; i < streams.size(); i++) {
+            if (streams.get(i).id.equals(id)) {
+                stream = streams.get(i);
+                break;
+            }
+        }
+        if (stream == null) {
+            stream = new Stream(id);
+            streams.add(stream);
+            ids = new String[streams.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = streams.get(i).id;
+            }
+        }
+        if (!stream.add(value, time)) {
+            return;
+        }
+        latest = Math.max(latest, time);
+        if (Double.isNaN(nextTick)) {
+            nextTick = Math.ceil(time / period) * period;
+        }
+
+        // the slowest live stream tells how far rows can go
+        double horizon = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < streams.size(); i++) {
+            final double last = streams.get(i).last();
+            if (latest - last <= maxGap) {
+                horizon = Math.min(horizon, last);
+            }
+        }
+        if (horizon - nextTick > maxGap) {
+            // e.g. paused polling, skip the grid points no stream has a value for
+            double resume = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < streams.size(); i++) {
+                resume = Math.min(resume, streams.get(i).validFrom(nextTick, maxGap));
+            }
+            nextTick = Math.max(nextTick, Math.ceil(resume / period) * period);
+        }
+        while (nextTick <= horizon) {
+            final double[] values = new double[streams.size()];
+            for (int i = 0; i < values.length; i++) {
+                final Stream s = streams.get(i);
+                values[i] = s.last() >= nextTick ? s.valueAt(nextTick, maxGap) : Double.NaN;
+            }
+            listener.onRow(nextTick, ids, values);
+            nextTick += period;
+        }
+    }
+
+    /**
+     * Forgets all samples, e.g. between two connections.
+     */
+    public synchronized void reset() {
+        streams.clear();
+        ids = new String[0];
+        nextTick = Double.NaN;
+        latest = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * The last {@link #HISTORY} samples of a stream, in a ring.
+     */
+    private static class Stream {
+        private final String id;
+        private final double[] times = new double[HISTORY];
+        private final double[] values = new double[HISTORY];
+        private int count = 0;
+        private int head = 0;
+
+        Stream(String id) {
+            this.id = id;
+        }
+
+        /**
+         * @return false if the sample is older than the last one and was
+         * dropped.
+         */
+        boolean add(double value, double time) {
+            if (count > 0 && time <= last()) {
+                return false;
+            }
+            times[head] = time;
+            values[head] = value;
+            head = (head + 1) % HISTORY;
+            count = Math.min(count + 1, HISTORY);
+            return true;
+        }
+
+        double last() {
+            return count > 0 ? times[(head + HISTORY - 1) % HISTORY] : Double.NEGATIVE_INFINITY;
+        }
+
+        /**
+         * @return the earliest time from the given one on that
+         * {@link #valueAt} may have a value for, +Infinity if none.
+         */
+        double validFrom(double from, double maxGap) {
+            final int oldest = (head + HISTORY - count) % HISTORY;
+            for (int n = 0; n < count; n++) {
+                final int i = (oldest + n) % HISTORY;
+                if (times[i] < from) {
+                    continue;
+                }
+                final int prev = (i + HISTORY - 1) % HISTORY;
+                if (n > 0 && times[i] - times[prev] <= maxGap) {
+                    return Math.max(times[prev], from);
+                }
+                return times[i];
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+
+        /**
+         * @return the value interpolated at the given time, NaN if it's out
+         * of the samples kept or falls in a gap longer than maxGap.
+         */
+        double valueAt(double time, double maxGap) {
+            // newest first, the grid point is usually close to the end
+            int next = (head + HISTORY - 1) % HISTORY;
+            for (int n = 1; n < count; n++) {
+                if (times[next] == time) {
+                    // e.g. the first sample after a gap
+                    return values[next];
+                }
+                final int prev = (next + HISTORY - 1) % HISTORY;
+                if (times[prev] <= time) {
+                    final double t0 = times[prev];
+                    final double t1 = times[next];
+                    if (t1 - t0 > maxGap) {
+                        return Double.NaN;
+                    }
+                    return values[prev] + (values[next] - values[prev]) * (time - t0) / (t1 - t0);
+                }
+                next = prev;
+            }
+            return count > 0 && times[next] == time ? values[next] : Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.github.pires.obd.reader.trips;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the samples of a {@link TripStore} to a gzip compressed file, as
+ * CSV or as a compact columnar binary, on a background thread.
+ * <p/>
+ * Samples are decoded from the columns as they're written and go straight
+ * through the compressor, so memory stays bounded however long the trip:
+ * the CSV merges the streams by time with one cursor per stream, the binary
+ * goes column by column. Samples appended during the export are left out.
+ * <p/>
+ * The binary layout, big-endian:
+ * <pre>
+ * "OBDT", version 1 (byte), stream count (int), then per stream:
+ *   id (as DataOutput.writeUTF), sample count (int),
+ *   the times in ms: the first as a long, then the deltas as zigzag varints,
+ *   the values as IEEE 754 doubles.
+ * </pre>
+ */
+public class TripExporter {
+
+    public enum Format {
+        /**
+         * "timestamp,cmdID,value" rows, oldest first.
+         */
+        CSV(".csv.gz"),
+        BINARY(".obdt.gz");
+
+        private final String suffix;
+
+        Format(String suffix) {
+            this.suffix = suffix;
+        }
+
+        /**
+         * @return the file name suffix, e.g. ".csv.gz".
+         */
+        public String getSuffix() {
+            return suffix;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the export thread, about every percent.
+         */
+        void onProgress(long written, long total);
+
+        void onDone(File file, long samples);
+
+        void onError(IOException e);
+    }
+
+    private static final byte[] MAGIC = {'O', 'B', 'D', 'T'};
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int PROGRESS_STEPS = 100;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Queues an export, exports run one at a time. The file is written under
+     * a temporary name and only shows up once complete.
+     */
+    public void export(final TripStore store, final File file, final Format format, final Listener listener) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File partial = new File(file.getPath() + ".part");
+                try {
+                    final long samples;
+                    OutputStream out = new BufferedOutputStream(
+                            new GZIPOutputStream(new FileOutputStream(partial), BUFFER_SIZE), BUFFER_SIZE);
+                    try {
+                        samples = format == Format.CSV
+                                ? writeCsv(store, out, listener) : writeBinary(store, out, listener);
+                    } finally {
+                        out.close();
+                    }
+                    if (!partial.renameTo(file)) {
+                        throw new IOException("Can't rename " + partial + " to " + file);
+                    }
+                    listener.onDone(file, samples);
+                } catch (IOException e) {
+                    partial.delete();
+                    listener.onError(e);
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static long writeCsv(TripStore store, OutputStream out, Listener listener) throws IOException {
+        final PriorityQueue<Stream> streams = new PriorityQueue<>();
+        long total = 0;
+        for (String id : store.getStreamIds()) {
+            final Stream stream = new Stream(id, store.getColumn(id).cursor());
+            total += stream.cursor.getCount();
+            if (stream.cursor.next()) {
+                streams.add(stream);
+            }
+        }
+
+        final Writer writer = new OutputStreamWriter(out, "UTF-8");
+        writer.write("timestamp,cmdID,value\n");
+        final StringBuilder row = new StringBuilder();
+        final Progress progress = new Progress(total, listener);
+        Stream stream;
+        while ((stream = streams.poll()) != null) {
+            row.setLength(0);
+            row.append(stream.cursor.getTime()).append(',').append(stream.id).append(',')
+                    .append(stream.cursor.getValue()).append('\n');
+            writer.append(row);
+            progress.add();
+            if (stream.cursor.next()) {
+                streams.add(stream);
+            }
+        }
+        writer.flush();
+        return total;
+    }
+
+    private static long writeBinary(TripStore store, OutputStream out, Listener listener) throws IOException {
+        final List<String> ids = store.getStreamIds();
+        final List<GorillaColumn.Cursor> cursors = new ArrayList<>();
+        long total = 0;
+        for (String id : ids) {
+            final GorillaColumn.Cursor cursor = store.getColumn(id).cursor();
+            cursors.add(cursor);
+            total += cursor.getCount();
+        }
+
+        final DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC);
+        data.writeByte(VERSION);
+        data.writeInt(ids.size());
+        final Progress progress = new Progress(total, listener);
+        for (int i = 0; i < ids.size(); i++) {
+            final GorillaColumn.Cursor times = cursors.get(i);
+            final int count = times.getCount();
+            data.writeUTF(ids.get(i));
+            data.writeInt(count);
+            long last = 0;
+            for (int n = 0; times.next(); n++) {
+                if (n == 0) {
+                    data.writeLong(times.getTime());
+                } else {
+                    writeVarint(data, zigzag(times.getTime() - last));
+                }
+                last = times.getTime();
+            }
+            // a second pass for the values, limited to the samples of the first
+            final GorillaColumn.Cursor values = store.getColumn(ids.get(i)).cursor();
+            for (int n = 0; n < count && values.next(); n++) {
+                data.writeDouble(values.getValue());
+                progress.add();
+            }
+        }
+        data.flush();
+        return total;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static class Stream implements Comparable<Stream> {
+        private final String id;
+        private final GorillaColumn.Cursor cursor;
+
+        Stream(String id, GorillaColumn.Cursor cursor) {
+            this.id = id;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public int compareTo(Stream other) {
+            return Long.compare(cursor.getTime(), other.cursor.getTime());
+        }
+    }
+
+    private static class Progress {
+        private final long total;
+        private final long step;
+        private final Listener listener;
+        private long written = 0;
+
+        Progress(long total, Listener listener) {
+            this.total = total;
+            this.step = Math.max(1, total / PROGRESS_STEPS);
+            this.listener = listener;
+        }
+
+        void add() {
+            if (++written % step == 0 || written == total) {
+                listener.onProgress(written, total);
+            }
+        }
+    }
+}
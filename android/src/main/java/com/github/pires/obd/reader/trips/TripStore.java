@@ -0,0 +1,86 @@
+package com.github.pires.obd.reader.trips;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps every sample of a trip in memory, one compressed
+ * {@link GorillaColumn} per stream (cmdID), so hours of polling at full rate
+ * fit in a few MB. Samples are appended as they come in and read back
+ * sequentially per stream, for export and queries.
+ */
+public class TripStore {
+
+    private final Map<String, GorillaColumn> columns = new LinkedHashMap<>();
+
+    /**
+     * @param id    the stream ID.
+     * @param value the value, NaN samples (failed reads) aren't stored.
+     * @param time  the sample time in ms since the epoch, rounded to the ms.
+     */
+    public void append(String id, double value, double time) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        GorillaColumn column;
+        synchronized (columns) {
+            column = columns.get(id);
+            if (column == null) {
+                column = new GorillaColumn();
+                columns.put(id, column);
+            }
+        }
+        column.append(Math.round(time), value);
+    }
+
+    /**
+     * @return the stream IDs, in the order they first showed up.
+     */
+    public List<String> getStreamIds() {
+        synchronized (columns) {
+            return new ArrayList<>(columns.keySet());
+        }
+    }
+
+    /**
+     * @return the column of the given stream, or null if it has no samples.
+     */
+    public GorillaColumn getColumn(String id) {
+        synchronized (columns) {
+            return columns.get(id);
+        }
+    }
+
+    public int getSampleCount() {
+        int count = 0;
+        for (GorillaColumn column : columns()) {
+            count += column.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the memory used by all columns, in bytes.
+     */
+    public long getSizeInBytes() {
+        long size = 0;
+        for (GorillaColumn column : columns()) {
+            size += column.getSizeInBytes();
+        }
+        return size;
+    }
+
+    public void clear() {
+        synchronized (columns) {
+            columns.clear();
+        }
+    }
+
+    private List<GorillaColumn> columns() {
+        synchronized (columns) {
+            return new ArrayList<>(columns.values());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.pires.obd.reader.trips;
+
+import android.os.Bundle;
+
+import com.github.pires.obd.enums.AvailableCommandNames;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Accumulates per-command statistics and a few derived trip metrics between
+ * two flushes. This is what the background logger hands to JS once per
+ * interval instead of forwarding every single sample.
+ */
+public class TripSummary {
+
+    public static final String ENGINE_RPM = AvailableCommandNames.ENGINE_RPM.name();
+    public static final String ENGINE_FUEL_RATE = AvailableCommandNames.FUEL_CONSUMPTION_RATE.name();
+
+    private final Map<String, CommandStats> stats = new HashMap<>();
+    private long startTime;
+    private long endTime;
+    private long lastFuelRateTime;
+    private double lastFuelRate;
+    private double fuelUsed;
+    private long lastRpmTime;
+    private long engineOnTime;
+    private int samples;
+
+    public TripSummary() {
+        reset(System.currentTimeMillis());
+    }
+
+    /**
+     * Adds a sample to the summary.
+     *
+     * @param cmdID     the command identifier, as sent to JS.
+     * @param value     the numeric value in metric units.
+     * @param timestamp the time the value was read, in milliseconds.
+     */
+    public synchronized void add(String cmdID, double value, long timestamp) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        CommandStats s = stats.get(cmdID);
+        if (s == null) {
+            s = new CommandStats();
+            stats.put(cmdID, s);
+        }
+        s.add(value);
+        samples++;
+        endTime = timestamp;
+
+        // integrate fuel rate (L/h) into litres used
+        if (ENGINE_FUEL_RATE.equals(cmdID)) {
+            if (lastFuelRateTime > 0 && timestamp > lastFuelRateTime) {
+                fuelUsed += lastFuelRate * (timestamp - lastFuelRateTime) / 3600000d;
+            }
+            lastFuelRate = value;
+            lastFuelRateTime = timestamp;
+        } else if (ENGINE_RPM.equals(cmdID)) {
+            if (lastRpmTime > 0 && value > 0) {
+                engineOnTime += timestamp - lastRpmTime;
+            }
+            lastRpmTime = value > 0 ? timestamp : 0;
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return samples == 0;
+    }
+
+    /**
+     * Copies the current summary into a Bundle and starts a new interval.
+     *
+     * @return the summary of the interval that just ended.
+     */
+    public synchronized Bundle flush() {
+        Bundle bundle = new Bundle();
+        bundle.putDouble("startTime", startTime);
+        bundle.putDouble("endTime", endTime);
+        bundle.putInt("samples", samples);
+        bundle.putDouble("fuelUsed", fuelUsed);
+        bundle.putDouble("engineOnTime", engineOnTime);
+
+        Bundle commands = new Bundle();
+        for (Map.Entry<String, CommandStats> entry : stats.entrySet()) {
+            commands.putBundle(entry.getKey(), entry.getValue().toBundle());
+        }
+        bundle.putBundle("commands", commands);
+
+        reset(endTime > 0 ? endTime : System.currentTimeMillis());
+        return bundle;
+    }
+
+    private void reset(long time) {
+        stats.clear();
+        startTime = time;
+        endTime = 0;
+        samples = 0;
+        fuelUsed = 0;
+        engineOnTime = 0;
+        // the integration anchors are kept so the next interval continues
+        // where this one stopped
+    }
+
+    private static class CommandStats {
+        private int count;
+        private double min = Double.MAX_VALUE;
+        private double max = -Double.MAX_VALUE;
+        private double sum;
+        private double last;
+
+        void add(double value) {
+            count++;
+            sum += value;
+            last = value;
+            if (value < min) min = value;
+            if (value > max) max = value;
+        }
+
+        Bundle toBundle() {
+            Bundle bundle = new Bundle();
+            bundle.putInt("count", count);
+            bundle.putDouble("min", min);
+            bundle.putDouble("max", max);
+            bundle.putDouble("avg", sum / count);
+            bundle.putDouble("last", last);
+            return bundle;
+        }
+    }
+}
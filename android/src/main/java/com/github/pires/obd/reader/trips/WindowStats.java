@@ -0,0 +1,101 @@
+package com.github.pires.obd.reader.trips;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of the samples of one stream within a time window, as computed
+ * by {@link GorillaColumn#aggregate}.
+ */
+public class WindowStats {
+
+    private final long start;
+    private final long end;
+    private int count = 0;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private double sum = 0;
+    private double[] values = null;
+    private int valueCount = 0;
+    private double[] percentiles = new double[0];
+
+    WindowStats(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    void add(double value, boolean keepValue) {
+        add(1, value, value, value);
+        if (keepValue) {
+            if (values == null) {
+                values = new double[64];
+            } else if (valueCount == values.length) {
+                values = Arrays.copyOf(values, valueCount * 2);
+            }
+            values[valueCount++] = value;
+        }
+    }
+
+    void add(int count, double min, double max, double sum) {
+        this.min = this.count == 0 ? min : Math.min(this.min, min);
+        this.max = this.count == 0 ? max : Math.max(this.max, max);
+        this.count += count;
+        this.sum += sum;
+    }
+
+    /**
+     * Computes the given percentiles of the values kept, interpolating
+     * between the closest ranks, then drops the values.
+     */
+    void computePercentiles(double[] ranks) {
+        percentiles = new double[ranks.length];
+        if (valueCount == 0) {
+            Arrays.fill(percentiles, Double.NaN);
+            return;
+        }
+        Arrays.sort(values, 0, valueCount);
+        for (int i = 0; i < ranks.length; i++) {
+            final double rank = Math.max(0, Math.min(100, ranks[i])) / 100 * (valueCount - 1);
+            final int below = (int) Math.floor(rank);
+            final int above = Math.min(below + 1, valueCount - 1);
+            percentiles[i] = values[below] + (values[above] - values[below]) * (rank - below);
+        }
+        values = null;
+    }
+
+    /**
+     * @return the start of the window, in ms since the epoch.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return the end of the window, excluded.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getAverage() {
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
+    /**
+     * @return the percentiles asked for, in the same order.
+     */
+    public double[] getPercentiles() {
+        return percentiles;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016-present JetBridge LLC
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+
+package com.jetbridge.reactobd2;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+/**
+ * Serves the trip exports, read only, as content://&lt;package&gt;.obd2export/&lt;file&gt;
+ * URIs that can be handed to a share intent with FLAG_GRANT_READ_URI_PERMISSION.
+ * Only the files of the exports directory can be reached.
+ */
+public class OBD2ExportProvider extends ContentProvider {
+  private static final String AUTHORITY_SUFFIX = ".obd2export";
+  private static final String EXPORTS_DIR = "obd2-exports";
+
+  public static File getExportsDir(Context context) {
+    return new File(context.getCacheDir(), EXPORTS_DIR);
+  }
+
+  public static Uri getUri(Context context, File file) {
+    return new Uri.Builder()
+        .scheme("content")
+        .authority(context.getPackageName() + AUTHORITY_SUFFIX)
+        .appendPath(file.getName())
+        .build();
+  }
+
+  @Override
+  public boolean onCreate() {
+    return true;
+  }
+
+  @Override
+  public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+    if (!"r".equals(mode)) {
+      throw new SecurityException("Exports are read only");
+    }
+    return ParcelFileDescriptor.open(getFile(uri), ParcelFileDescriptor.MODE_READ_ONLY);
+  }
+
+  @Override
+  public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+    File file;
+    try {
+      file = getFile(uri);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    String[] columns = projection != null ? projection
+        : new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+    Object[] row = new Object[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      if (OpenableColumns.DISPLAY_NAME.equals(columns[i])) {
+        row[i] = file.getName();
+      } else if (OpenableColumns.SIZE.equals(columns[i])) {
+        row[i] = file.length();
+      }
+    }
+    MatrixCursor cursor = new MatrixCursor(columns, 1);
+    cursor.addRow(row);
+    return cursor;
+  }
+
+  @Override
+  public String getType(Uri uri) {
+    // both formats are gzip compressed
+    return "application/gzip";
+  }
+
+  @Override
+  public Uri insert(Uri uri, ContentValues values) {
+    throw new UnsupportedOperationException("Exports are read only");
+  }
+
+  @Override
+  public int delete(Uri uri, String selection, String[] selectionArgs) {
+    throw new UnsupportedOperationException("Exports are read only");
+  }
+
+  @Override
+  public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    throw new UnsupportedOperationException("Exports are read only");
+  }
+
+  private File getFile(Uri uri) throws FileNotFoundException {
+    String name = uri.getLastPathSegment();
+    if (name == null || name.contains("/") || name.startsWith(".")
+        || uri.getPathSegments().size() != 1) {
+      throw new FileNotFoundException(uri.toString());
+    }
+    File file = new File(getExportsDir(getContext()), name);
+    if (!file.isFile()) {
+      throw new FileNotFoundException(uri.toString());
+    }
+    return file;
+  }
+}
@@ -33,34 +33,85 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import androidx.annotation.Nullable;
 
 import android.util.Log;
 
+import com.facebook.react.HeadlessJsTaskService;
 import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.LifecycleEventListener;
+import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 import com.github.pires.obd.commands.ObdCommand;
 import com.github.pires.obd.enums.AvailableCommandNames;
+import com.github.pires.obd.reader.commands.IsoTpCommand;
+import com.github.pires.obd.reader.commands.Pid;
+import com.github.pires.obd.reader.commands.PidCommand;
+import com.github.pires.obd.reader.commands.PidDefinition;
 import com.github.pires.obd.reader.config.ObdConfig;
+import com.github.pires.obd.reader.config.VehicleProfile;
+import com.github.pires.obd.reader.config.VehicleProfileCache;
 import com.github.pires.obd.reader.io.AbstractGatewayService;
+import com.github.pires.obd.reader.io.BondedDevices;
+import com.github.pires.obd.reader.io.EcuRouter;
+import com.github.pires.obd.reader.io.FaultProfile;
+import com.github.pires.obd.reader.io.IgnitionMonitor;
+import com.github.pires.obd.reader.io.LatestValueTable;
 import com.github.pires.obd.reader.io.MockObdGatewayService;
 import com.github.pires.obd.reader.io.ObdCommandJob;
 import com.github.pires.obd.reader.io.ObdGatewayService;
 import com.github.pires.obd.reader.io.ObdProgressListener;
+import com.github.pires.obd.reader.io.RateController;
+import com.github.pires.obd.reader.net.TripUploader;
+import com.github.pires.obd.reader.rules.RuleEngine;
+import com.github.pires.obd.reader.sim.DriveCycle;
+import com.github.pires.obd.reader.trips.Resampler;
+import com.github.pires.obd.reader.trips.TripExporter;
+import com.github.pires.obd.reader.trips.TripStore;
+import com.github.pires.obd.reader.trips.TripSummary;
 
+import org.json.JSONException;
+
+import java.io.File;
 import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class OBD2Handler implements ObdProgressListener {
+public class OBD2Handler implements ObdProgressListener, LifecycleEventListener {
   private static final String TAG = "OBD2Handler";
 
   private static final String EVENTNAME_OBD2_DATA = "obd2LiveData";
   private static final String EVENTNAME_BT_STATUS = "obd2BluetoothStatus";
   private static final String EVENTNAME_OBD_STATUS = "obd2Status";
+  private static final String EVENTNAME_OBD2_RESAMPLED = "obd2ResampledData";
+  private static final String EVENTNAME_OBD2_ALERT = "obd2Alert";
+  private static final String EVENTNAME_OBD2_BATCH = "obd2LiveDataBatch";
+  private static final String EVENTNAME_EXPORT_PROGRESS = "obd2ExportProgress";
+  private static final String EVENTNAME_BONDED_DEVICES = "obd2BondedDevices";
+  private static final long MIN_POLL_DELAY = 10;
+  private static final long MAX_POLL_DELAY = 500;
+  /**
+   * Time a read queued for getValue may take, after which it's given up: the
+   * gateway drops queued jobs when the engine goes off or a subscriber falls
+   * behind, and such a read would never be answered.
+   */
+  private static final long VALUE_READ_TIMEOUT = 5000;
+  /**
+   * The same for readDiagnostic, whose multi-frame answers take longer.
+   */
+  private static final long DIAGNOSTIC_READ_TIMEOUT = 10000;
 
   private ReactContext mReactContext = null;
   private ObdProgressListener mObdProgressListener = null;
@@ -69,16 +120,89 @@ public class OBD2Handler implements ObdProgressListener {
   private boolean mPreRequisites = true;
   private String mRemoteDeviceName = "";
   private boolean mMockUpMode = false;
+  private DriveCycle mMockDriveCycle = DriveCycle.MIXED;
+  private long mMockLatency = 0;
+  private int mMockBytesPerSecond = 0;
+  private double mMockTimeScale = 1;
+  private FaultProfile mFaultProfile = null;
+
+  private boolean mBackgroundLogging = false;
+  private boolean mInBackground = false;
+  private int mSummaryInterval = 60000;
+  private final TripSummary mTripSummary = new TripSummary();
+  private TripUploader mUploader = null;
+  private Resampler mResampler = null;
+  private RuleEngine mRuleEngine = null;
+  private volatile List<PidDefinition> mPidDefinitions = Collections.<PidDefinition>emptyList();
+  private TripStore mTripStore = null;
+  private TripExporter mTripExporter = null;
+  private BondedDevices mBondedDevices = null;
+
+  private final LatestValueTable mLatestValues = new LatestValueTable(LatestValueTable.DEFAULT_CAPACITY);
+  private final Map<ObdCommandJob, Promise> mDiagnosticReads = new ConcurrentHashMap<>();
+  /**
+   * The callers waiting for a fresh value, per cmdID, and the job reading it.
+   */
+  private final Map<String, List<Promise>> mValueReads = new HashMap<>();
+  private final Map<ObdCommandJob, String> mValueJobs = new HashMap<>();
+  /**
+   * Gives up pending reads, posted with their job as token.
+   */
+  private final Handler mReadTimeouts = new Handler(Looper.getMainLooper());
+  private final long[] mBatchSequences = new long[LatestValueTable.DEFAULT_CAPACITY];
+  private final LatestValueTable.Sample mBatchSample = new LatestValueTable.Sample();
+  private int mBatchInterval = 0;
+  private final Handler mBatchHandler = new Handler(Looper.getMainLooper());
+  private final Runnable mDispatchBatch = new Runnable() {
+    public void run() {
+      dispatchBatch();
+      mBatchHandler.postDelayed(mDispatchBatch, mBatchInterval);
+    }
+  };
+  private final Handler mSummaryHandler = new Handler(Looper.getMainLooper());
+  private final Runnable mDispatchSummary = new Runnable() {
+    public void run() {
+      dispatchSummary();
+      mSummaryHandler.postDelayed(mDispatchSummary, mSummaryInterval);
+    }
+  };
 
   private boolean mIsServiceBound;
   private AbstractGatewayService service;
+  private IgnitionMonitor mIgnitionMonitor = null;
+  private EcuRouter mEcuRouter = null;
+  private boolean mIdle = false;
+  private String mSessionDevice = null;
+  private final Handler mPauseHandler = new Handler(Looper.getMainLooper());
+  private final Runnable mPauseTimeout = new Runnable() {
+    public void run() {
+      Log.d(TAG, "Paused for too long, disconnecting..");
+      stopLiveData();
+    }
+  };
+  private final Handler mPollHandler = new Handler(Looper.getMainLooper());
   private final Runnable mQueueCommands = new Runnable() {
     public void run() {
-      if (service != null && service.isRunning() && service.queueEmpty()) {
-        queueCommands();
+      boolean idle = service != null && service.isIdle();
+      if (idle != mIdle) {
+        mIdle = idle;
+        sendDeviceStatus(EVENTNAME_OBD_STATUS, idle ? "idle" : "receiving");
+      }
+      long delay = idle ? 500 : 100;
+      if (service != null && service.isRunning() && !idle && !service.isPaused()) {
+        // come back as the queue drains, at the rate the bus takes, so the
+        // next cycle is queued while the last request of this one runs
+        final long perRequest = service.getRateController().getMillisPerRequest();
+        if (service.queueEmpty()) {
+          delay = perRequest * Math.max(1, queueCommands() - 1);
+        } else {
+          delay = perRequest;
+        }
+        delay = Math.max(MIN_POLL_DELAY, Math.min(MAX_POLL_DELAY, delay));
       }
-      // run again in period defined in preferences
-      new Handler().postDelayed(mQueueCommands, 100);
+      // the gateway wakes up by itself when idle so there's no need to check
+      // as often
+      mPollHandler.postDelayed(mQueueCommands, delay);
     }
   };
 
@@ -90,9 +214,20 @@ public class OBD2Handler implements ObdProgressListener {
       service = ((AbstractGatewayService.AbstractGatewayServiceBinder) binder).getService();
       service.setContext(mReactContext);
       service.setOBDProgressListener(mObdProgressListener);
+      service.setIgnitionMonitor(mIgnitionMonitor);
+      service.setFaultProfile(mFaultProfile);
+      service.setEcuRouter(mEcuRouter);
+      service.setLatestValueTable(mLatestValues);
+      if (service instanceof MockObdGatewayService) {
+        ((MockObdGatewayService) service).setSimulation(mMockDriveCycle, mMockLatency, mMockBytesPerSecond, mMockTimeScale);
+      }
       Log.d(TAG, "Starting live data");
       try {
+        mSessionDevice = mRemoteDeviceName;
         service.startService(mRemoteDeviceName);
+        if (mBackgroundLogging) {
+          service.startForegroundLogging("OBD-II", "Logging live data");
+        }
         if (mPreRequisites) {
           sendDeviceStatus(EVENTNAME_BT_STATUS, "connected");
         }
@@ -124,6 +259,7 @@ public class OBD2Handler implements ObdProgressListener {
   OBD2Handler(ReactContext aContext) {
     mReactContext = aContext;
     mObdProgressListener = this;
+    mReactContext.addLifecycleEventListener(this);
   }
 
   public void ready() {
@@ -148,15 +284,162 @@ public class OBD2Handler implements ObdProgressListener {
   }
 
   public void startLiveData() {
+    mPauseHandler.removeCallbacks(mPauseTimeout);
+    // samples from before the pause don't belong with the new ones
+    if (mResampler != null) {
+      mResampler.reset();
+    }
+    if (mRuleEngine != null) {
+      mRuleEngine.reset();
+    }
+    if (mIsServiceBound && service.isPaused()) {
+      if (service.isRunning() && mRemoteDeviceName.equals(mSessionDevice)
+          && mMockUpMode == service instanceof MockObdGatewayService) {
+        // the session is still warm, poll right away rather than after the
+        // delay of the idle loop
+        service.resume();
+        sendDeviceStatus(EVENTNAME_OBD_STATUS, "receiving");
+        pollNow();
+        return;
+      }
+      doUnbindService();
+    }
     doBindService();
 
     // start command execution
-    new Handler().post(mQueueCommands);
+    pollNow();
+  }
+
+  /**
+   * Runs the polling loop now, in place of its pending run, so there's only
+   * ever one loop.
+   */
+  private void pollNow() {
+    mPollHandler.removeCallbacks(mQueueCommands);
+    mPollHandler.post(mQueueCommands);
+  }
+
+  /**
+   * Stops polling but keeps the adapter connected and set up, so the next
+   * startLiveData to the same adapter gets data back within one polling
+   * cycle. Disconnects when not resumed within idleTimeout.
+   *
+   * @param keepAliveInterval ms between adapter voltage reads keeping the link
+   *                          awake, 0 for none.
+   * @param idleTimeout       ms after which the session is closed.
+   */
+  public void pauseLiveData(int keepAliveInterval, int idleTimeout) {
+    if (!mIsServiceBound || !service.isRunning()) {
+      return;
+    }
+    Log.d(TAG, "Pausing live data..");
+    service.pause(keepAliveInterval);
+    sendDeviceStatus(EVENTNAME_OBD_STATUS, "paused");
+    mPauseHandler.removeCallbacks(mPauseTimeout);
+    mPauseHandler.postDelayed(mPauseTimeout, idleTimeout);
   }
 
   public void stopLiveData() {
     Log.d(TAG, "Stopping live data..");
+    mPauseHandler.removeCallbacks(mPauseTimeout);
     doUnbindService();
+    mReadTimeouts.removeCallbacksAndMessages(null);
+    for (Promise read : mDiagnosticReads.values()) {
+      read.reject(TAG, "Disconnected");
+    }
+    mDiagnosticReads.clear();
+    synchronized (mValueReads) {
+      for (List<Promise> reads : mValueReads.values()) {
+        for (Promise read : reads) {
+          read.reject(TAG, "Disconnected");
+        }
+      }
+      mValueReads.clear();
+      mValueJobs.clear();
+    }
+    mSummaryHandler.removeCallbacks(mDispatchSummary);
+    if (mBackgroundLogging && mInBackground) {
+      dispatchSummary();
+    }
+  }
+
+  /**
+   * Queues a request with a long answer (VIN, DTCs, Mode 06...) between the
+   * live data requests and resolves with the reassembled payload of each ECU.
+   */
+  public void readDiagnostic(String request, Promise promise) {
+    if (!mIsServiceBound || !service.isRunning()) {
+      promise.reject(TAG, "Not connected");
+      return;
+    }
+    final ObdCommandJob job = new ObdCommandJob(new IsoTpCommand(request));
+    mDiagnosticReads.put(job, promise);
+    service.queueJob(job);
+    mReadTimeouts.postAtTime(new Runnable() {
+      public void run() {
+        final Promise read = mDiagnosticReads.remove(job);
+        if (read != null) {
+          read.reject(TAG, "Timed out");
+        }
+      }
+    }, job, SystemClock.uptimeMillis() + DIAGNOSTIC_READ_TIMEOUT);
+  }
+
+  /**
+   * Resolves with the value of a PID read at most maxAge ms ago: the last
+   * sample if it's recent enough, else a read queued ahead of the live data
+   * requests. Callers asking for the same PID meanwhile share that read.
+   *
+   * @param cmdID the PID, e.g. "FUEL_LEVEL", or the id of a PID definition.
+   */
+  public void getValue(String cmdID, int maxAge, Promise promise) {
+    final PidCommand command = newPidCommand(cmdID);
+    if (command == null) {
+      promise.reject(TAG, "Unknown PID " + cmdID);
+      return;
+    }
+    final int slot = mLatestValues.slotOf(cmdID);
+    final LatestValueTable.Sample sample = new LatestValueTable.Sample();
+    // now dated like the sample, a device sleep or a wall clock change
+    // doesn't age it
+    final double now = ObdCommandJob.millisAt(SystemClock.elapsedRealtimeNanos());
+    if (slot >= 0 && mLatestValues.read(slot, sample) && sample.getTimestamp() >= now - maxAge) {
+      promise.resolve(valueMap(sample.getValue(), sample.getTimestamp()));
+      return;
+    }
+    if (!mIsServiceBound || !service.isRunning()) {
+      promise.reject(TAG, "Not connected");
+      return;
+    }
+    synchronized (mValueReads) {
+      List<Promise> reads = mValueReads.get(cmdID);
+      if (reads != null) {
+        reads.add(promise);
+        return;
+      }
+      reads = new ArrayList<>();
+      reads.add(promise);
+      mValueReads.put(cmdID, reads);
+      final ObdCommandJob job = new ObdCommandJob(command);
+      mValueJobs.put(job, cmdID);
+      service.queueJobFirst(job);
+      mReadTimeouts.postAtTime(new Runnable() {
+        public void run() {
+          expireValue(job);
+        }
+      }, job, SystemClock.uptimeMillis() + VALUE_READ_TIMEOUT);
+    }
+  }
+
+  /**
+   * @return the rate control of the running connection, or null.
+   */
+  @Nullable
+  public RateController getRateController() {
+    if (service != null && mIsServiceBound && service.isRunning()) {
+      return service.getRateController();
+    }
+    return null;
   }
 
   public void setRemoteDeviceName(String aRemoteDeviceName) {
@@ -167,6 +450,343 @@ public class OBD2Handler implements ObdProgressListener {
     mMockUpMode = enabled;
   }
 
+  /**
+   * Sets what the mock up mode simulates, applied on the next startLiveData.
+   */
+  public void setMockSimulation(DriveCycle cycle, long latency, int bytesPerSecond, double timeScale) {
+    mMockDriveCycle = cycle;
+    mMockLatency = latency;
+    mMockBytesPerSecond = bytesPerSecond;
+    mMockTimeScale = timeScale > 0 ? timeScale : 1;
+  }
+
+  /**
+   * Keeps polling in a foreground service while the app is in the background.
+   * In the meantime no per-sample events are sent; JS gets a batched summary
+   * through the 'OBD2LiveDataSummary' headless task every summaryInterval ms.
+   */
+  public void setBackgroundLogging(boolean enabled, int summaryInterval) {
+    mBackgroundLogging = enabled;
+    if (summaryInterval > 0) {
+      mSummaryInterval = summaryInterval;
+    }
+    if (service != null && mIsServiceBound && service.isRunning()) {
+      if (enabled) {
+        service.startForegroundLogging("OBD-II", "Logging live data");
+      } else {
+        service.stopForegroundLogging();
+      }
+    }
+    if (!enabled) {
+      mSummaryHandler.removeCallbacks(mDispatchSummary);
+    }
+  }
+
+  /**
+   * Injects transport faults (latency, garbage, disconnects..) from the next
+   * startLiveData on, to check how an app copes with a bad connection.
+   *
+   * @param profile the faults to inject, null to stop injecting.
+   */
+  public void setFaultProfile(@Nullable FaultProfile profile) {
+    mFaultProfile = profile;
+  }
+
+  /**
+   * Turns headers on from the next startLiveData on, splitting the answers
+   * of several ECUs into one stream each and sending every PID only to the
+   * ECUs that carry it.
+   */
+  public void setMultiEcu(boolean enabled) {
+    mEcuRouter = enabled ? new EcuRouter() : null;
+  }
+
+  /**
+   * Sends every value, aligned on a fixed-rate grid, as 'obd2ResampledData'
+   * events on top of the per-sample ones.
+   *
+   * @param rate grid points per second, 0 to stop resampling.
+   * @param maxGap ms without a sample after which a value is left out of
+   *               the rows, 0 for the default.
+   */
+  public void setResampling(double rate, int maxGap) {
+    if (rate <= 0) {
+      mResampler = null;
+      return;
+    }
+    mResampler = new Resampler(1000 / rate, maxGap > 0 ? maxGap : 2000, new Resampler.Listener() {
+      @Override
+      public void onRow(double time, String[] ids, double[] values) {
+        sendResampledRow(time, ids, values);
+      }
+    });
+  }
+
+  /**
+   * Sends the values read since the last batch as one 'obd2LiveDataBatch'
+   * event every interval ms, instead of one 'obd2LiveData' event per sample.
+   *
+   * @param interval ms between batches, 0 to go back to per-sample events.
+   */
+  public void setLiveDataBatching(int interval) {
+    mBatchInterval = Math.max(0, interval);
+    mBatchHandler.removeCallbacks(mDispatchBatch);
+    // the first batch carries what's been read so far
+    for (int slot = 0; slot < mBatchSequences.length; slot++) {
+      mBatchSequences[slot] = 0;
+    }
+    if (mBatchInterval > 0) {
+      mBatchHandler.postDelayed(mDispatchBatch, mBatchInterval);
+    }
+  }
+
+  /**
+   * @return the latest value of every stream, written by the gateway and
+   * readable from any thread without locking.
+   */
+  public LatestValueTable getLatestValues() {
+    return mLatestValues;
+  }
+
+  /**
+   * Keeps every sample of the trip in memory, compressed, for export and
+   * queries. Disabling it drops what was stored.
+   */
+  public void setTripStore(boolean enabled) {
+    if (!enabled) {
+      mTripStore = null;
+    } else if (mTripStore == null) {
+      mTripStore = new TripStore();
+    }
+  }
+
+  @Nullable
+  public TripStore getTripStore() {
+    return mTripStore;
+  }
+
+  /**
+   * Writes the samples of the trip store to a gzip compressed file in the
+   * background, sending 'obd2ExportProgress' events on the way, and resolves
+   * with a content URI to share it.
+   *
+   * @param format "csv" or "binary", see {@link TripExporter}.
+   */
+  public void exportTrip(String format, final Promise promise) {
+    if (mTripStore == null) {
+      promise.reject(TAG, "Trip store is disabled");
+      return;
+    }
+    final TripExporter.Format exportFormat;
+    try {
+      exportFormat = TripExporter.Format.valueOf(format.toUpperCase(Locale.US));
+    } catch (IllegalArgumentException e) {
+      promise.reject(TAG, "Unknown export format " + format);
+      return;
+    }
+    File dir = OBD2ExportProvider.getExportsDir(mReactContext);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      promise.reject(TAG, "Can't create " + dir);
+      return;
+    }
+    if (mTripExporter == null) {
+      mTripExporter = new TripExporter();
+    }
+    File file = new File(dir, "obd2-trip-" + System.currentTimeMillis() + exportFormat.getSuffix());
+    mTripExporter.export(mTripStore, file, exportFormat, new TripExporter.Listener() {
+      @Override
+      public void onProgress(long written, long total) {
+        WritableMap map = Arguments.createMap();
+        map.putDouble("written", written);
+        map.putDouble("total", total);
+        sendEvent(EVENTNAME_EXPORT_PROGRESS, map);
+      }
+
+      @Override
+      public void onDone(File file, long samples) {
+        WritableMap map = Arguments.createMap();
+        map.putString("uri", OBD2ExportProvider.getUri(mReactContext, file).toString());
+        map.putString("path", file.getAbsolutePath());
+        map.putDouble("samples", samples);
+        map.putDouble("bytes", file.length());
+        promise.resolve(map);
+      }
+
+      @Override
+      public void onError(IOException e) {
+        Log.e(TAG, "Trip export failed", e);
+        promise.reject(TAG, e.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Evaluates the given alert rules on every sample, sending 'obd2Alert'
+   * events when an alert is raised or cleared, also in the background.
+   *
+   * @param rules the rule set as JSON, see {@link RuleEngine}; null or empty
+   *              to stop evaluating.
+   * @throws JSONException if the rule set isn't valid, the previous one is
+   *                       kept then.
+   */
+  public void setAlertRules(@Nullable String rules) throws JSONException {
+    if (rules == null || rules.isEmpty()) {
+      mRuleEngine = null;
+      return;
+    }
+    mRuleEngine = new RuleEngine(rules, new RuleEngine.Listener() {
+      @Override
+      public void onAlert(String ruleId, boolean active, double time, String[] ids, double[] values) {
+        sendAlert(ruleId, active, time, ids, values);
+      }
+    });
+  }
+
+  /**
+   * Polls the given PID definitions, typically manufacturer specific PIDs,
+   * with the standard ones.
+   *
+   * @param definitions the definitions as JSON, see {@link PidDefinition};
+   *                    null or empty to poll the standard PIDs only.
+   * @throws JSONException if a definition isn't valid, the previous ones
+   *                       are kept then.
+   */
+  public void setPidDefinitions(@Nullable String definitions) throws JSONException {
+    if (definitions == null || definitions.isEmpty()) {
+      mPidDefinitions = Collections.emptyList();
+      return;
+    }
+    mPidDefinitions = PidDefinition.parse(definitions);
+  }
+
+  /**
+   * @return a command reading the given standard or defined PID, or null if
+   * there's no such PID.
+   */
+  @Nullable
+  private PidCommand newPidCommand(String cmdID) {
+    for (PidDefinition definition : mPidDefinitions) {
+      if (definition.getId().equals(cmdID)) {
+        return new PidCommand(definition);
+      }
+    }
+    try {
+      return new PidCommand(Pid.valueOf(cmdID));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Pauses polling while the engine is off, watching the adapter voltage.
+   *
+   * @param engineOnVoltage voltage at or above which the engine is running,
+   *                        0 for the default.
+   * @param probeInterval   ms between voltage probes while idle, 0 for the
+   *                        default.
+   */
+  public void setAutoIdle(boolean enabled, double engineOnVoltage, int probeInterval) {
+    if (enabled) {
+      mIgnitionMonitor = new IgnitionMonitor(
+          engineOnVoltage > 0 ? engineOnVoltage : IgnitionMonitor.DEFAULT_ENGINE_ON_VOLTAGE,
+          probeInterval > 0 ? probeInterval : IgnitionMonitor.DEFAULT_PROBE_INTERVAL);
+      mIgnitionMonitor.setListener(new IgnitionMonitor.Listener() {
+        public void onIdleChanged(boolean idle) {
+          // polls as soon as the engine starts, not on the idle loop's next run
+          pollNow();
+        }
+      });
+    } else {
+      mIgnitionMonitor = null;
+    }
+    if (service != null && mIsServiceBound) {
+      service.setIgnitionMonitor(mIgnitionMonitor);
+      service.setFaultProfile(mFaultProfile);
+      if (service instanceof MockObdGatewayService) {
+        ((MockObdGatewayService) service).setSimulation(mMockDriveCycle, mMockLatency, mMockBytesPerSecond, mMockTimeScale);
+      }
+    }
+  }
+
+  /**
+   * @return what is known of the vehicle behind the selected adapter, from
+   * the running connection or from the last one, or null.
+   */
+  @Nullable
+  public VehicleProfile getVehicleProfile() {
+    if (service != null && mIsServiceBound && service.getVehicleProfile() != null) {
+      return service.getVehicleProfile();
+    }
+    if (mRemoteDeviceName == null || mRemoteDeviceName.isEmpty()) {
+      return null;
+    }
+    return new VehicleProfileCache(mReactContext).forAdapter(mRemoteDeviceName);
+  }
+
+  /**
+   * Uploads every sample to the given endpoint in compressed batches, spooled
+   * on disk until the server accepts them. A null or empty url stops the
+   * uploader; spooled chunks are kept for the next time it starts.
+   */
+  public void setUploadEndpoint(@Nullable String url, @Nullable Map<String, String> headers,
+                                int batchSize, int flushInterval) throws IOException {
+    if (mUploader != null) {
+      mUploader.stop();
+      mUploader = null;
+    }
+    if (url == null || url.isEmpty()) {
+      return;
+    }
+    File spoolDir = new File(mReactContext.getFilesDir(), "obd2-upload-spool");
+    mUploader = new TripUploader(spoolDir, new URL(url), headers,
+        batchSize > 0 ? batchSize : 500, flushInterval > 0 ? flushInterval : 60000, 50 * 1024 * 1024);
+    mUploader.start();
+  }
+
+  @Override
+  public void onHostResume() {
+    mInBackground = false;
+    mSummaryHandler.removeCallbacks(mDispatchSummary);
+    if (mBackgroundLogging) {
+      // hand over what was logged since the last summary
+      dispatchSummary();
+    }
+  }
+
+  @Override
+  public void onHostPause() {
+    mInBackground = true;
+    if (mBackgroundLogging) {
+      mSummaryHandler.removeCallbacks(mDispatchSummary);
+      mSummaryHandler.postDelayed(mDispatchSummary, mSummaryInterval);
+    }
+  }
+
+  @Override
+  public void onHostDestroy() {
+    onHostPause();
+    synchronized (this) {
+      if (mBondedDevices != null) {
+        mBondedDevices.close();
+        mBondedDevices = null;
+      }
+    }
+  }
+
+  private void dispatchSummary() {
+    if (mTripSummary.isEmpty()) {
+      return;
+    }
+    Intent intent = new Intent(mReactContext, OBD2SummaryTaskService.class);
+    intent.putExtras(mTripSummary.flush());
+    try {
+      mReactContext.startService(intent);
+      HeadlessJsTaskService.acquireWakeLockNow(mReactContext);
+    } catch (IllegalStateException e) {
+      Log.e(TAG, "Failed to start the summary task", e);
+    }
+  }
+
   private void sendEvent(String eventName, @Nullable WritableMap params) {
     try {
       mReactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(eventName, params);
@@ -175,12 +795,22 @@ public class OBD2Handler implements ObdProgressListener {
     }
   }
 
-  private void queueCommands() {
+  /**
+   * @return the number of jobs queued.
+   */
+  private int queueCommands() {
+    int queued = 0;
     if (mIsServiceBound) {
       for (ObdCommand Command : ObdConfig.getCommands()) {
         service.queueJob(new ObdCommandJob(Command));
+        queued++;
+      }
+      for (PidDefinition definition : mPidDefinitions) {
+        service.queueJob(new ObdCommandJob(new PidCommand(definition)));
+        queued++;
       }
     }
+    return queued;
   }
 
   private void doBindService() {
@@ -227,21 +857,80 @@ public class OBD2Handler implements ObdProgressListener {
       throw new IOException("Bluetooth is not enabled");
     }
 
-    final BluetoothAdapter btAdapter = BluetoothAdapter.getDefaultAdapter();
-    if (btAdapter == null || !btAdapter.isEnabled()) {
-      throw new IOException("This device does not support Bluetooth or it is disabled.");
+    synchronized (this) {
+      if (mBondedDevices == null) {
+        // listed once, then kept up to date by the bond broadcasts
+        mBondedDevices = new BondedDevices(mReactContext, new BondedDevices.Listener() {
+          @Override
+          public void onBondedDevicesChanged(Set<BluetoothDevice> devices) {
+            WritableMap map = mArguments.createMap();
+            map.putArray("devices", toDeviceList(devices));
+            sendEvent(EVENTNAME_BONDED_DEVICES, map);
+          }
+        });
+      }
+      return mBondedDevices.get();
     }
+  }
 
-    Set<BluetoothDevice> pairedDevices = btAdapter.getBondedDevices();
-    return pairedDevices;
+  /**
+   * @return the name and address of each device.
+   */
+  WritableArray toDeviceList(Set<BluetoothDevice> devices) {
+    WritableArray deviceList = mArguments.createArray();
+    for (BluetoothDevice device : devices) {
+      WritableMap map = mArguments.createMap();
+      map.putString("name", device.getName());
+      map.putString("address", device.getAddress());
+      deviceList.pushMap(map);
+    }
+    return deviceList;
   }
 
   @Override
   public void stateUpdate(ObdCommandJob job) {
+    final Promise read = mDiagnosticReads.remove(job);
+    if (read != null) {
+      mReadTimeouts.removeCallbacksAndMessages(job);
+      resolveDiagnostic(job, read);
+      return;
+    }
+    resolveValue(job);
+
     final String cmdName = job.getCommand().getName();
     String cmdResult = "";
     final String cmdID = LookUpCommand(cmdName);
 
+    final double timestamp = job.getTimestamp();
+    if (job.hasResult() && job.getCommand() instanceof PidCommand
+        && ((PidCommand) job.getCommand()).getHeaders() != PidCommand.Headers.NONE) {
+      stateUpdateByEcu((PidCommand) job.getCommand(), cmdID, cmdName, timestamp);
+      return;
+    }
+
+    final double value = job.getNumericResult();
+    // In order to upload data to a server.
+    if (mUploader != null) {
+      mUploader.add(cmdID, value, (long) timestamp);
+    }
+    if (mTripStore != null) {
+      mTripStore.append(cmdID, value, timestamp);
+    }
+    if (mRuleEngine != null) {
+      mRuleEngine.add(cmdID, value, timestamp);
+    }
+
+    if (mBackgroundLogging) {
+      mTripSummary.add(cmdID, value, (long) timestamp);
+      if (mInBackground && !job.getState().equals(ObdCommandJob.ObdCommandJobState.BROKEN_PIPE)) {
+        // nobody is watching, the summary will carry it
+        return;
+      }
+    }
+    if (mResampler != null) {
+      mResampler.add(cmdID, value, timestamp);
+    }
+
     if (job.getState().equals(ObdCommandJob.ObdCommandJobState.EXECUTION_ERROR)) {
       cmdResult = job.getCommand().getResult();
       if (cmdResult != null && mIsServiceBound) {
@@ -266,15 +955,198 @@ public class OBD2Handler implements ObdProgressListener {
      * } else addTableRow(cmdID, cmdName, cmdResult);
      */
 
-    // In order to upload data to a server.
-    // commandResult.put(cmdID, cmdResult);
+    if (mBatchInterval > 0) {
+      // the next batch carries it
+      return;
+    }
     WritableMap map = mArguments.createMap();
     map.putString("cmdID", cmdID);
     map.putString("cmdName", cmdName);
     map.putString("cmdResult", cmdResult);
+    if (!Double.isNaN(value)) {
+      map.putDouble("value", value);
+    }
+    map.putDouble("timestamp", timestamp);
     sendEvent(EVENTNAME_OBD2_DATA, map);
   }
 
+  private void resolveValue(ObdCommandJob job) {
+    final List<Promise> reads;
+    synchronized (mValueReads) {
+      final String cmdID = mValueJobs.remove(job);
+      if (cmdID == null) {
+        return;
+      }
+      reads = mValueReads.remove(cmdID);
+    }
+    mReadTimeouts.removeCallbacksAndMessages(job);
+    final double value = job.getNumericResult();
+    for (Promise read : reads) {
+      if (Double.isNaN(value)) {
+        final String result = job.getCommand().getResult();
+        read.reject(TAG, result != null ? result : job.getState().name());
+      } else {
+        read.resolve(valueMap(value, job.getTimestamp()));
+      }
+    }
+  }
+
+  /**
+   * Rejects the callers of a read that wasn't answered in time, the next
+   * getValue for the PID queues a new one.
+   */
+  private void expireValue(ObdCommandJob job) {
+    final List<Promise> reads;
+    synchronized (mValueReads) {
+      final String cmdID = mValueJobs.remove(job);
+      if (cmdID == null) {
+        return;
+      }
+      reads = mValueReads.remove(cmdID);
+    }
+    for (Promise read : reads) {
+      read.reject(TAG, "Timed out");
+    }
+  }
+
+  private WritableMap valueMap(double value, double timestamp) {
+    WritableMap map = mArguments.createMap();
+    map.putDouble("value", value);
+    map.putDouble("timestamp", timestamp);
+    return map;
+  }
+
+  private void resolveDiagnostic(ObdCommandJob job, Promise promise) {
+    final IsoTpCommand command = (IsoTpCommand) job.getCommand();
+    if (!job.hasResult()) {
+      promise.reject(TAG, command.getResult() != null ? command.getResult() : job.getState().name());
+      return;
+    }
+    WritableArray answers = mArguments.createArray();
+    for (int i = 0; i < command.getAnswerCount(); i++) {
+      WritableMap answer = mArguments.createMap();
+      final int ecu = command.getEcu(i);
+      answer.putString("ecu", ecu >= 0 ? command.getHeaders().format(ecu) : null);
+      StringBuilder payload = new StringBuilder();
+      for (byte b : command.getPayload(i)) {
+        payload.append(String.format("%02X", b));
+      }
+      answer.putString("payload", payload.toString());
+      answer.putBoolean("complete", command.isComplete(i));
+      answers.pushMap(answer);
+    }
+    promise.resolve(answers);
+  }
+
+  /**
+   * Sends one update per answering ECU, each with its ECU address. Uploads
+   * and summaries keep the plain cmdID for the ECU with the lowest address
+   * (the engine, normally) and suffix it with '@' and the address for the
+   * others, so each ECU gets its own value stream.
+   */
+  private void stateUpdateByEcu(PidCommand command, String cmdID, String cmdName, double timestamp) {
+    final int answers = command.getAnswerCount();
+    final int primary = command.getPrimaryAnswer();
+
+    for (int i = 0; i < answers; i++) {
+      final String ecu = command.getHeaders().format(command.getEcu(i));
+      final String streamID = i == primary ? cmdID : cmdID + "@" + ecu;
+      final double value = command.getValue(i);
+      if (mUploader != null) {
+        mUploader.add(streamID, value, (long) timestamp);
+      }
+      if (mTripStore != null) {
+        mTripStore.append(streamID, value, timestamp);
+      }
+      if (mRuleEngine != null) {
+        mRuleEngine.add(streamID, value, timestamp);
+      }
+      if (mBackgroundLogging) {
+        mTripSummary.add(streamID, value, (long) timestamp);
+        if (mInBackground) {
+          continue;
+        }
+      }
+      if (mResampler != null) {
+        mResampler.add(streamID, value, timestamp);
+      }
+      if (mBatchInterval > 0) {
+        continue;
+      }
+
+      WritableMap map = mArguments.createMap();
+      map.putString("cmdID", cmdID);
+      map.putString("cmdName", cmdName);
+      map.putString("cmdResult", command.getFormattedResult(i));
+      map.putDouble("value", value);
+      map.putString("ecu", ecu);
+      map.putDouble("timestamp", timestamp);
+      sendEvent(EVENTNAME_OBD2_DATA, map);
+    }
+    if (mIsServiceBound && !(mBackgroundLogging && mInBackground)) {
+      sendDeviceStatus(EVENTNAME_OBD_STATUS, "receiving");
+    }
+  }
+
+  private void dispatchBatch() {
+    if (mBackgroundLogging && mInBackground) {
+      return;
+    }
+    WritableMap values = null;
+    for (int slot = 0; slot < mLatestValues.size(); slot++) {
+      // only the slots that changed since the last batch
+      if (mLatestValues.getSequence(slot) == mBatchSequences[slot]
+          || !mLatestValues.read(slot, mBatchSample)) {
+        continue;
+      }
+      mBatchSequences[slot] = mBatchSample.getSequence();
+      if (values == null) {
+        values = mArguments.createMap();
+      }
+      WritableMap sample = mArguments.createMap();
+      sample.putDouble("value", mBatchSample.getValue());
+      sample.putDouble("timestamp", mBatchSample.getTimestamp());
+      values.putMap(mLatestValues.getId(slot), sample);
+    }
+    if (values == null) {
+      return;
+    }
+    WritableMap map = mArguments.createMap();
+    map.putMap("values", values);
+    sendEvent(EVENTNAME_OBD2_BATCH, map);
+  }
+
+  private void sendAlert(String ruleId, boolean active, double time, String[] ids, double[] values) {
+    WritableMap row = mArguments.createMap();
+    for (int i = 0; i < ids.length; i++) {
+      if (!Double.isNaN(values[i])) {
+        row.putDouble(ids[i], values[i]);
+      }
+    }
+    WritableMap map = mArguments.createMap();
+    map.putString("id", ruleId);
+    map.putBoolean("active", active);
+    map.putDouble("timestamp", time);
+    map.putMap("values", row);
+    sendEvent(EVENTNAME_OBD2_ALERT, map);
+  }
+
+  private void sendResampledRow(double time, String[] ids, double[] values) {
+    if (mBackgroundLogging && mInBackground) {
+      return;
+    }
+    WritableMap row = mArguments.createMap();
+    for (int i = 0; i < ids.length; i++) {
+      if (!Double.isNaN(values[i])) {
+        row.putDouble(ids[i], values[i]);
+      }
+    }
+    WritableMap map = mArguments.createMap();
+    map.putDouble("timestamp", time);
+    map.putMap("values", row);
+    sendEvent(EVENTNAME_OBD2_RESAMPLED, map);
+  }
+
   private void sendDeviceStatus(String eventName, String status) {
     WritableMap btMap = mArguments.createMap();
     btMap.putString("status", status);
@@ -42,9 +42,21 @@ import com.facebook.react.bridge.ReadableType;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.uimanager.IllegalViewOperationException;
+import com.github.pires.obd.reader.config.VehicleProfile;
+import com.github.pires.obd.reader.io.FaultProfile;
+import com.github.pires.obd.reader.io.LatestValueTable;
+import com.github.pires.obd.reader.io.RateController;
+import com.github.pires.obd.reader.sim.DriveCycle;
+import com.github.pires.obd.reader.trips.GorillaColumn;
+import com.github.pires.obd.reader.trips.TripStore;
+import com.github.pires.obd.reader.trips.WindowStats;
+
+import org.json.JSONException;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -82,17 +94,7 @@ public class ReactNativeOBD2Module extends ReactContextBaseJavaModule {
 
     try {
       Set<BluetoothDevice> pairedDevices = mOBD2Handler.getBondedDevices();
-      WritableArray deviceList = mArguments.createArray();
-      if (pairedDevices.size() > 0) {
-        for (BluetoothDevice device : pairedDevices) {
-          WritableMap map = mArguments.createMap();
-          map.putString("name", device.getName());
-          map.putString("address", device.getAddress());
-          deviceList.pushMap(map);
-        }
-      }
-
-      aPromise.resolve(deviceList);
+      aPromise.resolve(mOBD2Handler.toDeviceList(pairedDevices));
     } catch (IOException e) {
       e.printStackTrace();
       aPromise.reject(TAG, e);
@@ -108,6 +110,38 @@ public class ReactNativeOBD2Module extends ReactContextBaseJavaModule {
     mOBD2Handler.setMockUpMode(enabled);
   }
 
+  @ReactMethod
+  public void setMockSimulation(String cycleName, ReadableArray waypoints, int latency, int bytesPerSecond, double timeScale) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    DriveCycle cycle;
+    if (waypoints != null && waypoints.size() > 0) {
+      double[] times = new double[waypoints.size()];
+      double[] speeds = new double[waypoints.size()];
+      for (int i = 0; i < waypoints.size(); i++) {
+        ReadableArray waypoint = waypoints.getArray(i);
+        times[i] = waypoint.getDouble(0);
+        speeds[i] = waypoint.getDouble(1);
+      }
+      cycle = new DriveCycle(times, speeds);
+    } else {
+      cycle = DriveCycle.byName(cycleName);
+    }
+
+    mOBD2Handler.setMockSimulation(cycle, latency, bytesPerSecond, timeScale);
+  }
+
+  @ReactMethod
+  public void setFaultProfile(String profileName) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    mOBD2Handler.setFaultProfile(profileName != null ? FaultProfile.byName(profileName) : null);
+  }
+
   @ReactMethod
   public void setRemoteDeviceAddress(String remoteDeviceAddress) {
      if (mOBD2Handler == null) {
@@ -117,6 +151,304 @@ public class ReactNativeOBD2Module extends ReactContextBaseJavaModule {
     mOBD2Handler.setRemoteDeviceName(remoteDeviceAddress);
   }
 
+  @ReactMethod
+  public void setBackgroundLogging(boolean enabled, int summaryInterval) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    mOBD2Handler.setBackgroundLogging(enabled, summaryInterval);
+  }
+
+  @ReactMethod
+  public void setUploadEndpoint(String url, ReadableMap headers, int batchSize, int flushInterval, Promise aPromise) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    Map<String, String> headerMap = new HashMap<>();
+    if (headers != null) {
+      ReadableMapKeySetIterator it = headers.keySetIterator();
+      while (it.hasNextKey()) {
+        String key = it.nextKey();
+        headerMap.put(key, headers.getString(key));
+      }
+    }
+
+    try {
+      mOBD2Handler.setUploadEndpoint(url, headerMap, batchSize, flushInterval);
+      aPromise.resolve(null);
+    } catch (IOException e) {
+      aPromise.reject(TAG, e);
+    }
+  }
+
+  @ReactMethod
+  public void setAutoIdle(boolean enabled, double engineOnVoltage, int probeInterval) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    mOBD2Handler.setAutoIdle(enabled, engineOnVoltage, probeInterval);
+  }
+
+  @ReactMethod
+  public void setResampling(double rate, int maxGap) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    mOBD2Handler.setResampling(rate, maxGap);
+  }
+
+  @ReactMethod
+  public void setLiveDataBatching(int interval) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    mOBD2Handler.setLiveDataBatching(interval);
+  }
+
+  // blocking bridge calls, not JSI: the table is read without locks, but
+  // every call still serializes its samples into a map
+  @ReactMethod(isBlockingSynchronousMethod = true)
+  public WritableMap getLatestValue(String cmdID) {
+    if (mOBD2Handler == null) {
+      return null;
+    }
+
+    LatestValueTable table = mOBD2Handler.getLatestValues();
+    LatestValueTable.Sample sample = new LatestValueTable.Sample();
+    int slot = table.slotOf(cmdID);
+    if (slot < 0 || !table.read(slot, sample)) {
+      return null;
+    }
+    WritableMap map = mArguments.createMap();
+    map.putDouble("value", sample.getValue());
+    map.putDouble("timestamp", sample.getTimestamp());
+    return map;
+  }
+
+  @ReactMethod(isBlockingSynchronousMethod = true)
+  public WritableMap getLatestValues() {
+    WritableMap map = mArguments.createMap();
+    if (mOBD2Handler == null) {
+      return map;
+    }
+
+    LatestValueTable table = mOBD2Handler.getLatestValues();
+    LatestValueTable.Sample sample = new LatestValueTable.Sample();
+    for (int slot = 0; slot < table.size(); slot++) {
+      if (table.read(slot, sample)) {
+        WritableMap value = mArguments.createMap();
+        value.putDouble("value", sample.getValue());
+        value.putDouble("timestamp", sample.getTimestamp());
+        map.putMap(table.getId(slot), value);
+      }
+    }
+    return map;
+  }
+
+  @ReactMethod
+  public void getValue(String cmdID, int maxAge, Promise aPromise) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    mOBD2Handler.getValue(cmdID, maxAge, aPromise);
+  }
+
+  @ReactMethod
+  public void setTripStore(boolean enabled) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    mOBD2Handler.setTripStore(enabled);
+  }
+
+  @ReactMethod
+  public void getTripStoreStats(Promise aPromise) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    TripStore store = mOBD2Handler.getTripStore();
+    if (store == null) {
+      aPromise.resolve(null);
+      return;
+    }
+
+    WritableMap streams = mArguments.createMap();
+    for (String id : store.getStreamIds()) {
+      streams.putInt(id, store.getColumn(id).size());
+    }
+    WritableMap map = mArguments.createMap();
+    map.putInt("samples", store.getSampleCount());
+    map.putDouble("bytes", store.getSizeInBytes());
+    map.putMap("streams", streams);
+    aPromise.resolve(map);
+  }
+
+  @ReactMethod
+  public void getPollingStats(Promise aPromise) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    RateController rate = mOBD2Handler.getRateController();
+    if (rate == null) {
+      aPromise.resolve(null);
+      return;
+    }
+
+    WritableMap map = mArguments.createMap();
+    map.putDouble("samplesPerSecond", rate.getSamplesPerSecond());
+    if (Double.isNaN(rate.getRoundTripTime())) {
+      map.putNull("roundTripTime");
+    } else {
+      map.putDouble("roundTripTime", rate.getRoundTripTime());
+    }
+    map.putDouble("requestGap", rate.getRequestGap());
+    map.putDouble("overrunRate", rate.getOverrunRate());
+    aPromise.resolve(map);
+  }
+
+  @ReactMethod
+  public void queryAggregates(String cmdID, double from, double to, double window,
+                              ReadableArray percentiles, Promise aPromise) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    TripStore store = mOBD2Handler.getTripStore();
+    if (store == null) {
+      aPromise.reject(TAG, "The trip store is off");
+      return;
+    }
+    WritableArray result = mArguments.createArray();
+    GorillaColumn column = store.getColumn(cmdID);
+    if (column == null) {
+      aPromise.resolve(result);
+      return;
+    }
+
+    double[] ranks = new double[percentiles.size()];
+    for (int i = 0; i < ranks.length; i++) {
+      ranks[i] = percentiles.getDouble(i);
+    }
+    List<WindowStats> windows;
+    try {
+      windows = column.aggregate(from > 0 ? (long) from : column.getFirstTime(),
+          to > 0 ? (long) to : column.getLastTime() + 1, (long) window, ranks);
+    } catch (IllegalArgumentException e) {
+      aPromise.reject(TAG, e);
+      return;
+    }
+    for (WindowStats stats : windows) {
+      WritableMap map = mArguments.createMap();
+      map.putDouble("start", stats.getStart());
+      map.putDouble("end", stats.getEnd());
+      map.putInt("count", stats.getCount());
+      map.putDouble("min", stats.getMin());
+      map.putDouble("max", stats.getMax());
+      map.putDouble("avg", stats.getAverage());
+      WritableArray values = mArguments.createArray();
+      for (double value : stats.getPercentiles()) {
+        values.pushDouble(value);
+      }
+      map.putArray("percentiles", values);
+      result.pushMap(map);
+    }
+    aPromise.resolve(result);
+  }
+
+  @ReactMethod
+  public void setAlertRules(String rules, Promise aPromise) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    try {
+      mOBD2Handler.setAlertRules(rules);
+      aPromise.resolve(null);
+    } catch (JSONException e) {
+      aPromise.reject(TAG, e);
+    }
+  }
+
+  @ReactMethod
+  public void setPidDefinitions(String definitions, Promise aPromise) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    try {
+      mOBD2Handler.setPidDefinitions(definitions);
+      aPromise.resolve(null);
+    } catch (JSONException e) {
+      aPromise.reject(TAG, e);
+    }
+  }
+
+  @ReactMethod
+  public void setMultiEcu(boolean enabled) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    mOBD2Handler.setMultiEcu(enabled);
+  }
+
+  @ReactMethod
+  public void exportTrip(String format, Promise aPromise) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    mOBD2Handler.exportTrip(format, aPromise);
+  }
+
+  @ReactMethod
+  public void readDiagnostic(String request, Promise aPromise) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    mOBD2Handler.readDiagnostic(request, aPromise);
+  }
+
+  @ReactMethod
+  public void getVehicleProfile(Promise aPromise) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    VehicleProfile profile = mOBD2Handler.getVehicleProfile();
+    if (profile == null) {
+      aPromise.resolve(null);
+      return;
+    }
+
+    WritableMap map = mArguments.createMap();
+    map.putString("adapterAddress", profile.getAdapterAddress());
+    map.putString("adapter", profile.getAdapter());
+    map.putString("adapterClass", profile.getAdapterClass());
+    map.putString("vin", profile.getVin());
+    map.putString("calibrationIds", profile.getCalibrationIds());
+    map.putString("protocol", profile.getProtocol() != 0 ? String.valueOf(profile.getProtocol()) : null);
+    WritableArray ecus = mArguments.createArray();
+    for (String ecu : profile.getEcus()) {
+      ecus.pushString(ecu);
+    }
+    map.putArray("ecus", ecus);
+    map.putDouble("meanResponseTime", profile.getMeanResponseTime());
+    map.putDouble("maxResponseTime", profile.getMaxResponseTime());
+    map.putDouble("updated", profile.getUpdated());
+    aPromise.resolve(map);
+  }
+
   @ReactMethod
   public void startLiveData() {
     if (mOBD2Handler == null) {
@@ -126,6 +458,15 @@ public class ReactNativeOBD2Module extends ReactContextBaseJavaModule {
     mOBD2Handler.startLiveData();
   }
 
+  @ReactMethod
+  public void pauseLiveData(int keepAliveInterval, int idleTimeout) {
+    if (mOBD2Handler == null) {
+      mOBD2Handler = new OBD2Handler(mReactContext);
+    }
+
+    mOBD2Handler.pauseLiveData(keepAliveInterval, idleTimeout);
+  }
+
   @ReactMethod
   public void stopLiveData() {
     if (mOBD2Handler == null) {
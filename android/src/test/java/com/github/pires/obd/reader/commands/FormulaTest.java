@@ -0,0 +1,96 @@
+package com.github.pires.obd.reader.commands;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FormulaTest {
+
+    private static double eval(String formula, int... data) {
+        return Formula.compile(formula).evaluate(data);
+    }
+
+    private static void assertRejected(String formula) {
+        try {
+            Formula.compile(formula);
+            fail("compiled " + formula);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(formula));
+        }
+    }
+
+    @Test
+    public void followsThePrecedenceAndAssociativity() {
+        assertEquals(14, eval("2 + 3 * 4"), 0);
+        assertEquals(20, eval("(2 + 3) * 4"), 0);
+        assertEquals(3, eval("10 - 4 - 3"), 0);
+        assertEquals(3, eval("24 / 4 / 2"), 0);
+        assertEquals(2.5, eval("1 + 6 / 4"), 0);
+        assertEquals(0.75, eval(".5 + .25"), 0);
+    }
+
+    @Test
+    public void negates() {
+        assertEquals(-5, eval("-A", 5), 0);
+        assertEquals(3, eval("--3"), 0);
+        assertEquals(-6, eval("2*-3"), 0);
+        assertEquals(-6, eval("-2*3"), 0);
+        assertEquals(7, eval("-(A - 10)", 3), 0);
+        assertEquals(4, eval("+A", 4), 0);
+    }
+
+    @Test
+    public void readsTheDataBytes() {
+        final Formula formula = Formula.compile("(A*256+B)/16 - 40");
+        assertEquals(2, formula.getBytes());
+        assertEquals(125, formula.evaluate(new int[]{0x0A, 0x50}), 0);
+        // only up to the last byte named counts
+        assertEquals(3, Formula.compile("C").getBytes());
+        assertEquals(0, Formula.compile("42").getBytes());
+    }
+
+    @Test
+    public void foldsConstants() {
+        // folded formulas never read the data
+        assertEquals(7, Formula.compile("(1 + 2) * 2 + max(1, abs(-1))").evaluate(null), 0);
+        assertEquals(-1, Formula.compile("signed(255, 8)").evaluate(null), 0);
+    }
+
+    @Test
+    public void dividesByZeroLikeDoubles() {
+        assertEquals(Double.POSITIVE_INFINITY, eval("A / B", 5, 0), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, eval("-A / 0", 5), 0);
+        assertTrue(Double.isNaN(eval("0 / 0")));
+    }
+
+    @Test
+    public void callsTheFunctions() {
+        assertEquals(-2, eval("signed(A*256+B, 16)", 0xFF, 0xFE), 0);
+        assertEquals(32767, eval("signed(A*256+B, 16)", 0x7F, 0xFF), 0);
+        assertEquals(1, eval("bit(A, 3)", 0x08), 0);
+        assertEquals(0, eval("bit(A, 2)", 0x08), 0);
+        assertEquals(2, eval("min(A, B)", 2, 9), 0);
+        assertEquals(9, eval("max(A, B)", 2, 9), 0);
+        assertEquals(40, eval("abs(A - 100)", 60), 0);
+    }
+
+    @Test
+    public void rejectsInvalidFormulas() {
+        assertRejected("A +");
+        assertRejected("(A");
+        assertRejected("A)");
+        assertRejected("A $ B");
+        assertRejected("1..2");
+        assertRejected("foo(A)");
+        // a lower case letter isn't a byte
+        assertRejected("a");
+        assertRejected("min(A)");
+        assertRejected("signed(A, B)");
+        assertRejected("signed(A, 0)");
+        assertRejected("bit(A, 63)");
+        assertRejected("bit(A, 1.5)");
+        assertRejected("");
+    }
+}
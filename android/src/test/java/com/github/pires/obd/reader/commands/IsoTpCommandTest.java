@@ -0,0 +1,138 @@
+package com.github.pires.obd.reader.commands;
+
+import com.github.pires.obd.exceptions.NoDataException;
+import com.github.pires.obd.reader.commands.PidCommand.Headers;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IsoTpCommandTest {
+
+    private static final String VIN = "1G1JC5444R7252367";
+
+    private static IsoTpCommand run(Headers headers, String answer) throws Exception {
+        final IsoTpCommand command = new IsoTpCommand("09 02");
+        command.setHeaders(headers);
+        command.run(new ByteArrayInputStream(answer.getBytes("US-ASCII")), new ByteArrayOutputStream());
+        return command;
+    }
+
+    /**
+     * @return the payload of a 09 02 answer carrying the given VIN.
+     */
+    private static byte[] vinPayload(String vin) throws Exception {
+        final byte[] payload = new byte[3 + vin.length()];
+        payload[0] = 0x49;
+        payload[1] = 0x02;
+        payload[2] = 0x01;
+        System.arraycopy(vin.getBytes("US-ASCII"), 0, payload, 3, vin.length());
+        return payload;
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void reassemblesAVinWithHeadersOff() throws Exception {
+        final IsoTpCommand vin = run(Headers.NONE, "SEARCHING...\r014\r"
+                + "0: 49 02 01 31 47 31\r1: 4A 43 35 34 34 34 52\r2: 37 32 35 32 33 36 37\r\r>");
+        assertEquals(1, vin.getAnswerCount());
+        assertEquals(-1, vin.getEcu(0));
+        assertArrayEquals(vinPayload(VIN), vin.getPayload(0));
+        assertTrue(vin.isComplete(0));
+    }
+
+    @Test
+    public void reassemblesAVinWithHeadersOn() throws Exception {
+        final IsoTpCommand vin = run(Headers.CAN_11, "7E8 10 14 49 02 01 31 47 31\r"
+                + "7E8 21 4A 43 35 34 34 34 52\r7E8 22 37 32 35 32 33 36 37\r\r>");
+        assertEquals(1, vin.getAnswerCount());
+        assertEquals(0x7E8, vin.getEcu(0));
+        assertArrayEquals(vinPayload(VIN), vin.getPayload(0));
+        assertTrue(vin.isComplete(0));
+        assertTrue(vin.getFormattedResult().startsWith("7E8:4902013147314A"));
+    }
+
+    @Test
+    public void keepsInterleavedEcusApart() throws Exception {
+        final IsoTpCommand vin = run(Headers.CAN_11, "7E8 10 14 49 02 01 31 47 31\r"
+                + "7E9 10 14 49 02 01 57 56 57\r7E8 21 4A 43 35 34 34 34 52\r7E9 21 5A 5A 5A 31 4A 5A 58\r"
+                + "7E9 22 57 30 30 30 30 30 31\r7E8 22 37 32 35 32 33 36 37\r\r>");
+        assertEquals(2, vin.getAnswerCount());
+        assertEquals(0x7E8, vin.getEcu(0));
+        assertArrayEquals(vinPayload(VIN), vin.getPayload(0));
+        assertEquals(0x7E9, vin.getEcu(1));
+        assertArrayEquals(vinPayload("WVWZZZ1JZXW000001"), vin.getPayload(1));
+    }
+
+    @Test
+    public void reassembles29BitFrames() throws Exception {
+        final IsoTpCommand vin = run(Headers.CAN_29, "18 DA F1 10 10 14 49 02 01 31 47 31\r"
+                + "18 DA F1 10 21 4A 43 35 34 34 34 52\r18 DA F1 10 22 37 32 35 32 33 36 37\r\r>");
+        assertEquals(0x18DAF110, vin.getEcu(0));
+        assertArrayEquals(vinPayload(VIN), vin.getPayload(0));
+    }
+
+    @Test
+    public void dropsThePaddingOfSingleFrames() throws Exception {
+        final IsoTpCommand dtcs = run(Headers.CAN_11, "7E8 06 43 02 01 33 01 34 55\r\r>");
+        assertArrayEquals(bytes(0x43, 0x02, 0x01, 0x33, 0x01, 0x34), dtcs.getPayload(0));
+    }
+
+    @Test
+    public void tellsMissingFramesAndRestartedMessages() throws Exception {
+        final IsoTpCommand missing = run(Headers.CAN_11, "7E8 10 14 49 02 01 31 47 31\r"
+                + "7E8 21 4A 43 35 34 34 34 52\r\r>");
+        assertFalse(missing.isComplete(0));
+        assertEquals(13, missing.getPayload(0).length);
+
+        // a new first frame from the same ECU replaces the message
+        final IsoTpCommand restarted = run(Headers.CAN_11, "7E8 10 14 49 02 01 31 47 31\r"
+                + "7E8 10 14 49 02 01 31 47 31\r7E8 21 4A 43 35 34 34 34 52\r7E8 22 37 32 35 32 33 36 37\r\r>");
+        assertEquals(1, restarted.getAnswerCount());
+        assertArrayEquals(vinPayload(VIN), restarted.getPayload(0));
+    }
+
+    @Test
+    public void appendsLegacyLinesPerEcuWithoutChecksums() throws Exception {
+        final IsoTpCommand dtcs = run(Headers.LEGACY, "48 6B 10 43 01 33 00 00 00 00 C4\r"
+                + "48 6B 1A 43 01 34 00 00 00 00 D1\r48 6B 10 43 02 00 00 00 00 00 A2\r\r>");
+        assertEquals(2, dtcs.getAnswerCount());
+        assertEquals(0x10, dtcs.getEcu(0));
+        assertArrayEquals(bytes(0x43, 0x01, 0x33, 0, 0, 0, 0, 0x43, 0x02, 0, 0, 0, 0, 0), dtcs.getPayload(0));
+        assertEquals(0x1A, dtcs.getEcu(1));
+        assertArrayEquals(bytes(0x43, 0x01, 0x34, 0, 0, 0, 0), dtcs.getPayload(1));
+    }
+
+    @Test
+    public void readsAnswersWithoutSpaces() throws Exception {
+        final IsoTpCommand on = run(Headers.CAN_11,
+                "7E81014490201314731\r7E8214A433534343452\r7E82237323532333637\r\r>");
+        assertArrayEquals(vinPayload(VIN), on.getPayload(0));
+        final IsoTpCommand off = run(Headers.NONE, "014\r0:490201314731\r1:4A433534343452\r2:37323532333637\r\r>");
+        assertArrayEquals(vinPayload(VIN), off.getPayload(0));
+    }
+
+    @Test
+    public void mapsNoDataToTheStockException() throws Exception {
+        try {
+            run(Headers.CAN_11, "NO DATA\r\r>");
+            fail("decoded NO DATA");
+        } catch (NoDataException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.github.pires.obd.reader.commands;
+
+import com.github.pires.obd.exceptions.MisunderstoodCommandException;
+import com.github.pires.obd.exceptions.NoDataException;
+import com.github.pires.obd.exceptions.NonNumericResponseException;
+import com.github.pires.obd.exceptions.StoppedException;
+import com.github.pires.obd.exceptions.UnableToConnectException;
+import com.github.pires.obd.reader.commands.PidCommand.Headers;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PidCommandTest {
+
+    private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+    private PidCommand run(Pid pid, Headers headers, String answer) throws Exception {
+        final PidCommand command = new PidCommand(pid);
+        command.setHeaders(headers);
+        command.run(new ByteArrayInputStream(answer.getBytes("US-ASCII")), sent);
+        return command;
+    }
+
+    private void assertFails(String answer, Class<? extends RuntimeException> error) throws Exception {
+        try {
+            run(Pid.ENGINE_RPM, Headers.NONE, answer);
+            fail("decoded " + answer);
+        } catch (RuntimeException e) {
+            assertEquals(error, e.getClass());
+        }
+    }
+
+    @Test
+    public void decodesWithoutHeaders() throws Exception {
+        final PidCommand rpm = run(Pid.ENGINE_RPM, Headers.NONE, "SEARCHING...\r41 0C 1A F8 \r\r>");
+        assertEquals(1, rpm.getAnswerCount());
+        assertEquals(1726, rpm.getValue(), 0);
+        assertEquals(-1, rpm.getEcu(0));
+    }
+
+    @Test
+    public void decodesCan11PerEcu() throws Exception {
+        final PidCommand rpm = run(Pid.ENGINE_RPM, Headers.CAN_11, "7E9 04 41 0C 1B 00 \r7E8 04 41 0C 1A F8 \r\r>");
+        assertEquals(2, rpm.getAnswerCount());
+        assertEquals(0x7E9, rpm.getEcu(0));
+        assertEquals(1728, rpm.getValue(0), 0);
+        assertEquals(0x7E8, rpm.getEcu(1));
+        assertEquals(1726, rpm.getValue(1), 0);
+        // the engine, lowest address
+        assertEquals(1, rpm.getPrimaryAnswer());
+    }
+
+    @Test
+    public void decodesCan29() throws Exception {
+        final PidCommand speed = run(Pid.SPEED, Headers.CAN_29, "18 DA F1 10 03 41 0D 3C \r\r>");
+        assertEquals(1, speed.getAnswerCount());
+        assertEquals(0x18DAF110, speed.getEcu(0));
+        assertEquals(60, speed.getValue(), 0);
+    }
+
+    @Test
+    public void decodesLegacyHeadersAndSkipsTheChecksum() throws Exception {
+        final PidCommand coolant = run(Pid.ENGINE_COOLANT_TEMP, Headers.LEGACY, "48 6B 10 41 05 7B C4 \r\r>");
+        assertEquals(1, coolant.getAnswerCount());
+        assertEquals(0x10, coolant.getEcu(0));
+        assertEquals(83, coolant.getValue(), 0);
+    }
+
+    @Test
+    public void decodesWithSpacesOff() throws Exception {
+        final PidCommand rpm = run(Pid.ENGINE_RPM, Headers.CAN_11, "7E804410C1AF8\r\r>");
+        assertEquals(0x7E8, rpm.getEcu(0));
+        assertEquals(1726, rpm.getValue(), 0);
+    }
+
+    @Test
+    public void skipsLinesOfOtherPids() throws Exception {
+        // a late answer to the previous request
+        final PidCommand rpm = run(Pid.ENGINE_RPM, Headers.CAN_11, "7E8 03 41 0D 3C \r7E8 04 41 0C 1A F8 \r\r>");
+        assertEquals(1, rpm.getAnswerCount());
+        assertEquals(1726, rpm.getValue(), 0);
+    }
+
+    @Test
+    public void mapsErrorsToTheStockExceptions() throws Exception {
+        assertFails("NO DATA\r\r>", NoDataException.class);
+        assertFails("SEARCHING...\rUNABLE TO CONNECT\r\r>", UnableToConnectException.class);
+        assertFails("STOPPED\r\r>", StoppedException.class);
+        assertFails("?\r\r>", MisunderstoodCommandException.class);
+        // a truncated answer holds no value either
+        assertFails("41 0C 1A\r\r>", NonNumericResponseException.class);
+    }
+
+    @Test
+    public void appendsTheAnswerCount() throws Exception {
+        final PidCommand rpm = new PidCommand(Pid.ENGINE_RPM);
+        rpm.setExpectedAnswers(2);
+        rpm.run(new ByteArrayInputStream("41 0C 1A F8 \r\r>".getBytes("US-ASCII")), sent);
+        assertTrue(sent.toString("US-ASCII"), sent.toString("US-ASCII").endsWith(" 2\r"));
+    }
+}
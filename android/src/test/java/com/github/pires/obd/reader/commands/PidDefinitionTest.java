@@ -0,0 +1,93 @@
+package com.github.pires.obd.reader.commands;
+
+import com.github.pires.obd.reader.commands.PidCommand.Headers;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PidDefinitionTest {
+
+    private static final String TRANS_TEMP = "{\"id\": \"TRANS_TEMP\", \"name\": \"Transmission temperature\","
+            + " \"request\": \"22 1940\", \"header\": \"7e1\", \"ecu\": \"7E9\", \"bytes\": 3,"
+            + " \"formula\": \"(A*256+B)/16 - 40\", \"unit\": \"C\"}";
+
+    private static void assertRejected(String definitions, String message) {
+        try {
+            PidDefinition.parse(definitions);
+            fail("parsed " + definitions);
+        } catch (JSONException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    @Test
+    public void parsesADefinition() throws JSONException {
+        final PidDefinition definition = PidDefinition.parse("[" + TRANS_TEMP + "]").get(0);
+        assertEquals("TRANS_TEMP", definition.getId());
+        assertEquals("Transmission temperature", definition.getName());
+        assertEquals("221940", definition.getRequest());
+        assertEquals("7E1", definition.getHeader());
+        assertEquals(0x7E9, definition.getEcu());
+        assertEquals(3, definition.getBytes());
+        assertEquals("C", definition.getUnit());
+        // the positive answer to service 22
+        assertArrayEquals(new int[]{0x62, 0x19, 0x40}, definition.getPrefix());
+    }
+
+    @Test
+    public void fillsTheDefaults() throws JSONException {
+        final List<PidDefinition> definitions = PidDefinition.parse(
+                "[{\"id\": \"OIL_LIFE\", \"request\": \"2210 1A\", \"formula\": \"B * 100 / 255\"}]");
+        final PidDefinition definition = definitions.get(0);
+        assertEquals("OIL_LIFE", definition.getName());
+        assertEquals("", definition.getUnit());
+        assertNull(definition.getHeader());
+        assertEquals(-1, definition.getEcu());
+        assertEquals(2, definition.getBytes());
+    }
+
+    @Test
+    public void decodesAnswersThroughPidCommand() throws Exception {
+        final PidCommand command = new PidCommand(PidDefinition.parse("[" + TRANS_TEMP + "]").get(0));
+        command.setHeaders(Headers.CAN_11);
+        command.run(new ByteArrayInputStream("7E9 06 62 19 40 0A 50 00\r\r>".getBytes("US-ASCII")),
+                new ByteArrayOutputStream());
+        assertEquals(125, command.getValue(), 0);
+    }
+
+    @Test
+    public void rejectsMalformedRows() {
+        assertRejected("[{\"id\": \"X\", \"request\": \"22 19G0\", \"formula\": \"A\"}]", "hex bytes");
+        assertRejected("[{\"id\": \"X\", \"request\": \"22 194\", \"formula\": \"A\"}]", "hex bytes");
+        assertRejected("[{\"id\": \"X\", \"request\": \"221940\", \"header\": \"7E\", \"formula\": \"A\"}]",
+                "header");
+        assertRejected("[{\"id\": \"X\", \"request\": \"221940\", \"ecu\": \"ECU\", \"formula\": \"A\"}]", "ecu");
+        assertRejected("[{\"id\": \"X\", \"request\": \"221940\", \"formula\": \"A +\"}]", "PID X: ");
+        assertRejected("[{\"id\": \"X\", \"request\": \"221940\", \"bytes\": 1, \"formula\": \"B\"}]", "bytes");
+        assertRejected("[{\"id\": \"X\", \"request\": \"221940\", \"bytes\": 27, \"formula\": \"A\"}]", "bytes");
+        assertRejected("[{\"id\": \"X\", \"formula\": \"A\"}]", "request");
+        assertRejected("[{\"id\": \"X\", \"request\": \"221940\"}]", "formula");
+    }
+
+    @Test
+    public void rejectsClashingIds() {
+        assertRejected("[{\"id\": \"ENGINE_RPM\", \"request\": \"010C\", \"formula\": \"A\"}]", "standard");
+        assertRejected("[" + TRANS_TEMP + ", " + TRANS_TEMP + "]", "twice");
+    }
+
+    @Test
+    public void rejectsWhatIsNotAList() {
+        assertRejected(TRANS_TEMP, "");
+        assertRejected("[" + TRANS_TEMP, "");
+    }
+}
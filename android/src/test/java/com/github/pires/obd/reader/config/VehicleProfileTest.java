@@ -0,0 +1,38 @@
+package com.github.pires.obd.reader.config;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class VehicleProfileTest {
+
+    private static final List<String> CAN_11 = Arrays.asList("7E8064100BE3FA813", "7E9064100981880");
+    private static final List<String> CAN_29 = Arrays.asList("18DAF110064100BE3FA813", "18DAF11806410098188011");
+
+    @Test
+    public void decodesEcusOfEveryCanProtocol() {
+        // B and C are the user defined CAN protocols, laid out as 6 and 7
+        for (char protocol : new char[]{'6', '8', 'B'}) {
+            assertEquals(Arrays.asList("7E8", "7E9"), VehicleProfile.decodeEcus(CAN_11, "4100", protocol));
+        }
+        for (char protocol : new char[]{'7', '9', 'C'}) {
+            assertEquals(Arrays.asList("18DAF110", "18DAF118"),
+                    VehicleProfile.decodeEcus(CAN_29, "4100", protocol));
+        }
+    }
+
+    @Test
+    public void decodesEcusOfLegacyProtocols() {
+        final List<String> lines = Arrays.asList("486B104100BE3FA813C4", "486B1A4100981880116B");
+        assertEquals(Arrays.asList("10", "1A"), VehicleProfile.decodeEcus(lines, "4100", '3'));
+    }
+
+    @Test
+    public void decodesVinFromCanFrames() {
+        final List<String> lines = Arrays.asList("014", "0:490201314731", "1:4A433534343452", "2:37323532333637");
+        assertEquals("1G1JC5444R7252367", VehicleProfile.decodeAscii(lines, "02"));
+    }
+}
@@ -0,0 +1,186 @@
+package com.github.pires.obd.reader.io;
+
+import com.github.pires.obd.reader.commands.Pid;
+import com.github.pires.obd.reader.commands.PidCommand;
+import com.github.pires.obd.reader.io.AdapterProber.AdapterClass;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdapterProberTest {
+
+    /**
+     * An adapter answering each request from a table, "?" to the others,
+     * and keeping the requests it got.
+     */
+    private static class CannedAdapter implements ObdTransport {
+        private final Map<String, String> answers = new HashMap<>();
+        private final List<String> requests = new ArrayList<>();
+        private final StringBuilder request = new StringBuilder();
+        private ByteArrayInputStream pending = new ByteArrayInputStream(new byte[0]);
+
+        private final InputStream in = new InputStream() {
+            @Override
+            public int read() {
+                return pending.read();
+            }
+
+            @Override
+            public int available() {
+                return pending.available();
+            }
+        };
+
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                if (b != '\r') {
+                    if (b != ' ') {
+                        request.append((char) b);
+                    }
+                    return;
+                }
+                final String cmd = request.toString();
+                request.setLength(0);
+                requests.add(cmd);
+                String answer = answers.get(cmd);
+                if (answer == null) {
+                    answer = cmd.startsWith("AT") || cmd.startsWith("ST") ? "?" : "41 0C 1A F8";
+                }
+                pending = new ByteArrayInputStream((answer + "\r\r>").getBytes());
+            }
+        };
+
+        CannedAdapter answer(String request, String answer) {
+            answers.put(request, answer);
+            return this;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private CannedAdapter adapter;
+    private TestGateway gateway;
+
+    private AdapterProber probe(CannedAdapter canned) throws InterruptedException {
+        adapter = canned;
+        gateway = new TestGateway(adapter);
+        gateway.queueAdapterProbes();
+        gateway.runQueue();
+        // the probes stay internal
+        assertTrue(gateway.finished.isEmpty());
+        return gateway.getAdapterProber();
+    }
+
+    /**
+     * @return the request the adapter got for an RPM read.
+     */
+    private String pollRpm() throws InterruptedException {
+        gateway.queueJob(new ObdCommandJob(new PidCommand(Pid.ENGINE_RPM)));
+        gateway.runQueue();
+        return adapter.requests.get(adapter.requests.size() - 1);
+    }
+
+    private static CannedAdapter elm327(String version) {
+        return new CannedAdapter().answer("ATI", "ELM327 " + version).answer("ATAT2", "OK").answer("ATS0", "OK");
+    }
+
+    @Test
+    public void trustsAGenuineElm327OnceItTakesAggressiveTiming() throws InterruptedException {
+        final AdapterProber prober = probe(elm327("v1.4b"));
+        assertEquals(AdapterClass.ELM327, prober.getAdapterClass());
+        assertEquals("ELM327v1.4b", prober.describe());
+        assertNull(prober.getStnIdentity());
+        assertTrue(prober.isCountingAnswers());
+        assertTrue(adapter.requests.contains("ATAT2"));
+        assertTrue(adapter.requests.contains("ATS0"));
+        assertEquals("010C1", pollRpm());
+    }
+
+    @Test
+    public void leavesTheDefaultsOnAnElm327BeforeV12() throws InterruptedException {
+        final AdapterProber prober = probe(elm327("v1.1"));
+        assertEquals(AdapterClass.ELM327, prober.getAdapterClass());
+        assertFalse(prober.isCountingAnswers());
+        assertFalse(adapter.requests.contains("ATAT2"));
+        assertEquals("010C", pollRpm());
+    }
+
+    @Test
+    public void takesV15ForAClone() throws InterruptedException {
+        final AdapterProber prober = probe(elm327("v1.5"));
+        assertEquals(AdapterClass.CLONE, prober.getAdapterClass());
+        assertFalse(prober.isCountingAnswers());
+        assertFalse(adapter.requests.contains("ATAT2"));
+    }
+
+    @Test
+    public void takesAnAdapterRejectingAggressiveTimingForAClone() throws InterruptedException {
+        final AdapterProber prober = probe(elm327("v2.1").answer("ATAT2", "?"));
+        assertEquals(AdapterClass.CLONE, prober.getAdapterClass());
+        assertFalse(prober.isCountingAnswers());
+        assertFalse(adapter.requests.contains("ATS0"));
+        assertEquals("010C", pollRpm());
+    }
+
+    @Test
+    public void detectsAnStn() throws InterruptedException {
+        final AdapterProber prober = probe(new CannedAdapter().answer("ATI", "ELM327 v1.4b")
+                .answer("STI", "STN1110 v4.2.1").answer("STDI", "OBDLink MX r1.3")
+                .answer("ATAT2", "OK").answer("ATS0", "OK"));
+        assertEquals(AdapterClass.STN, prober.getAdapterClass());
+        assertEquals("STN1110v4.2.1", prober.getStnIdentity());
+        assertEquals("OBDLinkMXr1.3", prober.getDevice());
+        assertEquals("STN1110v4.2.1 OBDLinkMXr1.3", prober.describe());
+        assertTrue(prober.isCountingAnswers());
+    }
+
+    @Test
+    public void takesAnAdapterRejectingAnswerCountsForAClone() throws InterruptedException {
+        final AdapterProber prober = probe(elm327("v1.4b").answer("010C1", "?"));
+        assertTrue(prober.isCountingAnswers());
+        assertEquals("010C1", pollRpm());
+        assertEquals(AdapterClass.CLONE, prober.getAdapterClass());
+        assertFalse(prober.isCountingAnswers());
+        // the failed read still reaches the listeners
+        assertEquals(1, gateway.finished.size());
+        assertEquals("010C", pollRpm());
+    }
+
+    @Test
+    public void staysUnknownWithoutAnElm327Answer() throws InterruptedException {
+        final AdapterProber prober = probe(new CannedAdapter());
+        assertEquals(AdapterClass.UNKNOWN, prober.getAdapterClass());
+        assertEquals("?", prober.getIdentity());
+        assertFalse(prober.isCountingAnswers());
+    }
+}
@@ -0,0 +1,200 @@
+package com.github.pires.obd.reader.io;
+
+import com.github.pires.obd.reader.commands.MultiLineCommand;
+import com.github.pires.obd.reader.commands.Pid;
+import com.github.pires.obd.reader.commands.PidCommand;
+import com.github.pires.obd.reader.sim.DriveCycle;
+import com.github.pires.obd.reader.sim.SimulatedElm327;
+import com.github.pires.obd.reader.sim.VehicleModel;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BleTransportTest {
+
+    @Test
+    public void writesAreHeldUntilFlushAndSplitByMtu() throws Exception {
+        final FakeGattPeer peer = new FakeGattPeer(23, null);
+        final OutputStream out = peer.connect().getOutputStream();
+        final byte[] request = new byte[45];
+        for (int i = 0; i < request.length; i++) {
+            request[i] = (byte) ('A' + i % 26);
+        }
+        out.write(request, 0, 30);
+        out.write(request, 30, 15);
+        assertTrue(peer.packets.isEmpty());
+
+        out.flush();
+        assertEquals(3, peer.packets.size());
+        assertEquals(20, peer.packets.get(0).length);
+        assertEquals(20, peer.packets.get(1).length);
+        assertEquals(5, peer.packets.get(2).length);
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for (byte[] packet : peer.packets) {
+            sent.write(packet);
+        }
+        assertArrayEquals(request, sent.toByteArray());
+
+        // nothing left over for the next request
+        out.flush();
+        assertEquals(3, peer.packets.size());
+    }
+
+    @Test
+    public void readsWaitForThePrompt() throws Exception {
+        final FakeGattPeer peer = new FakeGattPeer(23, null);
+        final BleTransport transport = peer.connect();
+        final InputStream in = transport.getInputStream();
+        transport.onNotification("41 0C 1A".getBytes());
+        final AtomicInteger last = new AtomicInteger();
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int b;
+                    while ((b = in.read()) != '>' && b != -1) {
+                        last.set(b);
+                    }
+                    last.set(b);
+                } catch (Exception e) {
+                    last.set(-2);
+                }
+            }
+        });
+        reader.start();
+        reader.join(100);
+        // what came so far is read, then the reader waits for the rest
+        assertTrue(reader.isAlive());
+        assertEquals('A', last.get());
+
+        transport.onNotification(" F8\r\r>".getBytes());
+        reader.join(1000);
+        assertFalse(reader.isAlive());
+        assertEquals('>', last.get());
+    }
+
+    @Test
+    public void answersAreReassembledFromNotifications() throws Exception {
+        final SimulatedElm327 adapter = new SimulatedElm327(new VehicleModel(DriveCycle.HIGHWAY), 0, 0, 1);
+        final FakeGattPeer peer = new FakeGattPeer(23, adapter);
+        final BleTransport transport = peer.connect();
+        final TestGateway gateway = new TestGateway(transport);
+        // with headers, two ECUs answer in more than one notification
+        gateway.queueJob(new ObdCommandJob(new MultiLineCommand("AT H1")));
+        final PidCommand rpm = new PidCommand(Pid.ENGINE_RPM);
+        rpm.setHeaders(PidCommand.Headers.CAN_11);
+        gateway.queueJob(new ObdCommandJob(rpm));
+        for (int i = 0; i < 20; i++) {
+            final PidCommand speed = new PidCommand(Pid.SPEED);
+            speed.setHeaders(PidCommand.Headers.CAN_11);
+            gateway.queueJob(new ObdCommandJob(speed));
+        }
+        gateway.runQueue();
+
+        assertEquals(2, rpm.getAnswerCount());
+        for (ObdCommandJob job : gateway.finished.subList(1, gateway.finished.size())) {
+            assertTrue(job.hasResult());
+        }
+        // one packet per request, the answers in several fragments
+        assertEquals(22, peer.packets.size());
+        assertTrue(peer.getNotificationCount() > 22);
+        transport.close();
+    }
+
+    @Test
+    public void ringGrowsAndKeepsTheOrder() throws Exception {
+        final BleTransport transport = new FakeGattPeer(23, null).connect();
+        final InputStream in = transport.getInputStream();
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        int next = 0;
+        // move the head so the data wraps around the end of the ring
+        for (int i = 0; i < 50; i++) {
+            final byte[] fragment = fragment(next, 20);
+            next += 20;
+            transport.onNotification(fragment);
+            expected.write(fragment);
+        }
+        final byte[] head = new byte[900];
+        assertEquals(900, readFully(in, head));
+        // then overflow the 1 KiB ring while it wraps
+        for (int i = 0; i < 200; i++) {
+            final byte[] fragment = fragment(next, 20);
+            next += 20;
+            transport.onNotification(fragment);
+            expected.write(fragment);
+        }
+        transport.onNotification(new byte[]{'>'});
+        expected.write('>');
+
+        final ByteArrayOutputStream read = new ByteArrayOutputStream();
+        read.write(head);
+        int b;
+        while ((b = in.read()) != '>') {
+            read.write(b);
+        }
+        read.write(b);
+        assertArrayEquals(expected.toByteArray(), read.toByteArray());
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void streamEndsAfterDisconnect() throws Exception {
+        final FakeGattPeer peer = new FakeGattPeer(23, null);
+        final BleTransport transport = peer.connect();
+        final InputStream in = transport.getInputStream();
+        transport.onNotification("OK".getBytes());
+        transport.onDisconnected();
+        assertFalse(transport.isConnected());
+        // what was received is still read, then the stream ends
+        assertEquals('O', in.read());
+        assertEquals('K', in.read());
+        assertEquals(-1, in.read());
+
+        // a reader waiting for an answer is woken up
+        final BleTransport waiting = new FakeGattPeer(23, null).connect();
+        final AtomicInteger result = new AtomicInteger(0);
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(waiting.getInputStream().read());
+                } catch (Exception e) {
+                    result.set(-2);
+                }
+            }
+        });
+        reader.start();
+        reader.join(100);
+        assertTrue(reader.isAlive());
+        waiting.onDisconnected();
+        reader.join(1000);
+        assertFalse(reader.isAlive());
+        assertEquals(-1, result.get());
+    }
+
+    private static byte[] fragment(int start, int length) {
+        final byte[] fragment = new byte[length];
+        for (int i = 0; i < length; i++) {
+            // anything but the prompt
+            fragment[i] = (byte) ('0' + (start + i) % 10);
+        }
+        return fragment;
+    }
+
+    private static int readFully(InputStream in, byte[] b) throws Exception {
+        int read = 0;
+        while (read < b.length) {
+            read += in.read(b, read, b.length - read);
+        }
+        return read;
+    }
+}
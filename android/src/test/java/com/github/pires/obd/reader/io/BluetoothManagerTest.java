@@ -0,0 +1,232 @@
+package com.github.pires.obd.reader.io;
+
+import android.content.SharedPreferences;
+
+import com.github.pires.obd.reader.io.BluetoothManager.Strategy;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class BluetoothManagerTest {
+
+    private static final String ADDRESS = "00:1D:A5:68:98:8B";
+
+    private final Prefs prefs = new Prefs();
+
+    /**
+     * Connects with the strategies it's told work and records the order
+     * they were tried in.
+     */
+    private static class FakeFactory implements BluetoothManager.SocketFactory<String> {
+        final Set<Strategy> working;
+        final List<Strategy> tried = new ArrayList<>();
+
+        FakeFactory(Set<Strategy> working) {
+            this.working = working;
+        }
+
+        @Override
+        public String connect(Strategy strategy) throws IOException {
+            tried.add(strategy);
+            if (!working.contains(strategy)) {
+                throw new IOException(strategy + " refused");
+            }
+            return "socket " + strategy;
+        }
+    }
+
+    private String connect(FakeFactory factory) throws IOException {
+        return BluetoothManager.connect(prefs, ADDRESS, factory);
+    }
+
+    @Test
+    public void triesTheStrategiesInOrderAndStopsAtTheFirstThatConnects() throws IOException {
+        final FakeFactory factory = new FakeFactory(EnumSet.of(Strategy.INSECURE, Strategy.CHANNEL_1));
+        assertEquals("socket INSECURE", connect(factory));
+        assertEquals(Arrays.asList(Strategy.SECURE, Strategy.INSECURE), factory.tried);
+    }
+
+    @Test
+    public void triesTheRememberedStrategyFirstNextTime() throws IOException {
+        connect(new FakeFactory(EnumSet.of(Strategy.CHANNEL_1)));
+        assertEquals("CHANNEL_1", prefs.values.get("strategy:" + ADDRESS));
+
+        final FakeFactory factory = new FakeFactory(EnumSet.of(Strategy.CHANNEL_1));
+        assertEquals("socket CHANNEL_1", connect(factory));
+        assertEquals(Arrays.asList(Strategy.CHANNEL_1), factory.tried);
+    }
+
+    @Test
+    public void fallsBackInOrderWhenTheRememberedStrategyFails() throws IOException {
+        prefs.values.put("strategy:" + ADDRESS, "INSECURE");
+        final FakeFactory factory = new FakeFactory(EnumSet.of(Strategy.CHANNEL_1));
+        assertEquals("socket CHANNEL_1", connect(factory));
+        assertEquals(Arrays.asList(Strategy.INSECURE, Strategy.SECURE, Strategy.CHANNEL_1), factory.tried);
+        assertEquals("CHANNEL_1", prefs.values.get("strategy:" + ADDRESS));
+    }
+
+    @Test
+    public void remembersStrategiesPerDevice() throws IOException {
+        prefs.values.put("strategy:00:00:00:00:00:01", "CHANNEL_1");
+        final FakeFactory factory = new FakeFactory(EnumSet.allOf(Strategy.class));
+        assertEquals("socket SECURE", connect(factory));
+        assertEquals(Arrays.asList(Strategy.SECURE), factory.tried);
+        assertEquals("CHANNEL_1", prefs.values.get("strategy:00:00:00:00:00:01"));
+    }
+
+    @Test
+    public void ignoresAnUnknownRememberedStrategy() throws IOException {
+        prefs.values.put("strategy:" + ADDRESS, "REFLECTION");
+        final FakeFactory factory = new FakeFactory(EnumSet.of(Strategy.SECURE));
+        assertEquals("socket SECURE", connect(factory));
+        assertEquals(Arrays.asList(Strategy.SECURE), factory.tried);
+        assertEquals("SECURE", prefs.values.get("strategy:" + ADDRESS));
+    }
+
+    @Test
+    public void failsWithTheLastErrorWhenNothingConnects() {
+        prefs.values.put("strategy:" + ADDRESS, "SECURE");
+        final FakeFactory factory = new FakeFactory(EnumSet.noneOf(Strategy.class));
+        try {
+            connect(factory);
+            fail("connected without a working strategy");
+        } catch (IOException e) {
+            assertEquals("CHANNEL_1 refused", e.getCause().getMessage());
+        }
+        assertEquals(Arrays.asList(Strategy.SECURE, Strategy.INSECURE, Strategy.CHANNEL_1), factory.tried);
+        // what worked before may work again once the adapter is back
+        assertEquals("SECURE", prefs.values.get("strategy:" + ADDRESS));
+    }
+
+    /**
+     * Preferences held in a map, strings only.
+     */
+    private static class Prefs implements SharedPreferences {
+        final Map<String, String> values = new HashMap<>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<>(values);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return values.containsKey(key) ? values.get(key) : defValue;
+        }
+
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            final Map<String, String> edits = new HashMap<>();
+            return new Editor() {
+                @Override
+                public Editor putString(String key, String value) {
+                    edits.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putStringSet(String key, Set<String> values) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putInt(String key, int value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putLong(String key, long value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putFloat(String key, float value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putBoolean(String key, boolean value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    edits.put(key, null);
+                    return this;
+                }
+
+                @Override
+                public Editor clear() {
+                    values.clear();
+                    return this;
+                }
+
+                @Override
+                public boolean commit() {
+                    apply();
+                    return true;
+                }
+
+                @Override
+                public void apply() {
+                    for (Map.Entry<String, String> edit : edits.entrySet()) {
+                        if (edit.getValue() == null) {
+                            values.remove(edit.getKey());
+                        } else {
+                            values.put(edit.getKey(), edit.getValue());
+                        }
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.pires.obd.reader.io;
+
+import com.github.pires.obd.reader.commands.Pid;
+import com.github.pires.obd.reader.commands.PidCommand;
+import com.github.pires.obd.reader.sim.DriveCycle;
+import com.github.pires.obd.reader.sim.SimulatedElm327;
+import com.github.pires.obd.reader.sim.VehicleModel;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EcuRouterTest {
+
+    private TestGateway gateway;
+
+    private List<PidCommand> poll(boolean probeAdapter) throws InterruptedException {
+        gateway = new TestGateway(new SimulatedElm327(new VehicleModel(DriveCycle.HIGHWAY), 0, 0, 1));
+        if (probeAdapter) {
+            gateway.queueAdapterProbes();
+        }
+        gateway.setEcuRouter(new EcuRouter());
+        gateway.queueRouterSetup();
+        final List<PidCommand> commands = new ArrayList<>();
+        // the prober queues ATAT2 behind the first round, counts are only
+        // added from the second one on
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 3; i++) {
+                final PidCommand rpm = new PidCommand(Pid.ENGINE_RPM);
+                commands.add(rpm);
+                gateway.queueJob(new ObdCommandJob(rpm));
+            }
+            gateway.runQueue();
+        }
+        return commands;
+    }
+
+    @Test
+    public void doesNotCountAnswersForAnUnprobedAdapter() throws InterruptedException {
+        for (PidCommand rpm : poll(false)) {
+            assertEquals(0, rpm.getExpectedAnswers());
+            // the engine and the transmission
+            assertEquals(2, rpm.getAnswerCount());
+        }
+    }
+
+    @Test
+    public void countsAnswersOnceTheProberTrustsTheAdapter() throws InterruptedException {
+        final List<PidCommand> commands = poll(true);
+        assertEquals(AdapterProber.AdapterClass.ELM327, gateway.getAdapterProber().getAdapterClass());
+        assertTrue(gateway.getAdapterProber().isCountingAnswers());
+        assertEquals(0, commands.get(0).getExpectedAnswers());
+        final PidCommand last = commands.get(commands.size() - 1);
+        assertEquals(2, last.getExpectedAnswers());
+        assertEquals(2, last.getAnswerCount());
+    }
+}
@@ -0,0 +1,107 @@
+package com.github.pires.obd.reader.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A GATT peer in process: keeps every packet written and, when it fronts
+ * another transport (e.g. the simulated ELM327), passes the requests on and
+ * sends the answers back as notifications of at most the payload size, from
+ * its own thread like the Android stack does.
+ */
+class FakeGattPeer implements BleTransport.Peer {
+
+    private final int maxPayload;
+    private final ObdTransport adapter;
+    private final ExecutorService notifier = Executors.newSingleThreadExecutor();
+    final List<byte[]> packets = new ArrayList<>();
+    private BleTransport transport;
+    private volatile boolean connected = true;
+    private int notifications = 0;
+
+    /**
+     * @param mtu     the negotiated ATT MTU.
+     * @param adapter answers the requests, null for none.
+     */
+    FakeGattPeer(int mtu, ObdTransport adapter) {
+        this.maxPayload = mtu - 3;
+        this.adapter = adapter;
+    }
+
+    BleTransport connect() {
+        transport = new BleTransport(this);
+        return transport;
+    }
+
+    synchronized int getNotificationCount() {
+        return notifications;
+    }
+
+    @Override
+    public int getMaxPayload() {
+        return maxPayload;
+    }
+
+    @Override
+    public synchronized void write(byte[] packet) throws IOException {
+        if (!connected) {
+            throw new IOException("Broken pipe");
+        }
+        if (packet.length > maxPayload) {
+            throw new IOException("Packet of " + packet.length + " bytes over the MTU");
+        }
+        packets.add(packet);
+        if (adapter == null) {
+            return;
+        }
+        adapter.getOutputStream().write(packet);
+        if (packet[packet.length - 1] == '\r') {
+            final byte[] answer = readAnswer();
+            notifier.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendNotifications(answer);
+                }
+            });
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+        notifier.shutdownNow();
+    }
+
+    private byte[] readAnswer() throws IOException {
+        final ByteArrayOutputStream answer = new ByteArrayOutputStream();
+        final InputStream in = adapter.getInputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            answer.write(b);
+            if (b == '>') {
+                break;
+            }
+        }
+        return answer.toByteArray();
+    }
+
+    private void sendNotifications(byte[] answer) {
+        for (int i = 0; i < answer.length; i += maxPayload) {
+            synchronized (this) {
+                notifications++;
+            }
+            transport.onNotification(Arrays.copyOfRange(answer, i, Math.min(answer.length, i + maxPayload)));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.github.pires.obd.reader.io;
+
+import com.github.pires.obd.reader.commands.Pid;
+import com.github.pires.obd.reader.commands.PidCommand;
+import com.github.pires.obd.reader.io.ObdCommandJob.ObdCommandJobState;
+import com.github.pires.obd.reader.sim.DriveCycle;
+import com.github.pires.obd.reader.sim.SimulatedElm327;
+import com.github.pires.obd.reader.sim.VehicleModel;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the gateway against the simulated adapter behind each fault profile
+ * and checks the throughput and how fast it recovers from a fault. The
+ * faults are seeded, so every run injects the same ones.
+ */
+public class FaultProfileGatewayTest {
+
+    private static final Pid[] POLLED = {Pid.ENGINE_RPM, Pid.SPEED, Pid.ENGINE_LOAD, Pid.ENGINE_COOLANT_TEMP};
+    private static final long SEED = 42;
+
+    private FaultInjectingTransport transport;
+    private TestGateway gateway;
+    private long elapsedNanos;
+
+    private void poll(FaultProfile profile, int requests) throws InterruptedException {
+        final SimulatedElm327 adapter = new SimulatedElm327(new VehicleModel(DriveCycle.HIGHWAY), 0, 0, 1);
+        transport = new FaultInjectingTransport(adapter, profile, new Random(SEED));
+        gateway = new TestGateway(transport);
+        for (int i = 0; i < requests; i++) {
+            gateway.queueJob(new ObdCommandJob(new PidCommand(POLLED[i % POLLED.length])));
+        }
+        final long start = System.nanoTime();
+        gateway.runQueue();
+        elapsedNanos = System.nanoTime() - start;
+        assertEquals(requests, gateway.finished.size());
+    }
+
+    private int answered() {
+        int answered = 0;
+        for (ObdCommandJob job : gateway.finished) {
+            if (job.hasResult()) {
+                answered++;
+            }
+        }
+        return answered;
+    }
+
+    private double answersPerSecond() {
+        return answered() * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * @return the longest time from a failed answer to the next good one,
+     * in ms.
+     */
+    private double maxRecoveryMillis() {
+        double max = 0;
+        long failedAt = -1;
+        for (ObdCommandJob job : gateway.finished) {
+            if (!job.hasResult()) {
+                if (failedAt < 0) {
+                    failedAt = job.getReceivedNanos();
+                }
+            } else if (failedAt >= 0) {
+                max = Math.max(max, (job.getReceivedNanos() - failedAt) / 1e6);
+                failedAt = -1;
+            }
+        }
+        assertTrue("never recovered", failedAt < 0);
+        return max;
+    }
+
+    /**
+     * @return true if every answer carries the value of the PID asked for,
+     * i.e. no answer was shifted onto the next request.
+     */
+    private boolean inStep() {
+        for (ObdCommandJob job : gateway.finished) {
+            final PidCommand command = (PidCommand) job.getCommand();
+            if (job.hasResult() && command.getAnswerCount() != 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void cleanLink() throws InterruptedException {
+        poll(new FaultProfile(), 400);
+        assertEquals(400, answered());
+        assertTrue("throughput " + answersPerSecond(), answersPerSecond() > 200);
+    }
+
+    @Test
+    public void badRadio() throws InterruptedException {
+        poll(FaultProfile.badRadio(), 24);
+        assertTrue(transport.getStallCount() > 0);
+        // slow, but nothing lost
+        assertEquals(24, answered());
+        // 40 ms plus 80 ms of jitter on average
+        assertTrue("throughput " + answersPerSecond(), answersPerSecond() > 4);
+    }
+
+    @Test
+    public void flakyAdapter() throws InterruptedException {
+        poll(FaultProfile.flakyAdapter(), 200);
+        final int faults = transport.getGarbledCount() + transport.getStoppedCount() + transport.getBufferFullCount();
+        assertTrue(faults > 0);
+        // a garbled answer may still decode, the others are lost
+        assertTrue(answered() >= 200 - faults);
+        assertTrue(inStep());
+        assertTrue("throughput " + answersPerSecond(), answersPerSecond() > 30);
+        // the next request after a fault gets a good answer, after the gap
+        // the rate controller backs off to
+        assertTrue("recovery " + maxRecoveryMillis(), maxRecoveryMillis() < 300);
+    }
+
+    @Test
+    public void disconnecting() throws InterruptedException {
+        // the seeded faults drop the link after 16 answers
+        poll(FaultProfile.disconnecting(), 120);
+        assertTrue(!transport.isConnected());
+
+        int broken = -1;
+        for (int i = 0; i < gateway.finished.size(); i++) {
+            final ObdCommandJob job = gateway.finished.get(i);
+            if (broken < 0 && job.getState() == ObdCommandJobState.BROKEN_PIPE) {
+                broken = i;
+            }
+            if (broken >= 0) {
+                // no endless errors on a dead link, the session gets torn down
+                assertEquals(ObdCommandJobState.BROKEN_PIPE, job.getState());
+            }
+        }
+        assertTrue(broken > 0);
+        assertEquals(broken, answered());
+        // reported by the request the link dropped under, not after a timeout
+        final ObdCommandJob dropped = gateway.finished.get(broken);
+        assertTrue((dropped.getReceivedNanos() - dropped.getSentNanos()) / 1e6 < 1000);
+    }
+}
@@ -0,0 +1,164 @@
+package com.github.pires.obd.reader.io;
+
+import com.github.pires.obd.commands.ObdCommand;
+import com.github.pires.obd.reader.commands.IsoTpCommand;
+import com.github.pires.obd.reader.commands.MultiLineCommand;
+import com.github.pires.obd.reader.commands.Pid;
+import com.github.pires.obd.reader.commands.PidCommand;
+import com.github.pires.obd.reader.commands.VoltageCommand;
+import com.github.pires.obd.reader.io.ObdCommandJob.ObdCommandJobState;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IgnitionMonitorTest {
+
+    private final IgnitionMonitor monitor = new IgnitionMonitor(13.2, 1000);
+    private final List<Boolean> changes = new ArrayList<>();
+
+    {
+        monitor.setListener(new IgnitionMonitor.Listener() {
+            @Override
+            public void onIdleChanged(boolean idle) {
+                changes.add(idle);
+            }
+        });
+    }
+
+    private static ObdCommandJob answered(ObdCommand command, String answer) throws Exception {
+        command.run(new ByteArrayInputStream(answer.getBytes("US-ASCII")), new ByteArrayOutputStream());
+        final ObdCommandJob job = new ObdCommandJob(command);
+        job.setState(ObdCommandJobState.FINISHED);
+        return job;
+    }
+
+    private static ObdCommandJob voltage(double volts) throws Exception {
+        return answered(new VoltageCommand(), volts + "V\r\r>");
+    }
+
+    private static ObdCommandJob rpm(int rpm) throws Exception {
+        final int raw = rpm * 4;
+        return answered(new PidCommand(Pid.ENGINE_RPM),
+                String.format("41 0C %02X %02X\r\r>", raw >> 8, raw & 0xFF));
+    }
+
+    private static ObdCommandJob failed(ObdCommand command) {
+        final ObdCommandJob job = new ObdCommandJob(command);
+        job.setState(ObdCommandJobState.EXECUTION_ERROR);
+        return job;
+    }
+
+    @Test
+    public void followsTheVoltageWithHysteresis() throws Exception {
+        // 12.8 to 13.2 V keeps the current state
+        monitor.handleResult(voltage(13.0));
+        assertFalse(monitor.isIdle());
+        monitor.handleResult(voltage(12.5));
+        assertTrue(monitor.isIdle());
+        monitor.handleResult(voltage(13.0));
+        assertTrue(monitor.isIdle());
+        monitor.handleResult(voltage(13.6));
+        assertFalse(monitor.isIdle());
+        assertEquals(13.6, monitor.getVoltage(), 1e-9);
+        assertEquals(Arrays.asList(true, false), changes);
+    }
+
+    @Test
+    public void staysOnWhileTheEngineTurnsAtLowVoltage() throws Exception {
+        // vehicles whose voltage doesn't rise with the engine
+        monitor.handleResult(rpm(800));
+        monitor.handleResult(voltage(12.4));
+        assertFalse(monitor.isIdle());
+        monitor.handleResult(rpm(0));
+        monitor.handleResult(voltage(12.4));
+        assertTrue(monitor.isIdle());
+        monitor.handleResult(rpm(750));
+        assertFalse(monitor.isIdle());
+        assertEquals(Arrays.asList(true, false), changes);
+    }
+
+    @Test
+    public void goesIdleOnALowPowerAlert() throws Exception {
+        monitor.handleResult(answered(new MultiLineCommand("AT RV"), "LP ALERT\r\r>"));
+        assertTrue(monitor.isIdle());
+        assertEquals(Arrays.asList(true), changes);
+    }
+
+    @Test
+    public void goesIdleAfterEightLiveDataFailuresInARow() throws Exception {
+        for (int i = 0; i < 7; i++) {
+            monitor.handleResult(failed(new PidCommand(Pid.SPEED)));
+        }
+        monitor.handleResult(rpm(0));
+        for (int i = 0; i < 7; i++) {
+            monitor.handleResult(failed(new PidCommand(Pid.SPEED)));
+        }
+        assertFalse(monitor.isIdle());
+        monitor.handleResult(failed(new PidCommand(Pid.SPEED)));
+        assertTrue(monitor.isIdle());
+    }
+
+    @Test
+    public void ignoresFailuresOfTheSetupAndProbes() throws Exception {
+        // e.g. NO DATA to an unsupported Mode 09 request
+        for (int i = 0; i < 20; i++) {
+            monitor.handleResult(failed(new MultiLineCommand("09 04")));
+            monitor.handleResult(failed(new IsoTpCommand("09 02")));
+        }
+        assertFalse(monitor.isIdle());
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void probesTheVoltageAndOnceInAWhileTheEngineSpeed() throws Exception {
+        final ObdCommandJob probe = monitor.nextProbe(0);
+        assertTrue(probe.getCommand() instanceof VoltageCommand);
+        // running, the next check is 5 s away
+        assertNull(monitor.nextProbe(4999));
+        assertEquals(1, monitor.millisToNextProbe(4999));
+        assertTrue(monitor.handleResult(probe));
+        assertFalse(monitor.handleResult(voltage(12.0)));
+
+        monitor.handleResult(voltage(12.0));
+        int rpmProbes = 0;
+        for (long now = 0; now < 15000; now += 1000) {
+            final ObdCommandJob idleProbe = monitor.nextProbe(now);
+            if (idleProbe.getCommand() instanceof PidCommand) {
+                rpmProbes++;
+            }
+        }
+        assertEquals(1, rpmProbes);
+    }
+
+    @Test
+    public void keepsTheSetupQueuedWhenTheEngineGoesOff() throws Exception {
+        final TestGateway gateway = new TestGateway(null);
+        gateway.setIgnitionMonitor(monitor);
+        final ObdCommandJob headersOn = new ObdCommandJob(new MultiLineCommand("AT H1"));
+        final ObdCommandJob vin = new ObdCommandJob(new IsoTpCommand("09 02"));
+        gateway.queueJob(new ObdCommandJob(new PidCommand(Pid.SPEED)));
+        gateway.queueJob(headersOn);
+        gateway.queueJob(new ObdCommandJob(new PidCommand(Pid.ENGINE_RPM)));
+        gateway.queueJob(vin);
+
+        // no probe while the setup is queued
+        assertTrue(gateway.nextJob().isLiveData());
+        assertTrue(gateway.nextJob() == headersOn);
+
+        gateway.jobFinished(voltage(12.0));
+        assertTrue(monitor.isIdle());
+        assertTrue(gateway.nextJob() == vin);
+        assertTrue(gateway.queueEmpty());
+        assertTrue(gateway.nextJob().getCommand() instanceof VoltageCommand);
+    }
+}
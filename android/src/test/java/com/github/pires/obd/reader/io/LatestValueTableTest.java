@@ -0,0 +1,137 @@
+package com.github.pires.obd.reader.io;
+
+import com.github.pires.obd.reader.commands.Pid;
+import com.github.pires.obd.reader.commands.PidCommand;
+import com.github.pires.obd.reader.commands.PidCommand.Headers;
+import com.github.pires.obd.reader.io.ObdCommandJob.ObdCommandJobState;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LatestValueTableTest {
+
+    private final LatestValueTable.Sample sample = new LatestValueTable.Sample();
+
+    /**
+     * @return a finished job of the given PID, answered at the given ns.
+     */
+    private static ObdCommandJob answered(Pid pid, Headers headers, String answer, long nanos) throws Exception {
+        final PidCommand command = new PidCommand(pid);
+        command.setHeaders(headers);
+        command.run(new ByteArrayInputStream(answer.getBytes("US-ASCII")), new ByteArrayOutputStream());
+        final ObdCommandJob job = new ObdCommandJob(command);
+        job.setState(ObdCommandJobState.FINISHED);
+        job.setTiming(nanos, nanos);
+        return job;
+    }
+
+    private static ObdCommandJob rpm(int raw, long nanos) throws Exception {
+        return answered(Pid.ENGINE_RPM, Headers.NONE,
+                String.format("41 0C %02X %02X\r\r>", raw >> 8, raw & 0xFF), nanos);
+    }
+
+    @Test
+    public void readsNothingBeforeTheFirstPublish() {
+        final LatestValueTable table = new LatestValueTable(4);
+        assertEquals(-1, table.slotOf("ENGINE_RPM"));
+        assertEquals(0, table.size());
+        assertFalse(table.read(0, sample));
+        assertEquals(0, table.getSequence(0));
+    }
+
+    @Test
+    public void keepsOneSlotPerStreamAndCountsUpdates() throws Exception {
+        final LatestValueTable table = new LatestValueTable(4);
+        table.publish(rpm(4000, System.nanoTime()));
+        table.publish(rpm(4004, System.nanoTime()));
+        final int slot = table.slotOf("ENGINE_RPM");
+        assertEquals(0, slot);
+        assertTrue(table.read(slot, sample));
+        assertEquals(1001, sample.getValue(), 0);
+        assertEquals(2, sample.getSequence());
+        assertEquals(2, table.getSequence(slot));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void publishesTheOtherEcusInSlotsOfTheirOwn() throws Exception {
+        final LatestValueTable table = new LatestValueTable(4);
+        table.publish(answered(Pid.ENGINE_RPM, Headers.CAN_11,
+                "7E9 04 41 0C 1B 00\r7E8 04 41 0C 1A F8\r\r>", System.nanoTime()));
+        assertTrue(table.read(table.slotOf("ENGINE_RPM"), sample));
+        // the engine's, the lowest address
+        assertEquals(1726, sample.getValue(), 0);
+        assertTrue(table.read(table.slotOf("ENGINE_RPM@7E9"), sample));
+        assertEquals(1728, sample.getValue(), 0);
+    }
+
+    @Test
+    public void dropsStreamsOnceFull() throws Exception {
+        final LatestValueTable table = new LatestValueTable(1);
+        table.publish(rpm(4000, System.nanoTime()));
+        table.publish(answered(Pid.SPEED, Headers.NONE, "41 0D 3C\r\r>", System.nanoTime()));
+        assertEquals(1, table.size());
+        assertEquals(-1, table.slotOf("SPEED"));
+    }
+
+    @Test
+    public void neverReadsATornSample() throws Exception {
+        // each value is tied to its timestamp, i rpm read at i ms, a torn
+        // read breaks the tie
+        final ObdCommandJob[] jobs = new ObdCommandJob[16000];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = rpm(i * 4, 1000000000L + i * 1000000L);
+        }
+        final LatestValueTable table = new LatestValueTable(4);
+        table.publish(jobs[0]);
+        final int slot = table.slotOf("ENGINE_RPM");
+        assertTrue(table.read(slot, sample));
+        final double offset = sample.getTimestamp() - sample.getValue();
+
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final Thread[] readers = new Thread[3];
+        final AtomicBoolean done = new AtomicBoolean(false);
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final LatestValueTable.Sample s = new LatestValueTable.Sample();
+                    long last = 0;
+                    while (!done.get() || last == 0) {
+                        table.read(slot, s);
+                        if (Math.abs(s.getTimestamp() - s.getValue() - offset) > 1e-3) {
+                            failure.set("torn at " + s.getValue() + ", " + s.getTimestamp());
+                            return;
+                        }
+                        if (s.getSequence() < last) {
+                            failure.set("sequence went back from " + last + " to " + s.getSequence());
+                            return;
+                        }
+                        last = s.getSequence();
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        for (int round = 0; round < 5; round++) {
+            for (ObdCommandJob job : jobs) {
+                table.publish(job);
+            }
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join(10000);
+        }
+        assertNull(failure.get());
+        assertEquals(1 + 5 * jobs.length, table.getSequence(slot));
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.pires.obd.reader.io;
+
+import com.github.pires.obd.reader.commands.Pid;
+import com.github.pires.obd.reader.commands.PidCommand;
+import com.github.pires.obd.reader.io.ObdCommandJob.ObdCommandJobState;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateControllerTest {
+
+    private final RateController controller = new RateController();
+
+    /**
+     * @return a job answered with the given answer after rtt ms.
+     */
+    private static ObdCommandJob answered(String answer, double rtt) throws Exception {
+        final ObdCommandJob job = new ObdCommandJob(new PidCommand(Pid.ENGINE_RPM));
+        try {
+            job.getCommand().run(new ByteArrayInputStream(answer.getBytes("US-ASCII")), new ByteArrayOutputStream());
+            job.setState(ObdCommandJobState.FINISHED);
+        } catch (RuntimeException e) {
+            job.setState(ObdCommandJobState.EXECUTION_ERROR);
+        }
+        final long received = System.nanoTime();
+        job.setTiming(received - (long) (rtt * 1e6), received);
+        return job;
+    }
+
+    private static ObdCommandJob clean() throws Exception {
+        return answered("41 0C 1A F8\r\r>", 20);
+    }
+
+    /**
+     * @return a request never answered, timed out by the adapter.
+     */
+    private static ObdCommandJob timedOut() {
+        final ObdCommandJob job = new ObdCommandJob(new PidCommand(Pid.ENGINE_RPM));
+        job.setState(ObdCommandJobState.EXECUTION_ERROR);
+        final long received = System.nanoTime();
+        job.setTiming(received - 200000000L, received);
+        return job;
+    }
+
+    private void feed(ObdCommandJob job, int times) {
+        for (int i = 0; i < times; i++) {
+            controller.handleResult(job);
+        }
+    }
+
+    @Test
+    public void growsTheGapOnOverruns() throws Exception {
+        final ObdCommandJob stopped = answered("STOPPED\r\r>", 20);
+        controller.handleResult(stopped);
+        assertEquals(4, controller.getRequestGap(), 0);
+        // the burst is only punished once
+        feed(answered("BUFFER FULL\r\r>", 20), 8);
+        assertEquals(4, controller.getRequestGap(), 0);
+        controller.handleResult(stopped);
+        assertEquals(8, controller.getRequestGap(), 0);
+        assertTrue(controller.getOverrunRate() > 0.5);
+    }
+
+    @Test
+    public void growsTheGapOnTimeouts() {
+        for (int i = 0; i < 4 * 9; i++) {
+            controller.handleResult(timedOut());
+        }
+        // doubled every 9 answers from 4 ms
+        assertEquals(32, controller.getRequestGap(), 0);
+        for (int i = 0; i < 9 * 10; i++) {
+            controller.handleResult(timedOut());
+        }
+        assertEquals(250, controller.getRequestGap(), 0);
+    }
+
+    @Test
+    public void shrinksTheGapOnCleanAnswers() throws Exception {
+        controller.handleResult(timedOut());
+        assertEquals(4, controller.getRequestGap(), 0);
+        // held off, then a quarter ms less per answer
+        feed(clean(), 8 + 8);
+        assertEquals(2, controller.getRequestGap(), 0);
+        feed(clean(), 8);
+        assertEquals(0, controller.getRequestGap(), 0);
+        assertTrue(controller.getOverrunRate() < 0.05);
+    }
+
+    @Test
+    public void ignoresWhatTheVehicleDoesNotSupport() throws Exception {
+        feed(answered("NO DATA\r\r>", 50), 20);
+        feed(answered("?\r\r>", 1), 20);
+        feed(answered("UNABLE TO CONNECT\r\r>", 3000), 20);
+        assertEquals(0, controller.getRequestGap(), 0);
+        assertEquals(0, controller.getOverrunRate(), 0);
+    }
+
+    @Test
+    public void averagesTheRoundTrip() throws Exception {
+        assertEquals(100, controller.getMillisPerRequest());
+        // never went out
+        controller.handleResult(new ObdCommandJob(new PidCommand(Pid.ENGINE_RPM)));
+        assertTrue(Double.isNaN(controller.getRoundTripTime()));
+
+        controller.handleResult(answered("41 0C 1A F8\r\r>", 20));
+        assertEquals(20, controller.getRoundTripTime(), 1e-6);
+        controller.handleResult(answered("41 0C 1A F8\r\r>", 30));
+        assertEquals(21, controller.getRoundTripTime(), 1e-6);
+        assertEquals(21, controller.getMillisPerRequest());
+        controller.handleResult(timedOut());
+        assertEquals(25, controller.getMillisPerRequest());
+    }
+
+    @Test
+    public void waitsTheGapAfterTheLastAnswer() throws Exception {
+        final long start = System.nanoTime();
+        controller.handleResult(timedOut());
+        controller.awaitGap();
+        // the sleep rounds to the closest ms
+        assertTrue((System.nanoTime() - start) / 1e6 >= 3.5);
+    }
+}
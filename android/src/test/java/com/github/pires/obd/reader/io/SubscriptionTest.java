@@ -0,0 +1,214 @@
+package com.github.pires.obd.reader.io;
+
+import com.github.pires.obd.commands.protocol.EchoOffCommand;
+import com.github.pires.obd.reader.commands.Pid;
+import com.github.pires.obd.reader.commands.PidCommand;
+import com.github.pires.obd.reader.commands.PidDefinition;
+import com.github.pires.obd.reader.io.ObdCommandJob.ObdCommandJobState;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionTest {
+
+    private static final long T0 = 1000000000L;
+
+    private final List<ObdCommandJob> received = new ArrayList<>();
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    private final ObdProgressListener listener = new ObdProgressListener() {
+        @Override
+        public void stateUpdate(ObdCommandJob job) {
+            received.add(job);
+        }
+    };
+
+    private final Executor direct = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    // runs the drain only when the test says so
+    private final Executor queued = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    };
+
+    /**
+     * @return a finished job of the given PID, answered ms after T0.
+     */
+    private static ObdCommandJob job(Pid pid, long ms) {
+        final ObdCommandJob job = new ObdCommandJob(new PidCommand(pid));
+        job.setState(ObdCommandJobState.FINISHED);
+        job.setTiming(T0 + ms * 1000000L, T0 + ms * 1000000L);
+        return job;
+    }
+
+    @Test
+    public void filtersPidsButPassesLostConnections() {
+        final Subscription subscription = new Subscription(listener, direct);
+        subscription.setPids(Pid.SPEED);
+        final ObdCommandJob speed = job(Pid.SPEED, 0);
+        final ObdCommandJob lost = job(Pid.ENGINE_RPM, 0);
+        lost.setState(ObdCommandJobState.BROKEN_PIPE);
+        subscription.offer(job(Pid.ENGINE_RPM, 0));
+        subscription.offer(new ObdCommandJob(new EchoOffCommand()));
+        subscription.offer(speed);
+        subscription.offer(lost);
+        assertEquals(2, received.size());
+        assertTrue(received.get(0) == speed);
+        assertTrue(received.get(1) == lost);
+        assertEquals(2, subscription.getDelivered());
+    }
+
+    @Test
+    public void filtersDefinitionsById() throws JSONException {
+        final List<PidDefinition> definitions = PidDefinition.parse(
+                "[{\"id\": \"TRANS_TEMP\", \"request\": \"22 1940\", \"formula\": \"A - 40\"},"
+                        + " {\"id\": \"OIL_LIFE\", \"request\": \"22 1130\", \"formula\": \"A\"}]");
+        final ObdCommandJob transTemp = new ObdCommandJob(new PidCommand(definitions.get(0)));
+        final ObdCommandJob oilLife = new ObdCommandJob(new PidCommand(definitions.get(1)));
+        final ObdCommandJob speed = job(Pid.SPEED, 0);
+
+        final Subscription byPid = new Subscription(listener, direct);
+        byPid.setPids(Pid.SPEED);
+        byPid.offer(transTemp);
+        byPid.offer(speed);
+        assertEquals(1, received.size());
+        assertTrue(received.get(0) == speed);
+
+        received.clear();
+        final Subscription byBoth = new Subscription(listener, direct);
+        byBoth.setPids(Pid.SPEED);
+        byBoth.setIds("TRANS_TEMP");
+        byBoth.offer(transTemp);
+        byBoth.offer(oilLife);
+        byBoth.offer(speed);
+        byBoth.offer(job(Pid.ENGINE_RPM, 0));
+        assertEquals(2, received.size());
+        assertTrue(received.get(0) == transTemp);
+        assertTrue(received.get(1) == speed);
+
+        received.clear();
+        final Subscription byId = new Subscription(listener, direct);
+        byId.setIds("OIL_LIFE");
+        byId.offer(transTemp);
+        byId.offer(oilLife);
+        byId.offer(speed);
+        assertEquals(1, received.size());
+        assertTrue(received.get(0) == oilLife);
+    }
+
+    @Test
+    public void throttlesEachCommandOnItsOwn() {
+        final Subscription subscription = new Subscription(listener, direct);
+        subscription.setMaxRate(10);
+        for (long ms = 0; ms <= 200; ms += 50) {
+            subscription.offer(job(Pid.ENGINE_RPM, ms));
+        }
+        subscription.offer(job(Pid.SPEED, 50));
+        // 0, 100 and 200 ms, then the speed
+        assertEquals(4, subscription.getDelivered());
+        assertEquals(2, subscription.getThrottled());
+        assertEquals(Pid.SPEED, ((PidCommand) received.get(3).getCommand()).getPid());
+    }
+
+    @Test
+    public void dropsTheOldestJobsWhenFull() {
+        final Subscription subscription = new Subscription(listener, queued);
+        subscription.setCapacity(3);
+        final ObdCommandJob[] jobs = new ObdCommandJob[5];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = job(Pid.ENGINE_RPM, i);
+            subscription.offer(jobs[i]);
+        }
+        assertEquals(2, subscription.getDropped());
+        assertEquals(3, subscription.getBacklog());
+        // one drain at a time
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertEquals(3, received.size());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(received.get(i) == jobs[i + 2]);
+        }
+        assertEquals(0, subscription.getBacklog());
+    }
+
+    @Test
+    public void countsDeliveriesThatWaitedTooLong() throws InterruptedException {
+        final Subscription subscription = new Subscription(listener, queued);
+        subscription.setDelayThreshold(10);
+        subscription.offer(job(Pid.ENGINE_RPM, 0));
+        Thread.sleep(30);
+        tasks.get(0).run();
+        subscription.offer(job(Pid.ENGINE_RPM, 100));
+        tasks.get(1).run();
+        assertEquals(2, subscription.getDelivered());
+        assertEquals(1, subscription.getDelayed());
+        assertTrue(String.valueOf(subscription.getMaxDelay()), subscription.getMaxDelay() >= 30);
+    }
+
+    @Test
+    public void deliversInOrderAndNeverConcurrently() throws InterruptedException {
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final ObdProgressListener checking = new ObdProgressListener() {
+            private long next = 0;
+
+            @Override
+            public void stateUpdate(ObdCommandJob job) {
+                if (inFlight.incrementAndGet() != 1) {
+                    failure.set("delivered concurrently");
+                }
+                if (job.getId() != next) {
+                    failure.set("got " + job.getId() + " instead of " + next);
+                }
+                next = job.getId() + 1;
+                inFlight.decrementAndGet();
+            }
+        };
+        final int n = 20000;
+        final Subscription subscription = new Subscription(checking, pool);
+        subscription.setCapacity(n);
+        for (int i = 0; i < n; i++) {
+            final ObdCommandJob job = job(Pid.ENGINE_RPM, i);
+            job.setId((long) i);
+            subscription.offer(job);
+            if (i % 2 == 1) {
+                // the next job is offered while the drain finishes, a job
+                // left behind then would wait for another offer
+                final long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+                while (subscription.getDelivered() <= i && System.nanoTime() < until) {
+                    Thread.yield();
+                }
+                if (subscription.getDelivered() <= i) {
+                    failure.compareAndSet(null, "job " + i + " left behind");
+                    break;
+                }
+            }
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        assertEquals(n, subscription.getDelivered());
+        assertEquals(0, subscription.getDropped());
+    }
+}
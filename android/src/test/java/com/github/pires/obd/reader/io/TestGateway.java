@@ -0,0 +1,71 @@
+package com.github.pires.obd.reader.io;
+
+import com.github.pires.obd.reader.io.ObdCommandJob.ObdCommandJobState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * A gateway running its queue on the calling thread, over any transport,
+ * and keeping every job it handed to the subscribers.
+ */
+class TestGateway extends AbstractGatewayService {
+
+    private final ObdTransport transport;
+    final List<ObdCommandJob> finished = new ArrayList<>();
+
+    TestGateway(ObdTransport transport) {
+        this.transport = transport;
+        final Subscription subscription = new Subscription(new ObdProgressListener() {
+            @Override
+            public void stateUpdate(ObdCommandJob job) {
+                finished.add(job);
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        subscription.setCapacity(100000);
+        subscribe(subscription);
+    }
+
+    /**
+     * Runs the queued jobs, including the ones queued while running.
+     */
+    void runQueue() throws InterruptedException {
+        ObdCommandJob job;
+        while ((job = jobsQueue.poll()) != null) {
+            runJob(job, transport);
+            if (job.getState() == ObdCommandJobState.RUNNING) {
+                job.setState(ObdCommandJobState.FINISHED);
+            }
+            jobFinished(job);
+        }
+    }
+
+    /**
+     * The JVM has no clock since boot, the monotonic one does here.
+     */
+    @Override
+    protected long elapsedNanos() {
+        return System.nanoTime();
+    }
+
+    @Override
+    protected void executeQueue() {
+    }
+
+    @Override
+    public void startService(String remoteDevice) {
+        isRunning = true;
+    }
+
+    @Override
+    public void stopService() {
+        jobsQueue.clear();
+        isRunning = false;
+    }
+}
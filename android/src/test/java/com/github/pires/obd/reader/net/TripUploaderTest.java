@@ -0,0 +1,221 @@
+package com.github.pires.obd.reader.net;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the uploader against a stub server on localhost, which records the
+ * rows it accepts and can be made to fail or answer slowly.
+ */
+public class TripUploaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private URL endpoint;
+    private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile long answerDelay = 0;
+    private File spool;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/samples", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                final List<String> rows = readRows(exchange.getRequestBody());
+                sleep(answerDelay);
+                if (failuresLeft.getAndDecrement() > 0) {
+                    exchange.sendResponseHeaders(503, -1);
+                } else {
+                    received.addAll(rows);
+                    exchange.sendResponseHeaders(204, -1);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        endpoint = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/samples");
+        spool = folder.newFolder("spool");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private TripUploader newUploader(int batchSize) {
+        return new TripUploader(spool, endpoint, null, batchSize, 60000, 1 << 20);
+    }
+
+    private static void add(TripUploader uploader, int from, int to) {
+        for (int i = from; i < to; i++) {
+            uploader.add("ENGINE_RPM", i, 1000L + i);
+        }
+    }
+
+    @Test
+    public void uploadsEveryRowOnce() throws Exception {
+        final TripUploader uploader = newUploader(100);
+        uploader.start();
+        add(uploader, 0, 250);
+        uploader.flush();
+        awaitReceived(250);
+        uploader.stop();
+
+        assertRows(250);
+        awaitSpooled(0);
+    }
+
+    @Test
+    public void keepsChunksUntilTheServerTakesThem() throws Exception {
+        failuresLeft.set(2);
+        final TripUploader uploader = newUploader(100);
+        uploader.start();
+        add(uploader, 0, 200);
+        // retried with backoff, from 1 s on
+        awaitReceived(200);
+        uploader.stop();
+
+        assertRows(200);
+        // deleted once the answer is in, stop() doesn't wait for that
+        awaitSpooled(0);
+    }
+
+    @Test
+    public void stopKeepsQueuedBatchesWithoutWaiting() throws Exception {
+        answerDelay = 2000;
+        final TripUploader uploader = newUploader(10);
+        uploader.start();
+        // batches queued behind a slow upload, and one still in memory
+        add(uploader, 0, 105);
+        while (requests.get() == 0) {
+            Thread.sleep(5);
+        }
+        final long start = System.nanoTime();
+        uploader.stop();
+        assertTrue((System.nanoTime() - start) / 1e6 < 1000);
+
+        // the upload in progress finishes, the rest waits on disk
+        awaitReceived(10);
+        awaitSpooled(10);
+        answerDelay = 0;
+        final TripUploader restarted = newUploader(10);
+        restarted.start();
+        awaitReceived(105);
+        restarted.stop();
+
+        assertRows(105);
+    }
+
+    @Test
+    public void spoolsOnTheCallingThreadOnceStopped() throws Exception {
+        failuresLeft.set(Integer.MAX_VALUE);
+        final TripUploader uploader = newUploader(100);
+        uploader.start();
+        uploader.stop();
+        add(uploader, 0, 30);
+        uploader.flush();
+        assertEquals(1, spooledChunks());
+
+        failuresLeft.set(0);
+        final TripUploader restarted = newUploader(100);
+        restarted.start();
+        awaitReceived(30);
+        restarted.stop();
+        assertRows(30);
+    }
+
+    private int spooledChunks() {
+        int chunks = 0;
+        final File[] files = spool.listFiles();
+        for (File f : files != null ? files : new File[0]) {
+            if (f.getName().endsWith(".csv.gz")) {
+                chunks++;
+            }
+        }
+        return chunks;
+    }
+
+    private void awaitSpooled(int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (spooledChunks() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, spooledChunks());
+    }
+
+    /**
+     * Checks every row from 0 to count was received exactly once.
+     */
+    private void assertRows(int count) {
+        final Set<String> expected = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            expected.add((1000L + i) + ",ENGINE_RPM," + (double) i);
+        }
+        synchronized (received) {
+            assertEquals(count, received.size());
+            assertEquals(expected, new HashSet<>(received));
+        }
+    }
+
+    private void awaitReceived(int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (received.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue("received " + received.size() + " of " + count, received.size() >= count);
+    }
+
+    private static List<String> readRows(InputStream body) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(body), "UTF-8"));
+        final List<String> rows = new ArrayList<>();
+        String line = reader.readLine();
+        assertEquals("timestamp,cmdID,value", line);
+        while ((line = reader.readLine()) != null) {
+            rows.add(line);
+        }
+        return rows;
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
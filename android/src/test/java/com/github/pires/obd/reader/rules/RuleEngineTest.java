@@ -0,0 +1,111 @@
+package com.github.pires.obd.reader.rules;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RuleEngineTest {
+
+    private final List<String> alerts = new ArrayList<>();
+
+    private final RuleEngine.Listener listener = new RuleEngine.Listener() {
+        @Override
+        public void onAlert(String ruleId, boolean active, double time, String[] ids, double[] values) {
+            alerts.add((active ? "+" : "-") + ruleId + "@" + (long) time
+                    + " " + Arrays.toString(ids) + Arrays.toString(values));
+        }
+    };
+
+    private void assertRejected(String rules) {
+        try {
+            new RuleEngine(rules, listener);
+            fail("compiled " + rules);
+        } catch (JSONException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void raisesAndClearsWithHysteresis() throws JSONException {
+        final RuleEngine engine = new RuleEngine("[{\"id\": \"overRev\", \"conditions\": ["
+                + "{\"cmdID\": \"ENGINE_RPM\", \"above\": 6000, \"hysteresis\": 200}]}]", listener);
+        engine.add("ENGINE_RPM", 6000, 0);
+        engine.add("ENGINE_RPM", 6001, 100);
+        engine.add("ENGINE_RPM", 5800, 200);
+        engine.add("ENGINE_RPM", 6500, 300);
+        engine.add("ENGINE_RPM", 5799, 400);
+        engine.add("ENGINE_RPM", 5900, 500);
+        assertEquals(Arrays.asList("+overRev@100 [ENGINE_RPM][6001.0]", "-overRev@400 [ENGINE_RPM][5799.0]"),
+                alerts);
+    }
+
+    @Test
+    public void raisesOnlyOnceTheRuleHeldForItsDuration() throws JSONException {
+        final RuleEngine engine = new RuleEngine("[{\"id\": \"cold\", \"duration\": 500, \"conditions\": ["
+                + "{\"cmdID\": \"ENGINE_COOLANT_TEMP\", \"below\": 40}]}]", listener);
+        engine.add("ENGINE_COOLANT_TEMP", 30, 0);
+        engine.add("ENGINE_COOLANT_TEMP", 30, 400);
+        // breaking the streak starts the duration over
+        engine.add("ENGINE_COOLANT_TEMP", 50, 450);
+        engine.add("ENGINE_COOLANT_TEMP", 30, 600);
+        engine.add("ENGINE_COOLANT_TEMP", 30, 1000);
+        assertTrue(alerts.isEmpty());
+        engine.add("ENGINE_COOLANT_TEMP", 30, 1100);
+        engine.add("ENGINE_COOLANT_TEMP", 30, 1200);
+        assertEquals(Arrays.asList("+cold@1100 [ENGINE_COOLANT_TEMP][30.0]"), alerts);
+    }
+
+    @Test
+    public void combinesConditionsWithAllOrAny() throws JSONException {
+        final RuleEngine engine = new RuleEngine("["
+                + "{\"id\": \"both\", \"conditions\": [{\"cmdID\": \"SPEED\", \"above\": 100},"
+                + " {\"cmdID\": \"ENGINE_RPM\", \"above\": 4000}]},"
+                + "{\"id\": \"either\", \"match\": \"any\", \"conditions\": [{\"cmdID\": \"SPEED\", \"above\": 100},"
+                + " {\"cmdID\": \"ENGINE_RPM\", \"above\": 4000}]}]", listener);
+        engine.add("SPEED", 120, 0);
+        engine.add("ENGINE_RPM", 4500, 100);
+        engine.add("SPEED", 80, 200);
+        engine.add("ENGINE_RPM", 3000, 300);
+        assertEquals(Arrays.asList(
+                "+either@0 [SPEED, ENGINE_RPM][120.0, NaN]",
+                "+both@100 [SPEED, ENGINE_RPM][120.0, 4500.0]",
+                "-both@200 [SPEED, ENGINE_RPM][80.0, 4500.0]",
+                "-either@300 [SPEED, ENGINE_RPM][80.0, 3000.0]"), alerts);
+    }
+
+    @Test
+    public void ignoresNaNAndOtherStreams() throws JSONException {
+        final RuleEngine engine = new RuleEngine("[{\"id\": \"slow\", \"conditions\": ["
+                + "{\"cmdID\": \"SPEED\", \"below\": 10}]}]", listener);
+        engine.add("SPEED", 5, 0);
+        engine.add("SPEED", Double.NaN, 100);
+        engine.add("ENGINE_RPM", 800, 200);
+        assertEquals(Arrays.asList("+slow@0 [SPEED][5.0]"), alerts);
+    }
+
+    @Test
+    public void resetClearsAlertsSilently() throws JSONException {
+        final RuleEngine engine = new RuleEngine("[{\"id\": \"slow\", \"conditions\": ["
+                + "{\"cmdID\": \"SPEED\", \"below\": 10}]}]", listener);
+        engine.add("SPEED", 5, 0);
+        engine.reset();
+        engine.add("SPEED", 5, 100);
+        assertEquals(Arrays.asList("+slow@0 [SPEED][5.0]", "+slow@100 [SPEED][5.0]"), alerts);
+    }
+
+    @Test
+    public void rejectsInvalidRules() {
+        assertRejected("[{\"id\": \"r\", \"match\": \"some\", \"conditions\": [{\"cmdID\": \"SPEED\", \"below\": 10}]}]");
+        assertRejected("[{\"id\": \"r\", \"conditions\": []}]");
+        assertRejected("[{\"id\": \"r\", \"conditions\": [{\"cmdID\": \"SPEED\"}]}]");
+        assertRejected("[{\"id\": \"r\", \"conditions\": [{\"cmdID\": \"SPEED\", \"above\": 1, \"below\": 10}]}]");
+        assertRejected("[{\"conditions\": [{\"cmdID\": \"SPEED\", \"below\": 10}]}]");
+    }
+}
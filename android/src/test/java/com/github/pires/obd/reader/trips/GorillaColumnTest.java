@@ -0,0 +1,123 @@
+package com.github.pires.obd.reader.trips;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GorillaColumnTest {
+
+    private static void assertRoundTrip(long[] times, double[] values) {
+        final GorillaColumn column = new GorillaColumn();
+        for (int i = 0; i < times.length; i++) {
+            column.append(times[i], values[i]);
+        }
+        assertEquals(times.length, column.size());
+        final GorillaColumn.Cursor cursor = column.cursor();
+        for (int i = 0; i < times.length; i++) {
+            assertTrue(cursor.next());
+            assertEquals("time " + i, times[i], cursor.getTime());
+            assertEquals("value " + i, Double.doubleToRawLongBits(values[i]),
+                    Double.doubleToRawLongBits(cursor.getValue()));
+        }
+        assertFalse(cursor.next());
+    }
+
+    /**
+     * @return times whose deltas of deltas are the given ones.
+     */
+    private static long[] timesWith(long... deltasOfDeltas) {
+        final long[] times = new long[deltasOfDeltas.length + 2];
+        times[0] = 1500000000000L;
+        long delta = 100;
+        times[1] = times[0] + delta;
+        for (int i = 0; i < deltasOfDeltas.length; i++) {
+            delta += deltasOfDeltas[i];
+            times[i + 2] = times[i + 1] + delta;
+        }
+        return times;
+    }
+
+    private static double[] constant(int n) {
+        final double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = 42;
+        }
+        return values;
+    }
+
+    @Test
+    public void roundTripsDeltasOfDeltasAtTheEdgesOfEachRange() {
+        // each range is skewed by one, -63..64 in 7 bits and so on
+        final long[] times = timesWith(0, 64, -64, -63, 63, 65, -65,
+                256, -256, -255, 255, 257, -257,
+                2048, -2048, -2047, 2047, 2049, -2049,
+                1L << 40, -(1L << 40));
+        assertRoundTrip(times, constant(times.length));
+    }
+
+    @Test
+    public void roundTripsTimesGoingBackwards() {
+        final long[] times = {1000, 900, 5000, 4999, 0, 1L << 50};
+        assertRoundTrip(times, constant(times.length));
+    }
+
+    @Test
+    public void roundTripsSpecialValues() {
+        final double[] values = {0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.MIN_VALUE, -Double.MIN_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, 1.0, 1.0,
+                // all 64 bits differ, 64 meaningful bits stored as 0
+                Double.longBitsToDouble(~Double.doubleToRawLongBits(1.0)), 1.0,
+                // XORs with more than 31 leading zeros
+                Double.longBitsToDouble(Double.doubleToRawLongBits(1.0) ^ 1L), 1.0,
+                Long.MIN_VALUE, Long.MAX_VALUE, -1e-300, 1e300};
+        final long[] times = new long[values.length];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = i * 100;
+        }
+        assertRoundTrip(times, values);
+    }
+
+    @Test
+    public void roundTripsAcrossBlocksAndChunks() {
+        // several 1 kB chunks and blocks, with values that change in every bit
+        final int n = GorillaColumn.BLOCK * 10 + 7;
+        final long[] times = new long[n];
+        final double[] values = new double[n];
+        final Random random = new Random(7);
+        long time = 0;
+        for (int i = 0; i < n; i++) {
+            time += random.nextInt(3) == 0 ? random.nextInt(5000) - 1000 : 100;
+            times[i] = time;
+            values[i] = random.nextBoolean() ? random.nextDouble() * 1e6 : Math.round(random.nextGaussian() * 100);
+        }
+        assertRoundTrip(times, values);
+    }
+
+    @Test
+    public void aggregatesAcrossBlockBoundaries() {
+        final GorillaColumn column = new GorillaColumn();
+        final int n = GorillaColumn.BLOCK * 3;
+        for (int i = 0; i < n; i++) {
+            column.append(i * 10L, i);
+        }
+        final List<WindowStats> all = column.aggregate(0, n * 10L, 0, new double[0]);
+        assertEquals(1, all.size());
+        assertEquals(n, all.get(0).getCount());
+        assertEquals(0, all.get(0).getMin(), 0);
+        assertEquals(n - 1, all.get(0).getMax(), 0);
+        assertEquals((n - 1) / 2.0, all.get(0).getAverage(), 1e-9);
+
+        // a range starting and ending inside blocks
+        final long from = (GorillaColumn.BLOCK - 3) * 10L;
+        final long to = (2 * GorillaColumn.BLOCK + 5) * 10L;
+        final List<WindowStats> part = column.aggregate(from, to, 0, new double[]{50});
+        assertEquals(GorillaColumn.BLOCK + 8, part.get(0).getCount());
+        assertEquals(GorillaColumn.BLOCK - 3, part.get(0).getMin(), 0);
+        assertEquals(2 * GorillaColumn.BLOCK + 4, part.get(0).getMax(), 0);
+    }
+}
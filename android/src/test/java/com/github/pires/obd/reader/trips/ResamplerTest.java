@@ -0,0 +1,92 @@
+package com.github.pires.obd.reader.trips;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResamplerTest {
+
+    private final List<double[]> rows = new ArrayList<>();
+    private final Resampler resampler = new Resampler(100, 500, new Resampler.Listener() {
+        @Override
+        public void onRow(double time, String[] ids, double[] values) {
+            final double[] row = new double[values.length + 1];
+            row[0] = time;
+            System.arraycopy(values, 0, row, 1, values.length);
+            rows.add(row);
+        }
+    });
+
+    @Test
+    public void interpolatesOnTheGrid() {
+        resampler.add("RPM", 1000, 950);
+        resampler.add("SPEED", 10, 960);
+        resampler.add("RPM", 2000, 1150);
+        resampler.add("SPEED", 30, 1160);
+
+        assertEquals(2, rows.size());
+        assertEquals(1000, rows.get(0)[0], 0);
+        assertEquals(1250, rows.get(0)[1], 1e-9);
+        assertEquals(14, rows.get(0)[2], 1e-9);
+        assertEquals(1100, rows.get(1)[0], 0);
+        assertEquals(1750, rows.get(1)[1], 1e-9);
+        assertEquals(24, rows.get(1)[2], 1e-9);
+    }
+
+    @Test
+    public void skipsAPauseOfAllStreams() {
+        for (int t = 0; t <= 1000; t += 50) {
+            resampler.add("RPM", 800, t);
+            resampler.add("SPEED", 0, t + 10);
+        }
+        final int before = rows.size();
+        // an hour without samples, e.g. polling paused
+        final int resumed = 3600 * 1000;
+        for (int t = resumed; t <= resumed + 1000; t += 50) {
+            resampler.add("RPM", 900, t);
+            resampler.add("SPEED", 5, t + 10);
+        }
+
+        assertTrue(rows.size() - before <= 12);
+        for (int i = before; i < rows.size(); i++) {
+            assertTrue(rows.get(i)[0] >= resumed);
+            assertEquals(900, rows.get(i)[1], 1e-9);
+        }
+        // speed was left out when rpm came back, 10 ms before it
+        assertTrue(Double.isNaN(rows.get(before)[2]));
+        assertEquals(5, rows.get(rows.size() - 1)[2], 1e-9);
+    }
+
+    @Test
+    public void keepsTheRowsOfLiveStreamsWhenOneStops() {
+        resampler.add("VIN_PID", 1, 0);
+        for (int t = 50; t <= 2000; t += 50) {
+            resampler.add("RPM", t, t);
+        }
+
+        // held back by the stopped stream until it's left out, then caught up
+        assertEquals(21, rows.size());
+        for (int i = 1; i < rows.size(); i++) {
+            assertEquals(i * 100, rows.get(i)[0], 0);
+            assertEquals(i * 100, rows.get(i)[2], 1e-9);
+        }
+    }
+
+    @Test
+    public void startsOverAfterReset() {
+        resampler.add("RPM", 1000, 0);
+        resampler.add("RPM", 1000, 200);
+        resampler.reset();
+        rows.clear();
+        resampler.add("RPM", 3000, 100000);
+        resampler.add("RPM", 3000, 100100);
+
+        assertEquals(2, rows.size());
+        assertEquals(100000, rows.get(0)[0], 0);
+        assertEquals(1, rows.get(0).length - 1);
+    }
+}
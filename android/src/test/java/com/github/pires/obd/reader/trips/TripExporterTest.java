@@ -0,0 +1,163 @@
+package com.github.pires.obd.reader.trips;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TripExporterTest {
+
+    private static final long T0 = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TripStore store = new TripStore();
+    private TripExporter exporter;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile long exported = -1;
+    private volatile long lastProgress = -1;
+    private volatile IOException error = null;
+
+    private final TripExporter.Listener listener = new TripExporter.Listener() {
+        @Override
+        public void onProgress(long written, long total) {
+            lastProgress = written;
+        }
+
+        @Override
+        public void onDone(File file, long samples) {
+            exported = samples;
+            done.countDown();
+        }
+
+        @Override
+        public void onError(IOException e) {
+            error = e;
+            done.countDown();
+        }
+    };
+
+    @Before
+    public void fillStore() {
+        exporter = new TripExporter();
+        store.append("ENGINE_RPM", 800, T0);
+        store.append("SPEED", 0, T0 + 50.4);
+        store.append("ENGINE_RPM", 1500.5, T0 + 100);
+        store.append("SPEED", Double.NaN, T0 + 120);
+        store.append("SPEED", 12.25, T0 + 150);
+        // times may go back, e.g. after a clock change
+        store.append("ENGINE_RPM", -3.5, T0 + 90);
+    }
+
+    @After
+    public void shutDown() {
+        exporter.shutdown();
+    }
+
+    private File export(TripExporter.Format format) throws Exception {
+        final File file = new File(folder.getRoot(), "trip" + format.getSuffix());
+        exporter.export(store, file, format, listener);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertNull(error);
+        assertEquals(5, exported);
+        assertEquals(5, lastProgress);
+        assertFalse(new File(file.getPath() + ".part").exists());
+        return file;
+    }
+
+    @Test
+    public void writesCsvRowsMergedByTime() throws Exception {
+        final File file = export(TripExporter.Format.CSV);
+        final List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        assertEquals(Arrays.asList("timestamp,cmdID,value",
+                T0 + ",ENGINE_RPM,800.0",
+                (T0 + 50) + ",SPEED,0.0",
+                (T0 + 100) + ",ENGINE_RPM,1500.5",
+                (T0 + 90) + ",ENGINE_RPM,-3.5",
+                (T0 + 150) + ",SPEED,12.25"), lines);
+    }
+
+    @Test
+    public void writesTheBinaryColumns() throws Exception {
+        final File file = export(TripExporter.Format.BINARY);
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)))) {
+            final byte[] magic = new byte[4];
+            in.readFully(magic);
+            assertArrayEquals("OBDT".getBytes("US-ASCII"), magic);
+            assertEquals(1, in.readByte());
+            assertEquals(2, in.readInt());
+            assertStream(in, "ENGINE_RPM", new long[]{T0, T0 + 100, T0 + 90}, new double[]{800, 1500.5, -3.5});
+            assertStream(in, "SPEED", new long[]{T0 + 50, T0 + 150}, new double[]{0, 12.25});
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void reportsWhatCantBeWritten() throws Exception {
+        final File file = new File(new File(folder.getRoot(), "missing"), "trip.csv.gz");
+        exporter.export(store, file, TripExporter.Format.CSV, listener);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertNotNull(error);
+        assertFalse(file.exists());
+    }
+
+    private static void assertStream(DataInputStream in, String id, long[] times, double[] values)
+            throws IOException {
+        assertEquals(id, in.readUTF());
+        assertEquals(times.length, in.readInt());
+        long time = in.readLong();
+        assertEquals(times[0], time);
+        for (int i = 1; i < times.length; i++) {
+            time += unzigzag(readVarint(in));
+            assertEquals(times[i], time);
+        }
+        for (double value : values) {
+            assertEquals(value, in.readDouble(), 0);
+        }
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -26,11 +26,100 @@ class react_obd2 {
     jetbridge_obd2.setMockUpMode(aEnabled);
   }
 
+  setBackgroundLogging(aEnabled, aSummaryInterval) {
+    jetbridge_obd2.setBackgroundLogging(aEnabled, aSummaryInterval || 0);
+  }
+
+  setUploadEndpoint(aUrl, aHeaders, aBatchSize, aFlushInterval) {
+    return jetbridge_obd2.setUploadEndpoint(aUrl, aHeaders || {}, aBatchSize || 0, aFlushInterval || 0);
+  }
+
+  setAutoIdle(aEnabled, aEngineOnVoltage, aProbeInterval) {
+    jetbridge_obd2.setAutoIdle(aEnabled, aEngineOnVoltage || 0, aProbeInterval || 0);
+  }
+
+  setMockSimulation(aCycle, aLatency, aBytesPerSecond, aTimeScale) {
+    const isWaypoints = Array.isArray(aCycle);
+    jetbridge_obd2.setMockSimulation(isWaypoints ? null : (aCycle || 'mixed'), isWaypoints ? aCycle : [],
+      aLatency || 0, aBytesPerSecond || 0, aTimeScale || 1);
+  }
+
+  setFaultProfile(aProfileName) {
+    jetbridge_obd2.setFaultProfile(aProfileName || null);
+  }
+
+  setResampling(aRate, aMaxGap) {
+    jetbridge_obd2.setResampling(aRate || 0, aMaxGap || 0);
+  }
+
+  setLiveDataBatching(aInterval) {
+    jetbridge_obd2.setLiveDataBatching(aInterval || 0);
+  }
+
+  getLatestValue(aCmdID) {
+    return jetbridge_obd2.getLatestValue(aCmdID);
+  }
+
+  getLatestValues() {
+    return jetbridge_obd2.getLatestValues();
+  }
+
+  getValue(aCmdID, aMaxAge) {
+    return jetbridge_obd2.getValue(aCmdID, aMaxAge || 0);
+  }
+
+  setTripStore(aEnabled) {
+    jetbridge_obd2.setTripStore(aEnabled);
+  }
+
+  getTripStoreStats() {
+    return jetbridge_obd2.getTripStoreStats();
+  }
+
+  exportTrip(aFormat) {
+    return jetbridge_obd2.exportTrip(aFormat || 'csv');
+  }
+
+  getPollingStats() {
+    return jetbridge_obd2.getPollingStats();
+  }
+
+  queryAggregates(aCmdID, aFrom, aTo, aWindow, aPercentiles) {
+    return jetbridge_obd2.queryAggregates(aCmdID, aFrom || 0, aTo || 0, aWindow || 0, aPercentiles || []);
+  }
+
+  setAlertRules(aRules) {
+    return jetbridge_obd2.setAlertRules(aRules ? JSON.stringify(aRules) : null);
+  }
+
+  setPidDefinitions(aDefinitions) {
+    if (aDefinitions && typeof aDefinitions !== 'string') {
+      aDefinitions = JSON.stringify(aDefinitions);
+    }
+    return jetbridge_obd2.setPidDefinitions(aDefinitions || null);
+  }
+
+  setMultiEcu(aEnabled) {
+    jetbridge_obd2.setMultiEcu(aEnabled);
+  }
+
+  getVehicleProfile() {
+    return jetbridge_obd2.getVehicleProfile();
+  }
+
+  readDiagnostic(aRequest) {
+    return jetbridge_obd2.readDiagnostic(aRequest);
+  }
+
   startLiveData(aDeviceAddress) {
     jetbridge_obd2.setRemoteDeviceAddress(aDeviceAddress);
     jetbridge_obd2.startLiveData();
   }
 
+  pauseLiveData(aKeepAliveInterval, aIdleTimeout) {
+    return jetbridge_obd2.pauseLiveData(aKeepAliveInterval || 0, aIdleTimeout || 300000);
+  }
+
   stopLiveData() {
     return jetbridge_obd2.stopLiveData();
   }